@@ -1,15 +1,23 @@
 package com.airbnb.payments.featuresengine.arguments;
 
+import com.airbnb.payments.featuresengine.cache.ICache;
+import com.airbnb.payments.featuresengine.config.ArgumentConfig;
 import com.airbnb.payments.featuresengine.core.EvalSession;
 import com.airbnb.payments.featuresengine.errors.CompilationException;
 import com.airbnb.payments.featuresengine.errors.EvaluationException;
+import com.airbnb.payments.featuresengine.metrics.IMetricsSink;
+import com.airbnb.payments.featuresengine.metrics.Metrics;
+import com.airbnb.payments.featuresengine.tracing.SessionTrace;
+import com.airbnb.payments.featuresengine.tracing.TraceSpan;
 import lombok.Getter;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 
 @Getter
 public abstract class Argument {
@@ -21,6 +29,15 @@ public abstract class Argument {
     private boolean cacheable;
     // If the given argument needs async fetching
     private boolean isAsync;
+    // Dense index assigned by the registry at registration time
+    private int slot = -1;
+    // Cache shared across sessions, if configured
+    private SharedArgumentCache sharedCache;
+    // Value of constant arguments, computed once at registration. Null otherwise
+    private Object constantValue;
+    // Config the argument was created from, to recompile it when its dependencies
+    // change
+    private ArgumentConfig config;
 
     /**
      * Map with primitive type and their boxed versions as key->value.
@@ -77,6 +94,48 @@ public abstract class Argument {
         }
     }
 
+    /**
+     * Binds the argument to its registry slot. Called once by the registry.
+     *
+     * @param slot Dense index of the argument within its registry
+     */
+    void setSlot(int slot) {
+        this.slot = slot;
+    }
+
+    /**
+     * Keeps the @config the argument was created from. Called once by the factory.
+     */
+    void setConfig(ArgumentConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Enables the cache shared across sessions. Called once by the factory.
+     *
+     * @param sharedCache The cache of this argument values
+     */
+    void setSharedCache(SharedArgumentCache sharedCache) {
+        this.sharedCache = sharedCache;
+    }
+
+    /**
+     * Makes the argument a constant. Called once by the factory.
+     *
+     * @param value The argument value, for every session
+     */
+    void setConstantValue(Object value) {
+        this.constantValue = value;
+    }
+
+    /**
+     * If the argument value is a constant, computed once at registration and
+     * inlined into the expressions depending on it
+     */
+    public boolean isConstant() {
+        return this.constantValue != null;
+    }
+
     @Override
     public int hashCode() {
         return this.name.hashCode();
@@ -105,18 +164,110 @@ public abstract class Argument {
      * @return Result of the argument fetching
      */
     final Object value(EvalSession session) {
-        if (this.isCacheable() && session.cache().contains(this.getName())) {
-            return session.cache().get(this.getName());
+        if (this.constantValue != null) {
+            return this.constantValue;
+        }
+
+        SessionTrace trace = session.trace();
+        if (trace != null) {
+            TraceSpan span = trace.enter(this, this.isCached(session), false);
+            Throwable error = null;
+            try {
+                return this.load(session);
+            } catch (RuntimeException e) {
+                error = e;
+                throw e;
+            } finally {
+                trace.exit(span, error);
+            }
+        }
+
+        return this.load(session);
+    }
+
+    /**
+     * Body of value(), past the constant and trace handling
+     */
+    private Object load(EvalSession session) {
+        if (Metrics.isEnabled()) {
+            return this.measuredValue(session, Metrics.sink());
+        }
+
+        if (this.isCacheable()) {
+            Object cached = session.cache().lookup(this);
+            if (cached != null) {
+                return cached;
+            }
+
+            // Arguments loaded in parallel may depend on this one as well
+            return session.computeIfAbsent(this, () -> this.compute(session));
+        }
+
+        return this.compute(session);
+    }
+
+    /**
+     * Computes the value of the current argument, through its shared cache if it has
+     * one, and caches it
+     */
+    private Object compute(EvalSession session) {
+        if (this.sharedCache != null) {
+            return this.sharedValue(session);
+        }
+
+        return this.processResult(session, this.fetch(session));
+    }
+
+    /**
+     * Same as value(), recording the metrics of the read on @metrics
+     */
+    private Object measuredValue(EvalSession session, IMetricsSink metrics) {
+        if (this.isCacheable()) {
+            Object cached = session.cache().lookup(this);
+            if (cached != null) {
+                metrics.cacheHit(this);
+                return cached;
+            }
+            metrics.cacheMiss(this);
+        }
+
+        long start = System.nanoTime();
+        try {
+            Object result = this.isCacheable()
+                    ? session.computeIfAbsent(this, () -> this.compute(session))
+                    : this.compute(session);
+            metrics.fetch(this, System.nanoTime() - start);
+            return result;
+        } catch (RuntimeException e) {
+            metrics.fetchError(this);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the value of the current argument through its shared cache, fetching and
+     * caching it on a miss
+     */
+    private Object sharedValue(EvalSession session) {
+        List<Object> key = this.sharedCache.key(session);
+        Object shared = this.sharedCache.get(key, session, null);
+        if (shared != null) {
+            return session.cache().putOrGet(this, shared);
         }
 
-        Object result = this.fetch(session);
-        return this.processResult(session, result);
+        Object result = this.processResult(session, this.fetch(session));
+        this.sharedCache.put(key, result);
+        return result;
     }
 
     /**
      * Gets the value of of the current argument. If the argument is cacheable, the
      * first call will cache the result and further calls will grab the result from
      * the session cache.
+     * <p>
+     * Fetches of cacheable arguments are also deduplicated while in flight: all
+     * concurrent calls on the same session share the first call's future, so an
+     * argument several async arguments depend on is fetched only once.
      *
      * @param session  Session of the individual request
      * @param executor Executor to run the fetching on
@@ -124,61 +275,395 @@ public abstract class Argument {
      */
     public final CompletableFuture<Object> valueAsync(
             EvalSession session, Executor executor) {
+        if (this.constantValue != null) {
+            return CompletableFuture.completedFuture(this.constantValue);
+        }
+
+        SessionTrace trace = session.trace();
+        if (trace != null) {
+            TraceSpan span = trace.enter(this, this.isCached(session), true);
+            CompletableFuture<Object> result;
+            try {
+                result = this.loadAsync(session, executor);
+            } catch (RuntimeException e) {
+                trace.exit(span, e);
+                throw e;
+            }
+            trace.exit(span, null);
+            result.whenComplete((value, e) -> trace.end(span, e));
+            return result;
+        }
+
+        return this.loadAsync(session, executor);
+    }
+
+    /**
+     * Body of valueAsync(), past the constant and trace handling
+     */
+    private CompletableFuture<Object> loadAsync(EvalSession session, Executor executor) {
+        if (this.isCacheable()) {
+            // Cached values complete inline, there is no point paying for an
+            // executor hop to read a value we already have
+            Object cached = session.cache().lookup(this);
+            if (cached != null) {
+                if (Metrics.isEnabled()) {
+                    Metrics.sink().cacheHit(this);
+                }
+                return CompletableFuture.completedFuture(cached);
+            }
+
+            if (Metrics.isEnabled()) {
+                Metrics.sink().cacheMiss(this);
+            }
+        }
+
         CompletableFuture<Object> result = new CompletableFuture<>();
-        CompletableFuture.runAsync(
-                () -> {
-                    try {
-                        if (this.isCacheable()
-                                && session.cache().contains(this.getName())) {
-                            result.complete(session.cache().get(this.getName()));
-                            return;
-                        }
-
-                        this.fetchAsync(session, executor)
-                                .thenAccept((res) -> {
-                                    result.complete(processResult(session, res));
-                                })
-                                .exceptionally((e) -> {
-                                    result.completeExceptionally(e.getCause());
-                                    return null;
-                                });
-                    } catch (Exception e) {
-                        result.completeExceptionally(e);
+        if (this.isCacheable()) {
+            CompletableFuture<Object> inFlight = session.fetchIfAbsent(this, result);
+            if (inFlight != null) {
+                return inFlight;
+            }
+        }
+
+        try {
+            if (this.sharedCache == null) {
+                this.fetchAsync(session, executor, null, result);
+                return result;
+            }
+
+            // The inputs of the shared cache key are read without blocking either
+            this.sharedCache.keyAsync(session, executor).whenComplete((key, e) -> {
+                if (e != null) {
+                    result.completeExceptionally(unwrap(e));
+                    return;
+                }
+
+                try {
+                    Object shared = this.sharedCache.get(key, session, executor);
+                    if (shared != null) {
+                        result.complete(session.cache().putOrGet(this, shared));
+                    } else {
+                        this.fetchAsync(session, executor, key, result);
                     }
-                }, executor);
+                } catch (Exception ex) {
+                    result.completeExceptionally(ex);
+                }
+            });
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+        }
         return result;
     }
 
+    /**
+     * Fetches the argument, completing @result with the processed value. The value is
+     * also put on the shared cache under @key, if given.
+     */
+    private void fetchAsync(EvalSession session,
+                            Executor executor,
+                            List<Object> key,
+                            CompletableFuture<Object> result) {
+        // Only the fetches that are actually async dispatch to an executor. The
+        // processing of the result runs on whichever thread completes the fetch
+        long start = Metrics.isEnabled() ? System.nanoTime() : 0;
+        this.fetchAsync(session, executor).whenComplete((res, e) -> {
+            if (Metrics.isEnabled()) {
+                this.recordAsync(start, e);
+            }
+
+            if (e != null) {
+                result.completeExceptionally(unwrap(e));
+                return;
+            }
+
+            try {
+                Object value = this.processResult(session, res);
+                if (key != null) {
+                    this.sharedCache.put(key, value);
+                }
+                result.complete(value);
+            } catch (Exception ex) {
+                result.completeExceptionally(ex);
+            }
+        });
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null
+                ? e.getCause()
+                : e;
+    }
+
+    /**
+     * Records the completion of an async fetch started at @start
+     */
+    private void recordAsync(long start, Throwable error) {
+        if (error != null) {
+            Metrics.sink().fetchError(this);
+        } else if (start != 0) {
+            Metrics.sink().asyncWait(this, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Gets the value of of the current argument on the blocking evaluation mode (see
+     * Expression.evalBlocking()): the fetch runs on the calling thread, which is
+     * expected to be a virtual thread, and async arguments can block on I/O.
+     * <p>
+     * Like valueAsync(), the value of cacheable arguments is cached and concurrent
+     * fetches of the same argument on the same session are deduplicated.
+     *
+     * @param session  Session of the individual request
+     * @param executor Executor to fork independent async dependencies on
+     * @return Result of the argument fetching
+     */
+    public final Object valueBlocking(EvalSession session, ExecutorService executor) {
+        if (this.constantValue != null) {
+            return this.constantValue;
+        }
+
+        SessionTrace trace = session.trace();
+        if (trace != null) {
+            TraceSpan span = trace.enter(this, this.isCached(session), false);
+            Throwable error = null;
+            try {
+                return this.loadBlocking(session, executor);
+            } catch (RuntimeException e) {
+                error = e;
+                throw e;
+            } finally {
+                trace.exit(span, error);
+            }
+        }
+
+        return this.loadBlocking(session, executor);
+    }
+
+    /**
+     * Body of valueBlocking(), past the constant and trace handling
+     */
+    private Object loadBlocking(EvalSession session, ExecutorService executor) {
+        if (!this.isCacheable()) {
+            return this.checkResult(this.fetchBlocking(session, executor));
+        }
+
+        Object cached = session.cache().lookup(this);
+        if (cached != null) {
+            if (Metrics.isEnabled()) {
+                Metrics.sink().cacheHit(this);
+            }
+            return cached;
+        }
+
+        if (Metrics.isEnabled()) {
+            Metrics.sink().cacheMiss(this);
+        }
+
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = session.fetchIfAbsent(this, result);
+        if (inFlight != null) {
+            try {
+                return inFlight.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        try {
+            List<Object> key = null;
+            if (this.sharedCache != null) {
+                key = this.sharedCache.key(session);
+                Object shared = this.sharedCache.get(key, session, executor);
+                if (shared != null) {
+                    shared = session.cache().putOrGet(this, shared);
+                    result.complete(shared);
+                    return shared;
+                }
+            }
+
+            long start = Metrics.isEnabled() ? System.nanoTime() : 0;
+            Object value = this.processResult(
+                    session, this.fetchBlocking(session, executor));
+            if (start != 0) {
+                Metrics.sink().fetch(this, System.nanoTime() - start);
+            }
+            if (key != null) {
+                this.sharedCache.put(key, value);
+            }
+            result.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            if (Metrics.isEnabled()) {
+                Metrics.sink().fetchError(this);
+            }
+            result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /*
+     * Primitive value accessors.
+     *
+     * Used by compiled expressions to read arguments of type int, long, double and
+     * boolean without boxing. The value is kept unboxed on the session cache, and
+     * read back with a single probe. Like value(), a miss is computed through the
+     * session, so concurrent reads on the same session share a single computation.
+     */
+
+    final int intValue(EvalSession session) {
+        if (this.constantValue != null) {
+            return (Integer) this.constantValue;
+        }
+
+        // Shared cached, measured and traced reads go through the boxed path
+        if (this.sharedCache != null
+                || Metrics.isEnabled()
+                || session.trace() != null) {
+            return (Integer) this.value(session);
+        }
+
+        if (this.isCacheable()) {
+            // Int values never collide with the missing marker
+            long bits = session.cache().lookupBits(this);
+            if (bits != ICache.MISSING) {
+                return (int) bits;
+            }
+        }
+
+        return this.isCacheable()
+                ? (Integer) session.computeIfAbsent(this, () -> this.processResult(
+                        session, this.fetchInt(session)))
+                : this.fetchInt(session);
+    }
+
+    final long longValue(EvalSession session) {
+        if (this.constantValue != null) {
+            return (Long) this.constantValue;
+        }
+
+        // Shared cached, measured and traced reads go through the boxed path
+        if (this.sharedCache != null
+                || Metrics.isEnabled()
+                || session.trace() != null) {
+            return (Long) this.value(session);
+        }
+
+        if (this.isCacheable()) {
+            long bits = session.cache().lookupBits(this);
+            if (bits != ICache.MISSING || session.cache().contains(this)) {
+                return bits;
+            }
+        }
+
+        return this.isCacheable()
+                ? (Long) session.computeIfAbsent(this, () -> this.processResult(
+                        session, this.fetchLong(session)))
+                : this.fetchLong(session);
+    }
+
+    final double doubleValue(EvalSession session) {
+        if (this.constantValue != null) {
+            return (Double) this.constantValue;
+        }
+
+        // Shared cached, measured and traced reads go through the boxed path
+        if (this.sharedCache != null
+                || Metrics.isEnabled()
+                || session.trace() != null) {
+            return (Double) this.value(session);
+        }
+
+        if (this.isCacheable()) {
+            long bits = session.cache().lookupBits(this);
+            if (bits != ICache.MISSING || session.cache().contains(this)) {
+                return Double.longBitsToDouble(bits);
+            }
+        }
+
+        return this.isCacheable()
+                ? (Double) session.computeIfAbsent(this, () -> this.processResult(
+                        session, this.fetchDouble(session)))
+                : this.fetchDouble(session);
+    }
+
+    final boolean booleanValue(EvalSession session) {
+        if (this.constantValue != null) {
+            return (Boolean) this.constantValue;
+        }
+
+        // Shared cached, measured and traced reads go through the boxed path
+        if (this.sharedCache != null
+                || Metrics.isEnabled()
+                || session.trace() != null) {
+            return (Boolean) this.value(session);
+        }
+
+        if (this.isCacheable()) {
+            // Boolean values never collide with the missing marker
+            long bits = session.cache().lookupBits(this);
+            if (bits != ICache.MISSING) {
+                return bits != 0L;
+            }
+        }
+
+        return this.isCacheable()
+                ? (Boolean) session.computeIfAbsent(this, () -> this.processResult(
+                        session, this.fetchBoolean(session)))
+                : this.fetchBoolean(session);
+    }
+
+    /**
+     * If the value of the argument is on the session cache. Only used by traced
+     * sessions, to flag cache hits
+     */
+    private boolean isCached(EvalSession session) {
+        return this.isCacheable() && session.cache().lookup(this) != null;
+    }
+
     /**
      * Does the final type checking to make sure the argument's computed type matches
-     * the expected argument type.
+     * the expected argument type and caches the result.
      *
      * @param session Caller evaluation session
      * @param result  Raw evaluation result
-     * @return The final, processed, result
-     */
-    private Object processResult(EvalSession session, Object result) {
-        if (result != null) {
-            if (this.returnType.isInstance(result)
-                    || this.returnType.isAssignableFrom(result.getClass())
-                    || (primitives.containsKey(this.returnType)
-                    && primitives.get(this.returnType).isInstance(result))) {
-                if (this.isCacheable()) {
-                    session.cache().put(this.getName(), result);
-                }
-                return result;
-            } else {
-                throw new EvaluationException(
-                        "Argument %s (type: %s) is not assignable to"
-                                + " expected (type: %s)",
-                        this.getName(),
-                        result.getClass(),
-                        this.getReturnType());
-            }
-        } else {
+     * @return The final, processed, result: the value cached for the argument
+     */
+    Object processResult(EvalSession session, Object result) {
+        this.checkResult(result);
+        // Concurrent fetches of the argument on the session may have cached another
+        // value first, which is the one to return
+        return this.isCacheable() ? session.cache().putOrGet(this, result) : result;
+    }
+
+    /**
+     * Makes sure the argument's computed type matches the expected argument type.
+     *
+     * @param result Raw evaluation result
+     * @return The checked result
+     * @throws EvaluationException If the result is null or its type doesn't match
+     */
+    Object checkResult(Object result) {
+        if (result == null) {
             throw new EvaluationException(
                     "Argument %s not found", this.getName());
         }
+
+        if (this.returnType.isInstance(result)
+                || this.returnType.isAssignableFrom(result.getClass())
+                || (primitives.containsKey(this.returnType)
+                && primitives.get(this.returnType).isInstance(result))) {
+            return result;
+        }
+
+        throw new EvaluationException(
+                "Argument %s (type: %s) is not assignable to"
+                        + " expected (type: %s)",
+                this.getName(),
+                result.getClass(),
+                this.getReturnType());
     }
 
     /**
@@ -203,8 +688,43 @@ public abstract class Argument {
     protected abstract CompletableFuture<Object> fetchAsync(
             EvalSession session, Executor executor);
 
+    /**
+     * Does the actual fetching of the argument on the blocking evaluation mode. By
+     * default it is the sync fetch.
+     *
+     * @param session  The current evaluation session
+     * @param executor Executor to fork independent async dependencies on
+     * @return The actual argument value
+     * @throws EvaluationException If anything goes wrong with the evaluation of the
+     *                             value
+     */
+    protected Object fetchBlocking(EvalSession session, ExecutorService executor) {
+        return this.fetch(session);
+    }
+
+    /*
+     * Primitive fetching. By default the boxed fetch() result is type checked and
+     * unboxed. Arguments that can produce unboxed values override those.
+     */
+
+    protected int fetchInt(EvalSession session) {
+        return (Integer) this.checkResult(this.fetch(session));
+    }
+
+    protected long fetchLong(EvalSession session) {
+        return (Long) this.checkResult(this.fetch(session));
+    }
+
+    protected double fetchDouble(EvalSession session) {
+        return (Double) this.checkResult(this.fetch(session));
+    }
+
+    protected boolean fetchBoolean(EvalSession session) {
+        return (Boolean) this.checkResult(this.fetch(session));
+    }
+
     /**
      * Returns all arguments, recursively, that this argument depends on
      */
-    public abstract Set<Argument> dependencies();
+    public abstract ArgumentSet dependencies();
 }
@@ -1,9 +1,29 @@
 package com.airbnb.payments.featuresengine.arguments;
 
 import com.airbnb.payments.featuresengine.config.ArgumentConfig;
+import com.airbnb.payments.featuresengine.core.EvalSession;
+import com.airbnb.payments.featuresengine.core.Types;
 import com.airbnb.payments.featuresengine.errors.CompilationException;
+import com.airbnb.payments.featuresengine.expressions.Expression;
+import com.airbnb.payments.featuresengine.expressions.ExpressionBatch;
 import com.airbnb.payments.featuresengine.expressions.ExpressionFactory;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
 /**
  * Responsible for creating all types of Argument (InputArguments, NamedExpressions,
  * ...).
@@ -21,34 +41,412 @@ public class ArgumentFactory {
      */
     public static Argument create(ArgumentRegistry registry,
                                   ArgumentConfig config) {
-        if (registry == null) {
-            throw new RuntimeException(
-                    "ArgumentFactory cannot be used before init() call");
+        checkRegistry(registry);
+
+        synchronized (registry) {
+            Argument argument = build(registry, config, null);
+            registry.register(argument);
+            registry.publish();
+            return argument;
+        }
+    }
+
+    /**
+     * Creates and registers all arguments of @configs, in any order, compiling
+     * them on the common fork-join pool.
+     *
+     * @see #createAll(ArgumentRegistry, Collection, ForkJoinPool)
+     */
+    public static List<Argument> createAll(ArgumentRegistry registry,
+                                           Collection<ArgumentConfig> configs) {
+        return createAll(registry, configs, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates and registers all arguments of @configs. The configs don't need to be
+     * ordered: the dependency graph is built out of the $name references of their
+     * expressions and arguments are created level by level of that graph. All
+     * arguments of a level only depend on arguments of previous levels (or already
+     * registered ones) and are compiled in parallel on the @pool. Registration
+     * itself is sequential, so the slots are assigned deterministically.
+     * <p>
+     * All arguments are published as a single registry version. If any argument fails,
+     * none of them is registered.
+     *
+     * @param registry Registry to register the arguments
+     * @param configs  All arguments to create
+     * @param pool     Pool to compile the arguments on
+     * @return The created arguments, in the same order as @configs
+     * @throws CompilationException When any argument is duplicated, is part of a
+     *                              dependency cycle or fails compiling
+     */
+    public static List<Argument> createAll(ArgumentRegistry registry,
+                                           Collection<ArgumentConfig> configs,
+                                           ForkJoinPool pool) {
+        checkRegistry(registry);
+
+        synchronized (registry) {
+            Map<String, Argument> created;
+            try {
+                created = register(registry, configs, pool, false);
+            } catch (RuntimeException e) {
+                registry.rollback();
+                throw e;
+            }
+            registry.publish();
+
+            return configs.stream()
+                    .map((config) -> created.get(config.getName()))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Updates the arguments of @configs, compiling them on the common fork-join pool.
+     *
+     * @see #update(ArgumentRegistry, Collection, ForkJoinPool)
+     */
+    public static List<Argument> update(ArgumentRegistry registry,
+                                        Collection<ArgumentConfig> configs) {
+        return update(registry, configs, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Updates the arguments of @configs, creating the ones not registered yet. Only
+     * the updated arguments and their transitive dependents, found on the reverse
+     * dependency index of the registry, are recompiled, level by level on the @pool.
+     * Everything else is reused. Dependents are recompiled from the configs they were
+     * created with, against the new versions of their dependencies, so changes
+     * breaking their types fail the update. So are the arguments left on compilation
+     * batches less than half used by the new version, see compact().
+     * <p>
+     * All new versions are published as a single registry version. If any argument
+     * fails, or the configs introduce a dependency cycle, none of them is registered.
+     * Sessions pinned to previous versions, as well as expressions and plans compiled
+     * outside the registry, keep working with the previous versions of the arguments.
+     *
+     * @param registry Registry to update
+     * @param configs  New configs of the arguments
+     * @param pool     Pool to compile the arguments on
+     * @return The recompiled arguments, updated ones and dependents, in slot order
+     * @throws CompilationException When any argument is duplicated, is part of a
+     *                              dependency cycle or fails compiling
+     */
+    public static List<Argument> update(ArgumentRegistry registry,
+                                        Collection<ArgumentConfig> configs,
+                                        ForkJoinPool pool) {
+        checkRegistry(registry);
+
+        synchronized (registry) {
+            Map<String, ArgumentConfig> recompiled = new LinkedHashMap<>();
+            for (ArgumentConfig config : configs) {
+                if (recompiled.put(config.getName(), config) != null) {
+                    throw new CompilationException(
+                            "Argument %s updated twice", config.getName());
+                }
+            }
+
+            Deque<String> pending = new ArrayDeque<>(recompiled.keySet());
+            while (!pending.isEmpty()) {
+                while (!pending.isEmpty()) {
+                    for (Argument dependent : registry.dependents(pending.pop())) {
+                        if (!recompiled.containsKey(dependent.getName())) {
+                            recompiled.put(dependent.getName(), dependent.getConfig());
+                            pending.push(dependent.getName());
+                        }
+                    }
+                }
+                pending.addAll(compact(registry, recompiled));
+            }
+
+            Map<String, Argument> created;
+            try {
+                created = register(registry, recompiled.values(), pool, true);
+            } catch (RuntimeException e) {
+                registry.rollback();
+                throw e;
+            }
+            registry.publish();
+
+            return created.values().stream()
+                    .sorted(Comparator.comparingInt(Argument::getSlot))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Adds to @recompiled the arguments left on batches (see ExpressionBatch) less
+     * than half used once the @recompiled ones are replaced. They are recompiled into
+     * the batch of the update, so the class loader of their batch can be unloaded
+     * with the versions still using it, instead of every update keeping one alive
+     * for a few arguments.
+     *
+     * @return Names of the arguments added
+     */
+    private static List<String> compact(ArgumentRegistry registry,
+                                        Map<String, ArgumentConfig> recompiled) {
+        Map<ExpressionBatch, List<Argument>> remaining = new HashMap<>();
+        for (int slot = 0; slot < registry.size(); ++slot) {
+            Argument argument = registry.get(slot);
+            if (!(argument instanceof NamedExpression)
+                    || recompiled.containsKey(argument.getName())
+                    || registry.get(argument.getName()) != argument) {
+                continue;
+            }
+
+            ExpressionBatch batch = ((NamedExpression) argument).getExpression().batch();
+            if (batch != null) {
+                remaining.computeIfAbsent(batch, (k) -> new ArrayList<>()).add(argument);
+            }
+        }
+
+        List<String> added = new ArrayList<>();
+        for (Map.Entry<ExpressionBatch, List<Argument>> entry : remaining.entrySet()) {
+            if (entry.getValue().size() * 2 < entry.getKey().size()) {
+                for (Argument argument : entry.getValue()) {
+                    recompiled.put(argument.getName(), argument.getConfig());
+                    added.add(argument.getName());
+                }
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Builds and registers the @configs level by level, without publishing them
+     *
+     * @param replace If registered arguments are replaced instead of rejected
+     * @return The registered arguments by name
+     */
+    private static Map<String, Argument> register(ArgumentRegistry registry,
+                                                  Collection<ArgumentConfig> configs,
+                                                  ForkJoinPool pool,
+                                                  boolean replace) {
+        Map<String, Argument> created = new HashMap<>();
+        ExpressionBatch batch = ExpressionFactory.newBatch();
+        for (List<ArgumentConfig> level : levels(registry, configs, replace)) {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            List<Argument> arguments;
+            try {
+                arguments = pool.submit(
+                        () -> level.parallelStream()
+                                .map((config) -> build(
+                                        registry, config, classLoader, batch))
+                                .collect(Collectors.toList()))
+                        .get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompilationException(e, "Interrupted creating arguments");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new CompilationException(e, "Failed creating arguments");
+            }
+
+            for (Argument argument : arguments) {
+                if (replace) {
+                    registry.replace(argument);
+                } else {
+                    registry.register(argument);
+                }
+                created.put(argument.getName(), argument);
+            }
+        }
+
+        if (batch != null) {
+            batch.compile(pool);
+        }
+        return created;
+    }
+
+    /**
+     * Splits the @configs into levels of the dependency graph. Arguments of a level
+     * only reference arguments of previous levels or arguments already registered.
+     *
+     * @param registry Registry the arguments will be registered with
+     * @param configs  All arguments to create
+     * @param replace  If the configs can replace registered arguments
+     * @return The configs grouped by level
+     * @throws CompilationException When any argument is duplicated or the configs
+     *                              have a dependency cycle
+     */
+    private static List<List<ArgumentConfig>> levels(
+            ArgumentRegistry registry,
+            Collection<ArgumentConfig> configs,
+            boolean replace) {
+        Map<String, ArgumentConfig> byName = new HashMap<>();
+        for (ArgumentConfig config : configs) {
+            if ((!replace && registry.exists(config.getName()))
+                    || byName.put(config.getName(), config) != null) {
+                throw new CompilationException(
+                        "Argument %s already registered", config.getName());
+            }
+        }
+
+        // Number of not yet created dependencies of each argument and the arguments
+        // depending on each argument
+        Map<String, Integer> pending = new HashMap<>();
+        Map<String, List<ArgumentConfig>> dependents = new HashMap<>();
+        List<ArgumentConfig> level = new ArrayList<>();
+        for (ArgumentConfig config : configs) {
+            Set<String> dependencies = new HashSet<>();
+            List<String> references = config.getExpression() != null
+                    ? ExpressionFactory.references(config.getExpression())
+                    : Collections.emptyList();
+            for (String name : references) {
+                if (byName.containsKey(name) && dependencies.add(name)) {
+                    dependents.computeIfAbsent(name, (k) -> new ArrayList<>())
+                            .add(config);
+                }
+            }
+
+            pending.put(config.getName(), dependencies.size());
+            if (dependencies.isEmpty()) {
+                level.add(config);
+            }
+        }
+
+        List<List<ArgumentConfig>> levels = new ArrayList<>();
+        int leveled = 0;
+        while (!level.isEmpty()) {
+            levels.add(level);
+            leveled += level.size();
+
+            List<ArgumentConfig> next = new ArrayList<>();
+            for (ArgumentConfig config : level) {
+                for (ArgumentConfig dependent : dependents.getOrDefault(
+                        config.getName(), Collections.emptyList())) {
+                    if (pending.merge(dependent.getName(), -1, Integer::sum) == 0) {
+                        next.add(dependent);
+                    }
+                }
+            }
+            level = next;
+        }
+
+        if (leveled != configs.size()) {
+            throw new CompilationException(
+                    "Circular dependency among arguments %s",
+                    pending.entrySet().stream()
+                            .filter((entry) -> entry.getValue() > 0)
+                            .map(Map.Entry::getKey)
+                            .sorted()
+                            .collect(Collectors.toList()));
         }
 
+        return levels;
+    }
+
+    /**
+     * Same as build() but compiles with the given context @classLoader, which worker
+     * threads don't necessarily share with the caller.
+     */
+    private static Argument build(ArgumentRegistry registry,
+                                  ArgumentConfig config,
+                                  ClassLoader classLoader,
+                                  ExpressionBatch batch) {
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        thread.setContextClassLoader(classLoader);
         try {
+            return build(registry, config, batch);
+        } finally {
+            thread.setContextClassLoader(previous);
+        }
+    }
 
+    /**
+     * Creates the argument described by @config, compiling its expression if any,
+     * without registering it. With a @batch, sync expressions are only compiled once
+     * the batch is compiled. Constants are compiled and folded right away instead, so
+     * their dependents of the next levels inline them.
+     */
+    private static Argument build(ArgumentRegistry registry,
+                                  ArgumentConfig config,
+                                  ExpressionBatch batch) {
+        try {
             Argument argument;
             if (config.getExpression() == null) {
                 argument = new InputArgument(
                         config.getName(),
-                        Class.forName(config.getReturnType()),
+                        Types.forName(config.getReturnType()),
                         config.isCacheable(),
                         config.isAsync());
             } else {
                 argument = new NamedExpression(
                         config.getName(),
-                        ExpressionFactory.create(registry, config),
-                        Class.forName(config.getReturnType()),
+                        ExpressionFactory.create(
+                                registry, config, config.isConstant() ? null : batch),
+                        Types.forName(config.getReturnType()),
                         config.isCacheable(),
                         config.isAsync());
             }
 
-            registry.register(argument);
+            if (config.getSharedCache() != null) {
+                argument.setSharedCache(
+                        new SharedArgumentCache(argument, config.getSharedCache()));
+            }
+
+            argument.setConfig(config);
+            fold(registry, argument);
             return argument;
         } catch (ClassNotFoundException e) {
             throw new CompilationException
                     (e, "Class %s not found", config.getReturnType());
         }
     }
+
+    /**
+     * Makes the @argument a constant if its config declares it so. Its value is
+     * computed once, here, and inlined into every expression compiled after it,
+     * which includes its dependents of the next levels of the same call. Folding is
+     * opt-in: an expression with no dependencies can still read clocks, random
+     * sources or services.
+     *
+     * @throws CompilationException If the argument is declared constant but is not a
+     *                              sync and cacheable named expression without a
+     *                              shared cache, depends on non constant arguments or
+     *                              fails to evaluate
+     */
+    private static void fold(ArgumentRegistry registry, Argument argument) {
+        if (!argument.getConfig().isConstant()) {
+            return;
+        }
+
+        if (!(argument instanceof NamedExpression)
+                || !argument.isCacheable()
+                || argument.isAsync()
+                || argument.getSharedCache() != null) {
+            throw new CompilationException(
+                    "Constant argument %s must be a sync and cacheable named expression"
+                            + " without shared cache",
+                    argument.getName());
+        }
+
+        Expression expression = ((NamedExpression) argument).getExpression();
+        for (Argument dependency : expression.info().getAccessedArguments()) {
+            if (!dependency.isConstant()) {
+                throw new CompilationException(
+                        "Constant argument %s depends on non constant argument %s",
+                        argument.getName(),
+                        dependency.getName());
+            }
+        }
+
+        try {
+            EvalSession session = new EvalSession(new HashMapInputProvider(), registry);
+            argument.setConstantValue(argument.checkResult(expression.eval(session)));
+        } catch (RuntimeException e) {
+            throw new CompilationException(
+                    e, "Failed evaluating constant argument %s", argument.getName());
+        }
+    }
+
+    private static void checkRegistry(ArgumentRegistry registry) {
+        if (registry == null) {
+            throw new RuntimeException(
+                    "ArgumentFactory cannot be used before init() call");
+        }
+    }
 }
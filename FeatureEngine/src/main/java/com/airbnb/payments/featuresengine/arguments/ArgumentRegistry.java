@@ -4,8 +4,17 @@ import com.airbnb.payments.featuresengine.errors.CompilationException;
 import com.airbnb.payments.featuresengine.core.EvalSession;
 import com.airbnb.payments.featuresengine.errors.EvaluationException;
 
-import java.util.HashMap;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 
 /**
@@ -13,20 +22,88 @@ import java.util.concurrent.Executor;
  * <p>
  * All arguments of the engine must be registered with the registry and expressions
  * will further only access the arguments via registry.
+ * <p>
+ * Each argument is given a dense integer slot when registered. Compiled expressions
+ * access their arguments by slot, which avoids hashing the argument name on every
+ * access.
+ * <p>
+ * Registrations are published as immutable, versioned snapshots (see snapshot()).
+ * Slots are append only and published slots are never reused, so all versions share
+ * the same storage and a version is just the number of slots it sees. Publishing a
+ * version is therefore a single volatile write and none of the read paths lock.
+ * Sessions pin the version they resolve argument names against (see
+ * EvalSession.version()), so they keep a consistent view while new arguments are
+ * published. Only the slots of arguments rolled back before being published are
+ * reused: standalone expressions and plans resolve names against published versions,
+ * so nothing but the failed registration itself ever referenced them.
+ * <p>
+ * A version is in use as long as its snapshot is referenced, by sessions, plans or
+ * standalone expressions, or until it is released (see release()). Replaced arguments
+ * no version in use sees anymore are discarded on the next publication, so they and
+ * the classes compiled for them can be collected. Reading a discarded argument, eg.:
+ * evaluating a replaced argument kept around outside of any version, fails with an
+ * EvaluationException.
  */
 public class ArgumentRegistry {
-    private HashMap<String, Argument> arguments;
+    // All arguments registered under each name, in slot order, shared by all
+    // versions. A version sees the last one on a slot below its size
+    private final ConcurrentHashMap<String, Argument[]> arguments;
+    // Names of the arguments directly referencing each name, on any version
+    private final ConcurrentHashMap<String, Set<String>> dependents;
+    // Arguments indexed by their slot, shared by all versions. Slots below the size of
+    // a published version are never written again, growing copies the array
+    private volatile Argument[] slots;
+    private volatile int size;
+    private volatile long version;
+    // Latest published version. Null on snapshots
+    private volatile ArgumentRegistry published;
+    // If the snapshot was handed out by snapshot(). Versions superseded before being
+    // handed out are not in use
+    private volatile boolean shared;
+    // Registry the snapshot was taken from. Null on the registry itself
+    private final ArgumentRegistry head;
+    // Published versions, to find out which are still in use. Null on snapshots
+    private final List<WeakReference<ArgumentRegistry>> versions;
+    // Replaced arguments not discarded yet. Null on snapshots
+    private final List<Argument> replaced;
+    // Interned dependency closures
+    private final ConcurrentHashMap<BitSet, ArgumentSet> closures;
 
     public ArgumentRegistry() {
-        this.arguments = new HashMap<>();
+        this.arguments = new ConcurrentHashMap<>();
+        this.dependents = new ConcurrentHashMap<>();
+        this.slots = new Argument[16];
+        this.closures = new ConcurrentHashMap<>();
+        this.head = null;
+        this.versions = new ArrayList<>();
+        this.replaced = new ArrayList<>();
+        this.published = new ArgumentRegistry(this);
+        this.versions.add(new WeakReference<>(this.published));
+    }
+
+    /**
+     * Snapshot of the current state of @head
+     */
+    private ArgumentRegistry(ArgumentRegistry head) {
+        this.arguments = head.arguments;
+        this.dependents = head.dependents;
+        this.slots = head.slots;
+        this.size = head.size;
+        this.version = head.version;
+        this.closures = head.closures;
+        this.head = head;
+        this.versions = null;
+        this.replaced = null;
     }
 
     /**
-     * Registers the argument within the registry.
+     * Registers the argument within the registry. The argument is visible to the
+     * registry itself right away, for the compilation of its dependents, but only to
+     * new sessions once published.
      *
      * @param argument The argument to be registered
      * @throws CompilationException If an argument with the same name is already
-     *                              registered
+     *                              registered or the registry is a snapshot
      */
     void register(Argument argument) {
         // We work with a single namespace and arguments must be uniquely identified
@@ -36,7 +113,227 @@ public class ArgumentRegistry {
                     "Argument %s already registered", argument.getName());
         }
 
-        this.arguments.put(argument.getName(), argument);
+        this.add(argument);
+    }
+
+    /**
+     * Registers the @argument as the new version of the argument with the same name.
+     * The replaced argument keeps its slot, so the versions and the expressions
+     * referencing it keep working with it.
+     *
+     * @param argument The argument to be registered
+     * @throws CompilationException If the registry is a snapshot
+     */
+    void replace(Argument argument) {
+        this.add(argument);
+    }
+
+    private void add(Argument argument) {
+        checkWritable();
+
+        int slot = this.size;
+        Argument[] slots = this.slots;
+        if (slot == slots.length) {
+            slots = Arrays.copyOf(slots, slots.length * 2);
+        }
+        argument.setSlot(slot);
+        slots[slot] = argument;
+
+        Argument[] versions = this.arguments.get(argument.getName());
+        if (versions == null) {
+            versions = new Argument[]{argument};
+        } else {
+            this.replaced.add(versions[versions.length - 1]);
+            versions = Arrays.copyOf(versions, versions.length + 1);
+            versions[versions.length - 1] = argument;
+        }
+        this.arguments.put(argument.getName(), versions);
+
+        for (Argument dependency : references(argument)) {
+            this.dependents
+                    .computeIfAbsent(
+                            dependency.getName(), (k) -> ConcurrentHashMap.newKeySet())
+                    .add(argument.getName());
+        }
+
+        this.slots = slots;
+        this.size = slot + 1;
+    }
+
+    /**
+     * Publishes all arguments registered so far as a new version, picked up by the
+     * sessions created from now on.
+     */
+    void publish() {
+        checkWritable();
+        if (this.published.size != this.size) {
+            ArgumentRegistry previous = this.published;
+            this.version++;
+            this.published = new ArgumentRegistry(this);
+            this.versions.add(new WeakReference<>(this.published));
+            if (!previous.shared) {
+                this.versions.removeIf((reference) -> reference.get() == previous);
+            }
+            this.discard();
+        }
+    }
+
+    /**
+     * Releases the @version, once the caller knows nothing evaluates on it anymore
+     * (eg.: all sessions pinned to it are done), so the replaced arguments only it
+     * sees are discarded right away instead of once its snapshot is garbage
+     * collected. The latest published version is never released. Evaluating on a
+     * released version may fail reading discarded arguments.
+     *
+     * @param version Snapshot of this registry
+     * @throws CompilationException If the registry is a snapshot or @version is not
+     *                              one of its snapshots
+     */
+    public void release(ArgumentRegistry version) {
+        checkWritable();
+        if (version.head != this) {
+            throw new CompilationException(
+                    "Version %s is not a snapshot of this registry", version.version);
+        }
+
+        synchronized (this) {
+            if (version == this.published) {
+                return;
+            }
+
+            this.versions.removeIf((reference) -> reference.get() == version);
+            this.discard();
+        }
+    }
+
+    /**
+     * Discards the replaced arguments no version in use sees anymore, that is no
+     * version whose size is between their slot and the slot of their replacement.
+     * Their slots are cleared.
+     */
+    private void discard() {
+        List<Integer> sizes = new ArrayList<>();
+        Iterator<WeakReference<ArgumentRegistry>> versions = this.versions.iterator();
+        while (versions.hasNext()) {
+            ArgumentRegistry version = versions.next().get();
+            if (version == null) {
+                versions.remove();
+            } else {
+                sizes.add(version.size);
+            }
+        }
+
+        BitSet discarded = new BitSet();
+        Iterator<Argument> replaced = this.replaced.iterator();
+        while (replaced.hasNext()) {
+            Argument argument = replaced.next();
+            Argument[] history = this.arguments.get(argument.getName());
+            int index = history.length - 1;
+            while (index >= 0 && history[index] != argument) {
+                --index;
+            }
+            if (index < 0 || index == history.length - 1) {
+                // The replacement was rolled back
+                replaced.remove();
+                continue;
+            }
+
+            int from = argument.getSlot();
+            int to = history[index + 1].getSlot();
+            if (sizes.stream().noneMatch((size) -> size > from && size <= to)) {
+                Argument[] remaining = new Argument[history.length - 1];
+                System.arraycopy(history, 0, remaining, 0, index);
+                System.arraycopy(
+                        history, index + 1, remaining, index, remaining.length - index);
+                this.arguments.put(argument.getName(), remaining);
+                this.slots[from] = null;
+                discarded.set(from);
+                replaced.remove();
+            }
+        }
+
+        if (!discarded.isEmpty()) {
+            this.closures.keySet().removeIf((slots) -> slots.intersects(discarded));
+        }
+    }
+
+    /**
+     * Drops all arguments registered since the last published version. Their slots
+     * are handed out again by the next registrations.
+     */
+    void rollback() {
+        checkWritable();
+        int size = this.published.size;
+        for (int slot = this.size - 1; slot >= size; --slot) {
+            String name = this.slots[slot].getName();
+            Argument[] versions = this.arguments.get(name);
+            if (versions.length == 1) {
+                this.arguments.remove(name);
+            } else {
+                this.arguments.put(name, Arrays.copyOf(versions, versions.length - 1));
+            }
+            this.slots[slot] = null;
+        }
+        this.closures.keySet().removeIf((slots) -> slots.length() > size);
+        this.size = size;
+    }
+
+    private void checkWritable() {
+        if (this.head != null) {
+            throw new CompilationException(
+                    "Registry snapshots are immutable. Version %s is one", this.version);
+        }
+    }
+
+    /**
+     * Latest published version of the registry. Snapshots are immutable: they never
+     * see arguments registered after them, and registering with them fails.
+     *
+     * @return The snapshot, or this registry if it is already a snapshot
+     */
+    public ArgumentRegistry snapshot() {
+        if (this.head != null) {
+            return this;
+        }
+
+        while (true) {
+            ArgumentRegistry published = this.published;
+            published.shared = true;
+            // Publications racing with this call see the flag unless they already
+            // replaced the version, in which case the new one is handed out instead
+            if (this.published == published) {
+                return published;
+            }
+        }
+    }
+
+    /**
+     * @return True if the registry is an immutable snapshot
+     */
+    public boolean isSnapshot() {
+        return this.head != null;
+    }
+
+    /**
+     * Version of the registry, incremented on every publication. Arguments registered
+     * but not yet published are seen by the registry itself under the version they
+     * will be published with.
+     *
+     * @return The version number
+     */
+    public long version() {
+        return this.head != null || this.size == this.published.size
+                ? this.version
+                : this.version + 1;
+    }
+
+    /**
+     * Number of registered arguments. Slots are always in the [0, size()) range.
+     *
+     * @return The number of registered arguments
+     */
+    public int size() {
+        return this.size;
     }
 
     /**
@@ -46,7 +343,18 @@ public class ArgumentRegistry {
      * @return True if name is registered. False otherwise.
      */
     public boolean exists(String name) {
-        return this.arguments.containsKey(name);
+        return this.lookup(name) != null;
+    }
+
+    /**
+     * Gets the slot of the argument with the given @name.
+     *
+     * @param name The name of the argument
+     * @return The argument slot or -1 if the argument is not registered
+     */
+    public int slotOf(String name) {
+        Argument argument = this.lookup(name);
+        return argument == null ? -1 : argument.getSlot();
     }
 
     /**
@@ -59,11 +367,46 @@ public class ArgumentRegistry {
      *                             argument's fetching/computing fails
      */
     public Object value(String name, EvalSession session) {
-        if (!this.exists(name)) {
+        Argument argument = this.view(session).lookup(name);
+        if (argument == null) {
             throw new EvaluationException("Argument %s not registered", name);
         }
 
-        return this.arguments.get(name).value(session);
+        return argument.value(session);
+    }
+
+    /**
+     * Fetches (or possibly computes) the value for the argument on the given @slot.
+     * This is the access path used by compiled expressions.
+     *
+     * @param slot    Slot of the argument
+     * @param session Current evaluation session
+     * @return The argument value
+     * @throws EvaluationException If the argument's fetching/computing fails
+     */
+    public Object value(int slot, EvalSession session) {
+        return this.live(slot).value(session);
+    }
+
+    /*
+     * Unboxed access paths used by compiled expressions for arguments of type int,
+     * long, double and boolean.
+     */
+
+    public int intValue(int slot, EvalSession session) {
+        return this.live(slot).intValue(session);
+    }
+
+    public long longValue(int slot, EvalSession session) {
+        return this.live(slot).longValue(session);
+    }
+
+    public double doubleValue(int slot, EvalSession session) {
+        return this.live(slot).doubleValue(session);
+    }
+
+    public boolean booleanValue(int slot, EvalSession session) {
+        return this.live(slot).booleanValue(session);
     }
 
     /**
@@ -78,11 +421,35 @@ public class ArgumentRegistry {
      */
     public CompletableFuture<Object> valueAsync(
             String name, EvalSession session, Executor executor) {
-        if (!this.exists(name)) {
+        Argument argument = this.view(session).lookup(name);
+        if (argument == null) {
             throw new EvaluationException("Argument %s not registered", name);
         }
 
-        return this.arguments.get(name).valueAsync(session, executor);
+        return argument.valueAsync(session, executor);
+    }
+
+    /**
+     * Gets the set of the arguments on @slots, shared by all callers asking for the
+     * same slots.
+     *
+     * @param slots Slots of registered arguments. Must not be modified afterwards
+     * @return The interned set
+     */
+    public ArgumentSet closure(BitSet slots) {
+        if (slots.isEmpty()) {
+            return ArgumentSet.EMPTY;
+        }
+
+        ArgumentSet closure = this.closures.get(slots);
+        if (closure == null) {
+            ArgumentSet created = new ArgumentSet(this, slots);
+            closure = this.closures.putIfAbsent(slots, created);
+            if (closure == null) {
+                closure = created;
+            }
+        }
+        return closure;
     }
 
     /**
@@ -91,10 +458,110 @@ public class ArgumentRegistry {
      * @param name The name of the argument
      */
     public Argument get(String name) {
-        if (!this.exists(name)) {
+        Argument argument = this.lookup(name);
+        if (argument == null) {
             throw new CompilationException("Argument %s not registered", name);
         }
 
-        return this.arguments.get(name);
+        return argument;
+    }
+
+    /**
+     * Gets the Argument object registered on the given @slot
+     *
+     * @param slot The slot of the argument
+     * @return The argument or null if it was discarded
+     */
+    public Argument get(int slot) {
+        return this.slots[slot];
+    }
+
+    /**
+     * Gets the argument on @slot for evaluation
+     *
+     * @throws EvaluationException If the argument was discarded
+     */
+    private Argument live(int slot) {
+        Argument argument = this.slots[slot];
+        if (argument == null) {
+            throw new EvaluationException(
+                    "Argument on slot %s was discarded, no registry version in use "
+                            + "sees it anymore", slot);
+        }
+
+        return argument;
+    }
+
+    /**
+     * Gets the arguments directly referencing the argument named @name on this
+     * version of the registry. Dependents of dependents are not included.
+     *
+     * @param name The name of the argument
+     * @return The dependents, in slot order
+     */
+    public List<Argument> dependents(String name) {
+        Set<String> names = this.dependents.get(name);
+        if (names == null) {
+            return Collections.emptyList();
+        }
+
+        List<Argument> dependents = new ArrayList<>();
+        for (String dependentName : names) {
+            // The index keeps the dependents of all versions
+            Argument dependent = this.lookup(dependentName);
+            if (dependent != null) {
+                for (Argument dependency : references(dependent)) {
+                    if (dependency.getName().equals(name)) {
+                        dependents.add(dependent);
+                        break;
+                    }
+                }
+            }
+        }
+        dependents.sort(Comparator.comparingInt(Argument::getSlot));
+        return dependents;
+    }
+
+    /**
+     * Arguments directly referenced by the @argument
+     */
+    private static Set<Argument> references(Argument argument) {
+        return argument instanceof NamedExpression
+                ? ((NamedExpression) argument).getExpression().info()
+                .getAccessedArguments()
+                : Collections.emptySet();
+    }
+
+    /**
+     * Gets the argument named @name on this version of the registry
+     *
+     * @return The argument or null if not registered
+     */
+    private Argument lookup(String name) {
+        Argument[] versions = this.arguments.get(name);
+        if (versions == null) {
+            return null;
+        }
+
+        int size = this.size;
+        for (int i = versions.length - 1; i >= 0; --i) {
+            if (versions[i].getSlot() < size) {
+                return versions[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Version of the registry names are resolved against on the @session: the one
+     * pinned by the session or, for snapshots, the snapshot itself.
+     */
+    private ArgumentRegistry view(EvalSession session) {
+        if (this.head != null || session == null) {
+            return this;
+        }
+
+        ArgumentRegistry version = session.version();
+        return version != null && version.head == this ? version : this;
     }
 }
@@ -0,0 +1,103 @@
+package com.airbnb.payments.featuresengine.arguments;
+
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable set of arguments of a registry, stored as a bitset over their slots.
+ * <p>
+ * Used for the dependency closures of the arguments and expressions: a closure costs
+ * one bit per registry slot instead of a hash set entry per dependency, and
+ * intersecting two closures is a bitwise AND. Closures are interned by the registry
+ * (see ArgumentRegistry.closure()), so all arguments with the same dependencies
+ * share a single instance.
+ * <p>
+ * Iteration is in slot order, which is also a topological order.
+ */
+public final class ArgumentSet extends AbstractSet<Argument> {
+    public static final ArgumentSet EMPTY = new ArgumentSet(null, new BitSet());
+
+    private final ArgumentRegistry registry;
+    private final BitSet slots;
+    private final int size;
+
+    /**
+     * @param registry Registry the slots refer to
+     * @param slots    Slots of the arguments. Must not be modified afterwards
+     */
+    ArgumentSet(ArgumentRegistry registry, BitSet slots) {
+        this.registry = registry;
+        this.slots = slots;
+        this.size = slots.cardinality();
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof Argument)) {
+            return false;
+        }
+
+        // Arguments are equal by name, so arguments of other registries are
+        // looked up by name
+        Argument argument = (Argument) o;
+        int slot = argument.getSlot();
+        if (slot >= 0 && this.slots.get(slot) && this.registry.get(slot) == argument) {
+            return true;
+        }
+        return this.registry != null
+                && this.containsSlot(this.registry.slotOf(argument.getName()));
+    }
+
+    /**
+     * @param slot Any slot
+     * @return True if the argument on the @slot belongs to the set
+     */
+    public boolean containsSlot(int slot) {
+        return slot >= 0 && this.slots.get(slot);
+    }
+
+    /**
+     * @param slots Slots of other arguments
+     * @return True if any argument of the set is on @slots
+     */
+    public boolean intersects(BitSet slots) {
+        return this.slots.intersects(slots);
+    }
+
+    /**
+     * Adds the slots of all arguments of the set to @slots
+     */
+    public void addTo(BitSet slots) {
+        slots.or(this.slots);
+    }
+
+    @Override
+    public Iterator<Argument> iterator() {
+        return new Iterator<Argument>() {
+            private int next = slots.nextSetBit(0);
+
+            @Override
+            public boolean hasNext() {
+                return this.next >= 0;
+            }
+
+            @Override
+            public Argument next() {
+                if (this.next < 0) {
+                    throw new NoSuchElementException();
+                }
+
+                Argument argument = registry.get(this.next);
+                this.next = slots.nextSetBit(this.next + 1);
+                return argument;
+            }
+        };
+    }
+}
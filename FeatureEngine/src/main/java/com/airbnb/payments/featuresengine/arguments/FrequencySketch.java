@@ -0,0 +1,92 @@
+package com.airbnb.payments.featuresengine.arguments;
+
+/**
+ * Count-min sketch estimating how many times each key was read recently, used as the
+ * admission filter of the SharedArgumentCache (as on TinyLFU).
+ * <p>
+ * Each key has a 4 bit counter on each of the rows, picked by a different hash, and
+ * its frequency is the smallest of them. Once the number of increments reaches ten
+ * times the width all counters are halved, so the frequencies reflect the recent
+ * reads only.
+ * <p>
+ * Updates are not synchronized. Racing increments may be lost, which only makes the
+ * estimates lower, as they are anyway approximate.
+ */
+final class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    // Odd multipliers of the hash of each row
+    private static final int[] SEEDS = {
+            0x97cb3127, 0x0ba8b4b5, 0x8c2cba0b, 0xd3a4b8b1,
+    };
+
+    private final byte[] counters;
+    private final int width;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param maximumSize Maximum number of entries of the cache the sketch filters
+     */
+    FrequencySketch(long maximumSize) {
+        int size = (int) Math.min(Math.max(maximumSize, 16), 1 << 24);
+        this.width = Integer.highestOneBit(size - 1) << 1;
+        this.counters = new byte[DEPTH * this.width];
+        this.sampleSize = 10 * this.width;
+    }
+
+    /**
+     * Records a read of the @key
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < DEPTH; ++row) {
+            int index = this.index(hash, row);
+            if (this.counters[index] < MAX_COUNT) {
+                ++this.counters[index];
+                added = true;
+            }
+        }
+
+        if (added && ++this.additions >= this.sampleSize) {
+            this.reset();
+        }
+    }
+
+    /**
+     * Estimated number of recent reads of the @key
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; ++row) {
+            frequency = Math.min(frequency, this.counters[this.index(hash, row)]);
+        }
+        return frequency;
+    }
+
+    /**
+     * Halves all counters
+     */
+    private void reset() {
+        for (int i = 0; i < this.counters.length; ++i) {
+            this.counters[i] >>= 1;
+        }
+        this.additions >>>= 1;
+    }
+
+    /**
+     * Index on counters of the counter of the @row for the key of @hash
+     */
+    private int index(int hash, int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 17;
+        return row * this.width + (h & (this.width - 1));
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
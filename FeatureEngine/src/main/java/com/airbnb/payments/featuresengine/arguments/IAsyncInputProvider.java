@@ -0,0 +1,44 @@
+package com.airbnb.payments.featuresengine.arguments;
+
+import com.airbnb.payments.featuresengine.errors.EvaluationException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Input provider backed by a non-blocking client, eg.: an async RPC or DB driver.
+ * <p>
+ * Async input arguments read from it natively: the argument future is chained on
+ * the one returned by getAsync(), so no executor thread blocks waiting on the
+ * input. Sync reads block on getAsync(), so inputs served by the client should be
+ * configured as async.
+ */
+public interface IAsyncInputProvider extends IInputProvider {
+    /**
+     * Gets the object mapping to the @name without blocking
+     *
+     * @param name The key for the value
+     * @return Future completed with the object, or with null if there is none
+     */
+    CompletableFuture<Object> getAsync(String name);
+
+    /**
+     * Blocks until getAsync() completes.
+     *
+     * @param name The key for the value
+     * @return The object if any
+     * @throws EvaluationException If the argument can't be read
+     */
+    @Override
+    default Object get(String name) {
+        try {
+            return this.getAsync(name).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new EvaluationException(
+                    e.getCause(), "Error reading input %s", name);
+        }
+    }
+}
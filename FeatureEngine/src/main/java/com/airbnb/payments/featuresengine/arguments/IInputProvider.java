@@ -2,11 +2,16 @@ package com.airbnb.payments.featuresengine.arguments;
 
 import com.airbnb.payments.featuresengine.errors.EvaluationException;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * All user input will be provided to the engine via an implementation of this interface
  * <p>
  * The most simple way to implement this interface would be a HashMap. However users
  * can choose to have arguments directly provided from DBs, files, system calls...
+ * Inputs served by non-blocking clients should implement IAsyncInputProvider.
  */
 public interface IInputProvider {
     /**
@@ -25,4 +30,32 @@ public interface IInputProvider {
      * @return True if it exists. False otherwise.
      */
     boolean exists(String name);
+
+    /**
+     * Gets all inputs named in @names in a single call. Providers backed by a remote
+     * store should override it, along with isBulk(), so the engine fetches all inputs
+     * of an evaluation in one round trip instead of one per input.
+     *
+     * @param names The names of the inputs to get
+     * @return The values of the existing inputs, by name. Missing inputs are left out
+     */
+    default Map<String, Object> getAll(Collection<String> names) {
+        Map<String, Object> values = new HashMap<>();
+        for (String name : names) {
+            if (this.exists(name)) {
+                values.put(name, this.get(name));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * If getAll() is cheaper than getting the inputs one by one. When true, the engine
+     * prefetches all inputs an evaluation depends on with a single getAll() call.
+     *
+     * @return True if the provider has a bulk getAll(). False otherwise.
+     */
+    default boolean isBulk() {
+        return false;
+    }
 }
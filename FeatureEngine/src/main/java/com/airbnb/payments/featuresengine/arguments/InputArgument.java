@@ -3,10 +3,7 @@ package com.airbnb.payments.featuresengine.arguments;
 import com.airbnb.payments.featuresengine.core.EvalSession;
 import com.airbnb.payments.featuresengine.errors.EvaluationException;
 
-import java.util.HashSet;
-import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executor;
 
 /**
@@ -15,9 +12,6 @@ import java.util.concurrent.Executor;
  */
 public class InputArgument extends Argument {
 
-    // Input arguments have no dependencies, they are leafs.
-    private static Set<Argument> DEPENDENCIES = new HashSet<>();
-
     /**
      * See |Argument| class for details
      */
@@ -27,48 +21,110 @@ public class InputArgument extends Argument {
     }
 
     /**
-     * Fetches the argument from the IInputProvider provided by the caller
+     * Fetches the argument from the IInputProvider provided by the caller, unless it
+     * was already prefetched in bulk
      */
     @Override
     protected final Object fetch(EvalSession session) {
+        Object prefetched = session.prefetched(this.getName());
+        if (prefetched == EvalSession.MISSING) {
+            throw this.notFound();
+        }
+        if (prefetched != null) {
+            return prefetched;
+        }
+
+        if (session.inputs() instanceof IAsyncInputProvider) {
+            // Missing inputs are only known once read, and fail as null results
+            return session.inputs().get(this.getName());
+        }
+
         if (!session.inputs().exists(this.getName())) {
-            throw new EvaluationException(
-                    "Argument %s not found on argument provider", this.getName());
+            throw this.notFound();
         }
 
         return session.inputs().get(this.getName());
     }
 
     /**
-     * Fetches the value by actually computing the evaluation of the compiled
-     * expression
+     * Fetches the argument from the IInputProvider provided by the caller.
+     * <p>
+     * IAsyncInputProvider inputs are read natively, returning the provider future
+     * without blocking any thread. Reading the other providers is sync, so it is done
+     * inline and returned as an already completed future.
      */
+    @Override
     protected CompletableFuture<Object> fetchAsync(
             EvalSession session, Executor executor) {
-        if (!session.inputs().exists(this.getName())) {
-            throw new EvaluationException(
-                    "Argument %s not found on argument provider", this.getName());
+        if (session.inputs() instanceof IAsyncInputProvider
+                && session.prefetched(this.getName()) == null) {
+            return ((IAsyncInputProvider) session.inputs()).getAsync(this.getName());
+        }
+
+        return CompletableFuture.completedFuture(this.fetch(session));
+    }
+
+    /**
+     * Reads the input as part of the key of the shared cache of an argument depending
+     * on it (see SharedArgumentCache). Unlike value(), an input the provider doesn't
+     * have reads as null instead of failing, since the argument may not need it.
+     *
+     * @param session The current evaluation session
+     * @return The input value or null if the provider doesn't have it
+     */
+    final Object keyValue(EvalSession session) {
+        if (session.prefetched(this.getName()) == EvalSession.MISSING) {
+            return null;
+        }
+        if (this.isKnown(session)) {
+            return this.value(session);
+        }
+
+        if (session.inputs() instanceof IAsyncInputProvider) {
+            // Missing inputs are only known once read
+            return this.keyResult(session, session.inputs().get(this.getName()));
+        }
+
+        return session.inputs().exists(this.getName()) ? this.value(session) : null;
+    }
+
+    /**
+     * Same as keyValue(), reading IAsyncInputProvider inputs without blocking
+     */
+    final CompletableFuture<Object> keyValueAsync(
+            EvalSession session, Executor executor) {
+        if (session.inputs() instanceof IAsyncInputProvider && !this.isKnown(session)) {
+            return ((IAsyncInputProvider) session.inputs())
+                    .getAsync(this.getName())
+                    .thenApply((value) -> this.keyResult(session, value));
         }
 
-        // We don't support user provided async arguments, Those must always be an
-        // expression.
-        // We wrap the sync fetch inside a suppleAsync call to make this method work
-        // on all scenarios
-        return CompletableFuture.supplyAsync(
-                () -> {
-                    try {
-                        return session.inputs().get(this.getName());
-                    } catch (Exception e) {
-                        throw new CompletionException(e);
-                    }
-                }, executor);
+        return CompletableFuture.completedFuture(this.keyValue(session));
+    }
+
+    /**
+     * If the session already has the input value, cached or prefetched
+     */
+    private boolean isKnown(EvalSession session) {
+        return (this.isCacheable() && session.cache().lookup(this) != null)
+                || session.prefetched(this.getName()) != null;
+    }
+
+    private Object keyResult(EvalSession session, Object value) {
+        return value != null ? this.processResult(session, value) : null;
+    }
+
+    private EvaluationException notFound() {
+        return new EvaluationException(
+                "Argument %s not found on argument provider", this.getName());
     }
 
     /**
      * Returns all arguments, recursively, that this argument depends on
      */
     @Override
-    public Set<Argument> dependencies() {
-        return DEPENDENCIES;
+    public ArgumentSet dependencies() {
+        // Input arguments have no dependencies, they are leafs.
+        return ArgumentSet.EMPTY;
     }
 }
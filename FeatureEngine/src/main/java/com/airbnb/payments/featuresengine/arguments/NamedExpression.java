@@ -5,9 +5,9 @@ import com.airbnb.payments.featuresengine.core.EvalSession;
 import com.airbnb.payments.featuresengine.expressions.Expression;
 import lombok.Getter;
 
-import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Those expressions can be accessed from any other expression using their names.
@@ -61,11 +61,39 @@ public class NamedExpression extends Argument {
         return this.expression.evalAsync(session, executor);
     }
 
+    /**
+     * Fetches the value by evaluating the compiled expression on the blocking mode
+     */
+    @Override
+    protected Object fetchBlocking(EvalSession session, ExecutorService executor) {
+        return this.expression.evalBlocking(session, executor);
+    }
+
+    @Override
+    protected int fetchInt(EvalSession session) {
+        return this.expression.evalInt(session);
+    }
+
+    @Override
+    protected long fetchLong(EvalSession session) {
+        return this.expression.evalLong(session);
+    }
+
+    @Override
+    protected double fetchDouble(EvalSession session) {
+        return this.expression.evalDouble(session);
+    }
+
+    @Override
+    protected boolean fetchBoolean(EvalSession session) {
+        return this.expression.evalBoolean(session);
+    }
+
     /**
      * Returns all arguments, recursively, that this argument depends on
      */
     @Override
-    public Set<Argument> dependencies() {
+    public ArgumentSet dependencies() {
         return this.expression.info().getDependentArguments();
     }
 }
@@ -0,0 +1,276 @@
+package com.airbnb.payments.featuresengine.arguments;
+
+import com.airbnb.payments.featuresengine.config.SharedCacheConfig;
+import com.airbnb.payments.featuresengine.core.EvalSession;
+import com.airbnb.payments.featuresengine.errors.CompilationException;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of the values of a single argument shared across sessions.
+ * <p>
+ * An argument value only depends on the input arguments down its dependency chain,
+ * so the values are keyed by the values of those inputs. Inputs the provider doesn't
+ * have are keyed as null rather than failing, as the argument may only read them on
+ * branches it doesn't take. The cache is bounded in
+ * size and values expire after the configured TTL. Optionally, values older than
+ * the refresh period are still served while a single background fetch refreshes
+ * them (stale-while-revalidate).
+ * <p>
+ * Eviction is frequency aware: a FrequencySketch counts the reads of each key, and
+ * once the cache is full a new value is only admitted if its key was read before,
+ * recently. Keys read a single time, like the ones of a scan, don't evict the
+ * frequently read ones. Among the admitted values the least recently used is
+ * evicted.
+ * <p>
+ * The refresh runs on its own session, holding only the inputs of the key, so it
+ * doesn't depend on the lifetime of the session that triggered it.
+ */
+public class SharedArgumentCache {
+    private Argument argument;
+    // Input arguments the argument value depends on, by slot
+    private InputArgument[] inputs;
+    private Cache<List<Object>, Entry> entries;
+    private long maximumSize;
+    // Recent reads of each key, admitting new values once the cache is full
+    private FrequencySketch sketch;
+    private long refreshNanos;
+    // Executor refreshes run on, if configured
+    private Executor refreshExecutor;
+    // Keys being refreshed in the background
+    private Set<List<Object>> refreshing;
+    private LongAdder refreshes;
+    private LongAdder rejections;
+
+    /**
+     * A cached value and when it was fetched
+     */
+    private static final class Entry {
+        private final Object value;
+        private final long fetched;
+
+        private Entry(Object value) {
+            this.value = value;
+            this.fetched = System.nanoTime();
+        }
+    }
+
+    /**
+     * @param argument Argument whose values are cached
+     * @param config   Cache configuration
+     * @throws CompilationException If the argument or the configuration can't be
+     *                              shared cached
+     */
+    SharedArgumentCache(Argument argument, SharedCacheConfig config) {
+        if (!(argument instanceof NamedExpression) || !argument.isCacheable()) {
+            throw new CompilationException(
+                    "Only cacheable named expressions can be shared cached."
+                            + " Argument %s is not",
+                    argument.getName());
+        }
+
+        if (config.getMaximumSize() <= 0
+                || config.getTtl() == null
+                || config.getTtl().isNegative()
+                || config.getTtl().isZero()
+                || (config.getRefreshAfter() != null
+                && config.getRefreshAfter().compareTo(config.getTtl()) >= 0)) {
+            throw new CompilationException(
+                    "Invalid shared cache of argument %s. It must have a positive size"
+                            + " and TTL, and refresh before the TTL",
+                    argument.getName());
+        }
+
+        this.argument = argument;
+        this.inputs = argument.dependencies().stream()
+                .filter((dependency) -> dependency instanceof InputArgument)
+                .sorted(Comparator.comparingInt(Argument::getSlot))
+                .toArray(InputArgument[]::new);
+        this.entries = CacheBuilder.newBuilder()
+                .maximumSize(config.getMaximumSize())
+                .expireAfterWrite(config.getTtl().toNanos(), TimeUnit.NANOSECONDS)
+                .recordStats()
+                .build();
+        this.maximumSize = config.getMaximumSize();
+        this.sketch = new FrequencySketch(config.getMaximumSize());
+        this.refreshNanos = config.getRefreshAfter() != null
+                ? config.getRefreshAfter().toNanos()
+                : Long.MAX_VALUE;
+        this.refreshExecutor = config.getRefreshExecutor();
+        this.refreshing = ConcurrentHashMap.newKeySet();
+        this.refreshes = new LongAdder();
+        this.rejections = new LongAdder();
+    }
+
+    /**
+     * Builds the cache key of the argument out of the session inputs
+     *
+     * @param session Current evaluation session
+     * @return The values of all inputs the argument depends on, null for the missing
+     * ones
+     */
+    List<Object> key(EvalSession session) {
+        Object[] values = new Object[this.inputs.length];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = this.inputs[i].keyValue(session);
+        }
+        return Arrays.asList(values);
+    }
+
+    /**
+     * Same as key(), reading inputs of IAsyncInputProvider without blocking
+     *
+     * @param session  Current evaluation session
+     * @param executor Executor to read the inputs on
+     * @return Future completed with the key
+     */
+    CompletableFuture<List<Object>> keyAsync(EvalSession session, Executor executor) {
+        CompletableFuture<?>[] values = new CompletableFuture<?>[this.inputs.length];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = this.inputs[i].keyValueAsync(session, executor);
+        }
+
+        return CompletableFuture.allOf(values).thenApply((done) -> {
+            Object[] key = new Object[values.length];
+            for (int i = 0; i < key.length; ++i) {
+                key[i] = values[i].join();
+            }
+            return Arrays.asList(key);
+        });
+    }
+
+    /**
+     * Gets the value cached under @key, refreshing it in the background if it is
+     * stale.
+     *
+     * @param key      Key built by key()
+     * @param session  Session of the request reading the value
+     * @param executor Executor of the reading evaluation, null for sync ones. The
+     *                 refresh runs on it, unless the configuration sets one
+     * @return The cached value or null if there is none
+     */
+    Object get(List<Object> key, EvalSession session, Executor executor) {
+        this.sketch.increment(key);
+        Entry entry = this.entries.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (System.nanoTime() - entry.fetched > this.refreshNanos) {
+            this.refresh(key, session.registry(), this.refreshExecutor(executor));
+        }
+        return entry.value;
+    }
+
+    /**
+     * Caches the @value under @key. Once the cache is full, values of new keys are
+     * only admitted if the key was read before, recently.
+     */
+    void put(List<Object> key, Object value) {
+        if (this.entries.size() >= this.maximumSize
+                && !this.entries.asMap().containsKey(key)
+                && this.sketch.frequency(key) < 2) {
+            this.rejections.increment();
+            return;
+        }
+
+        this.entries.put(key, new Entry(value));
+    }
+
+    /**
+     * Executor to refresh values read by an evaluation running on @executor
+     */
+    private Executor refreshExecutor(Executor executor) {
+        if (this.refreshExecutor != null) {
+            return this.refreshExecutor;
+        }
+        return executor != null ? executor : ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Fetches the value of @key again on a new session and replaces the cached one.
+     * Only one refresh per key runs at a time. Failed refreshes keep the stale value
+     * until it expires.
+     */
+    private void refresh(List<Object> key, ArgumentRegistry registry, Executor executor) {
+        if (!this.refreshing.add(key)) {
+            return;
+        }
+
+        try {
+            HashMapInputProvider inputs = new HashMapInputProvider();
+            for (int i = 0; i < this.inputs.length; ++i) {
+                if (key.get(i) != null) {
+                    inputs.put(this.inputs[i].getName(), key.get(i));
+                }
+            }
+            EvalSession session = new EvalSession(inputs, registry);
+
+            CompletableFuture<Object> fetch = this.argument.isAsync()
+                    ? this.argument.fetchAsync(session, executor)
+                    : CompletableFuture.supplyAsync(
+                            () -> this.argument.fetch(session), executor);
+            fetch.whenComplete((value, e) -> {
+                try {
+                    if (e == null) {
+                        this.entries.put(
+                                key, new Entry(this.argument.checkResult(value)));
+                        this.refreshes.increment();
+                    }
+                } finally {
+                    this.refreshing.remove(key);
+                }
+            });
+        } catch (RuntimeException e) {
+            this.refreshing.remove(key);
+        }
+    }
+
+    /**
+     * Hit, miss and eviction statistics of the cache
+     */
+    public CacheStats stats() {
+        return this.entries.stats();
+    }
+
+    /**
+     * Number of background refreshes completed
+     */
+    public long refreshCount() {
+        return this.refreshes.sum();
+    }
+
+    /**
+     * Number of values not cached because the cache was full and their key was not
+     * read often enough
+     */
+    public long rejectionCount() {
+        return this.rejections.sum();
+    }
+
+    /**
+     * Approximate number of cached values
+     */
+    public long size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Drops all cached values
+     */
+    public void invalidateAll() {
+        this.entries.invalidateAll();
+    }
+}
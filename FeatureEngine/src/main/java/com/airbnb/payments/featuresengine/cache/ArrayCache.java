@@ -0,0 +1,247 @@
+package com.airbnb.payments.featuresengine.cache;
+
+import com.airbnb.payments.featuresengine.arguments.Argument;
+import com.airbnb.payments.featuresengine.arguments.ArgumentRegistry;
+import com.airbnb.payments.featuresengine.core.Types;
+import com.airbnb.payments.featuresengine.errors.EvaluationException;
+
+import java.util.Arrays;
+
+/**
+ * Cache implementation backed by flat arrays indexed by the argument registry slots.
+ * A presence bitset tracks which slots hold a value. Arguments of type int, long,
+ * double and boolean are stored unboxed.
+ * <p>
+ * This cache is not thread safe and must only be used by sync sessions. Async sessions
+ * should use the ConcurrentArrayCache.
+ */
+public class ArrayCache implements ICache {
+
+    private ArgumentRegistry registry;
+    private Object[] values;
+    private long[] primitives;
+    private long[] present;
+
+    /**
+     * Creates a cache sized to hold all arguments currently in the @registry.
+     * Arguments registered later are still accepted and grow the cache.
+     *
+     * @param registry Registry whose argument slots index the cache
+     */
+    public ArrayCache(ArgumentRegistry registry) {
+        this.registry = registry;
+        this.values = new Object[registry.size()];
+        this.primitives = new long[registry.size()];
+        this.present = new long[words(registry.size())];
+    }
+
+    /**
+     * Checks if the key is in the cache
+     *
+     * @param key searching key
+     * @return True if it is. False otherwise.
+     */
+    @Override
+    public boolean contains(String key) {
+        int slot = this.registry.slotOf(key);
+        return slot >= 0 && this.isPresent(slot);
+    }
+
+    /**
+     * Adds the key/value to the cache.
+     *
+     * @param key   Key to search for the value
+     * @param value Value to be cached
+     * @throws EvaluationException if key is not a registered argument
+     */
+    @Override
+    public void put(String key, Object value) {
+        int slot = this.registry.slotOf(key);
+        if (slot < 0) {
+            throw new EvaluationException("Argument %s not registered", key);
+        }
+
+        this.put(this.registry.get(slot), value);
+    }
+
+    /**
+     * @param key The key to search for
+     * @return The value if any
+     * @throws EvaluationException if key is not present
+     */
+    @Override
+    public Object get(String key) {
+        Object value = this.lookup(key);
+        if (value == null) {
+            throw new EvaluationException("Key %s not present in cache", key);
+        }
+
+        return value;
+    }
+
+    /**
+     * @param key The key to search for
+     * @return The value if any. Null otherwise.
+     */
+    @Override
+    public Object lookup(String key) {
+        int slot = this.registry.slotOf(key);
+        return slot >= 0 ? this.lookup(this.registry.get(slot)) : null;
+    }
+
+    /**
+     * @param argument The argument to search for
+     * @return The value cached for the argument or null
+     */
+    @Override
+    public Object lookup(Argument argument) {
+        int slot = argument.getSlot();
+        if (!Types.isSpecialized(argument.getReturnType())) {
+            return slot >= 0 && slot < this.values.length ? this.values[slot] : null;
+        }
+
+        return this.isPresent(slot)
+                ? PrimitiveBits.box(argument.getReturnType(), this.primitives[slot])
+                : null;
+    }
+
+    /**
+     * @param argument Argument that evaluated to the value
+     * @param value    Value to be cached
+     */
+    @Override
+    public void put(Argument argument, Object value) {
+        int slot = registeredSlot(argument);
+        if (Types.isSpecialized(argument.getReturnType())) {
+            this.putBits(slot, PrimitiveBits.of(argument.getReturnType(), value));
+            return;
+        }
+
+        this.ensureCapacity(slot);
+        this.values[slot] = value;
+        this.present[slot >>> 6] |= 1L << slot;
+    }
+
+    @Override
+    public boolean contains(Argument argument) {
+        return this.isPresent(argument.getSlot());
+    }
+
+    @Override
+    public long lookupBits(Argument argument) {
+        int slot = argument.getSlot();
+        return this.isPresent(slot) ? this.primitives[slot] : MISSING;
+    }
+
+    @Override
+    public long putOrGetBits(Argument argument, long bits) {
+        this.putBits(registeredSlot(argument), bits);
+        return bits;
+    }
+
+    @Override
+    public int getInt(Argument argument) {
+        return PrimitiveBits.toInt(this.getBits(argument));
+    }
+
+    @Override
+    public void putInt(Argument argument, int value) {
+        this.putBits(registeredSlot(argument), PrimitiveBits.of(value));
+    }
+
+    @Override
+    public long getLong(Argument argument) {
+        return PrimitiveBits.toLong(this.getBits(argument));
+    }
+
+    @Override
+    public void putLong(Argument argument, long value) {
+        this.putBits(registeredSlot(argument), PrimitiveBits.of(value));
+    }
+
+    @Override
+    public double getDouble(Argument argument) {
+        return PrimitiveBits.toDouble(this.getBits(argument));
+    }
+
+    @Override
+    public void putDouble(Argument argument, double value) {
+        this.putBits(registeredSlot(argument), PrimitiveBits.of(value));
+    }
+
+    @Override
+    public boolean getBoolean(Argument argument) {
+        return PrimitiveBits.toBoolean(this.getBits(argument));
+    }
+
+    @Override
+    public void putBoolean(Argument argument, boolean value) {
+        this.putBits(registeredSlot(argument), PrimitiveBits.of(value));
+    }
+
+    /**
+     * Removes all values from the cache, keeping its capacity. Only the words of the
+     * bitset with values in them are visited.
+     */
+    public void clear() {
+        for (int word = 0; word < this.present.length; word++) {
+            long bits = this.present[word];
+            while (bits != 0) {
+                int bit = Long.numberOfTrailingZeros(bits);
+                this.values[(word << 6) + bit] = null;
+                bits &= bits - 1;
+            }
+            this.present[word] = 0L;
+        }
+    }
+
+    private long getBits(Argument argument) {
+        int slot = argument.getSlot();
+        if (!this.isPresent(slot)) {
+            throw new EvaluationException(
+                    "Key %s not present in cache", argument.getName());
+        }
+
+        return this.primitives[slot];
+    }
+
+    /**
+     * @return The slot of the @argument
+     * @throws EvaluationException If the argument is not registered
+     */
+    private static int registeredSlot(Argument argument) {
+        int slot = argument.getSlot();
+        if (slot < 0) {
+            throw new EvaluationException(
+                    "Argument %s not registered", argument.getName());
+        }
+
+        return slot;
+    }
+
+    private void putBits(int slot, long bits) {
+        this.ensureCapacity(slot);
+        this.primitives[slot] = bits;
+        this.present[slot >>> 6] |= 1L << slot;
+    }
+
+    private boolean isPresent(int slot) {
+        return slot >= 0 && slot < this.values.length
+                && (this.present[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    private void ensureCapacity(int slot) {
+        if (slot < this.values.length) {
+            return;
+        }
+
+        int capacity = Math.max(slot + 1, this.registry.size());
+        this.values = Arrays.copyOf(this.values, capacity);
+        this.primitives = Arrays.copyOf(this.primitives, capacity);
+        this.present = Arrays.copyOf(this.present, words(capacity));
+    }
+
+    private static int words(int capacity) {
+        return (capacity + 63) >>> 6;
+    }
+}
@@ -0,0 +1,342 @@
+package com.airbnb.payments.featuresengine.cache;
+
+import com.airbnb.payments.featuresengine.arguments.Argument;
+import com.airbnb.payments.featuresengine.arguments.ArgumentRegistry;
+import com.airbnb.payments.featuresengine.core.Types;
+import com.airbnb.payments.featuresengine.errors.EvaluationException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Thread safe version of the ArrayCache, meant for async sessions.
+ * <p>
+ * Values are published with a compare-and-set on the argument slot, so the first
+ * value cached for an argument wins and every reader of the session sees that same
+ * value. Since null values are never cached, a non-null slot is the presence marker.
+ * <p>
+ * Arguments of type int, long and double and boolean are stored unboxed. For those,
+ * each slot has two state bits: the writer that claims the slot stores the value and
+ * then publishes it. Readers only trust published slots.
+ */
+public class ConcurrentArrayCache implements ICache {
+    private static final long CLAIMED = 1L;
+    private static final long PUBLISHED = 2L;
+
+    private ArgumentRegistry registry;
+    private AtomicReferenceArray<Object> values;
+    private AtomicLongArray primitives;
+    // Two state bits per slot, 32 slots per word
+    private AtomicLongArray states;
+    // Holds arguments registered after the cache was created
+    private volatile Map<Integer, Object> overflow;
+
+    /**
+     * Creates a cache sized to hold all arguments currently in the @registry.
+     *
+     * @param registry Registry whose argument slots index the cache
+     */
+    public ConcurrentArrayCache(ArgumentRegistry registry) {
+        this.registry = registry;
+        this.values = new AtomicReferenceArray<>(registry.size());
+        this.primitives = new AtomicLongArray(registry.size());
+        this.states = new AtomicLongArray((registry.size() + 31) >>> 5);
+    }
+
+    /**
+     * Checks if the key is in the cache
+     *
+     * @param key searching key
+     * @return True if it is. False otherwise.
+     */
+    @Override
+    public boolean contains(String key) {
+        return this.lookup(key) != null;
+    }
+
+    /**
+     * Adds the key/value to the cache if no value is cached for the key yet.
+     *
+     * @param key   Key to search for the value
+     * @param value Value to be cached
+     * @throws EvaluationException if key is not a registered argument
+     */
+    @Override
+    public void put(String key, Object value) {
+        int slot = this.registry.slotOf(key);
+        if (slot < 0) {
+            throw new EvaluationException("Argument %s not registered", key);
+        }
+
+        this.put(this.registry.get(slot), value);
+    }
+
+    /**
+     * @param key The key to search for
+     * @return The value if any
+     * @throws EvaluationException if key is not present
+     */
+    @Override
+    public Object get(String key) {
+        Object value = this.lookup(key);
+        if (value == null) {
+            throw new EvaluationException("Key %s not present in cache", key);
+        }
+
+        return value;
+    }
+
+    /**
+     * @param key The key to search for
+     * @return The value if any. Null otherwise.
+     */
+    @Override
+    public Object lookup(String key) {
+        int slot = this.registry.slotOf(key);
+        return slot >= 0 ? this.lookup(this.registry.get(slot)) : null;
+    }
+
+    /**
+     * @param argument The argument to search for
+     * @return The value cached for the argument or null
+     */
+    @Override
+    public Object lookup(Argument argument) {
+        int slot = argument.getSlot();
+        if (slot < 0 || slot >= this.values.length()) {
+            Map<Integer, Object> overflow = this.overflow;
+            return overflow != null ? overflow.get(slot) : null;
+        }
+
+        if (!Types.isSpecialized(argument.getReturnType())) {
+            return this.values.get(slot);
+        }
+
+        return this.isPublished(slot)
+                ? PrimitiveBits.box(argument.getReturnType(), this.primitives.get(slot))
+                : null;
+    }
+
+    /**
+     * @param argument Argument that evaluated to the value
+     * @param value    Value to be cached
+     */
+    @Override
+    public void put(Argument argument, Object value) {
+        int slot = registeredSlot(argument);
+        if (slot >= this.values.length()) {
+            this.overflow().putIfAbsent(slot, value);
+        } else if (Types.isSpecialized(argument.getReturnType())) {
+            this.putBits(slot, PrimitiveBits.of(argument.getReturnType(), value));
+        } else {
+            this.values.compareAndSet(slot, null, value);
+        }
+    }
+
+    @Override
+    public Object putOrGet(Argument argument, Object value) {
+        int slot = registeredSlot(argument);
+        if (slot >= this.values.length()) {
+            Object previous = this.overflow().putIfAbsent(slot, value);
+            return previous != null ? previous : value;
+        }
+
+        Class<?> type = argument.getReturnType();
+        if (Types.isSpecialized(type)) {
+            return PrimitiveBits.box(
+                    type, this.putOrGetBits(argument, PrimitiveBits.of(type, value)));
+        }
+
+        return this.values.compareAndSet(slot, null, value)
+                ? value
+                : this.values.get(slot);
+    }
+
+    @Override
+    public boolean contains(Argument argument) {
+        int slot = argument.getSlot();
+        if (slot >= 0
+                && slot < this.values.length()
+                && Types.isSpecialized(argument.getReturnType())) {
+            return this.isPublished(slot);
+        }
+
+        return this.lookup(argument) != null;
+    }
+
+    @Override
+    public long lookupBits(Argument argument) {
+        int slot = argument.getSlot();
+        if (slot < 0 || slot >= this.values.length()) {
+            return ICache.super.lookupBits(argument);
+        }
+
+        return this.isPublished(slot) ? this.primitives.get(slot) : MISSING;
+    }
+
+    @Override
+    public long putOrGetBits(Argument argument, long bits) {
+        int slot = registeredSlot(argument);
+        if (slot >= this.values.length()) {
+            return ICache.super.putOrGetBits(argument, bits);
+        }
+
+        if (this.claimBits(slot, bits)) {
+            return bits;
+        }
+
+        // The writer that claimed the slot first publishes its value right after
+        while (!this.isPublished(slot)) {
+            Thread.yield();
+        }
+        return this.primitives.get(slot);
+    }
+
+    @Override
+    public int getInt(Argument argument) {
+        int slot = argument.getSlot();
+        return slot >= 0 && slot < this.values.length()
+                ? PrimitiveBits.toInt(this.getBits(argument))
+                : (Integer) this.getOverflow(argument);
+    }
+
+    @Override
+    public void putInt(Argument argument, int value) {
+        if (!this.putBits(registeredSlot(argument), PrimitiveBits.of(value))) {
+            this.overflow().putIfAbsent(argument.getSlot(), value);
+        }
+    }
+
+    @Override
+    public long getLong(Argument argument) {
+        int slot = argument.getSlot();
+        return slot >= 0 && slot < this.values.length()
+                ? PrimitiveBits.toLong(this.getBits(argument))
+                : (Long) this.getOverflow(argument);
+    }
+
+    @Override
+    public void putLong(Argument argument, long value) {
+        if (!this.putBits(registeredSlot(argument), PrimitiveBits.of(value))) {
+            this.overflow().putIfAbsent(argument.getSlot(), value);
+        }
+    }
+
+    @Override
+    public double getDouble(Argument argument) {
+        int slot = argument.getSlot();
+        return slot >= 0 && slot < this.values.length()
+                ? PrimitiveBits.toDouble(this.getBits(argument))
+                : (Double) this.getOverflow(argument);
+    }
+
+    @Override
+    public void putDouble(Argument argument, double value) {
+        if (!this.putBits(registeredSlot(argument), PrimitiveBits.of(value))) {
+            this.overflow().putIfAbsent(argument.getSlot(), value);
+        }
+    }
+
+    @Override
+    public boolean getBoolean(Argument argument) {
+        int slot = argument.getSlot();
+        return slot >= 0 && slot < this.values.length()
+                ? PrimitiveBits.toBoolean(this.getBits(argument))
+                : (Boolean) this.getOverflow(argument);
+    }
+
+    @Override
+    public void putBoolean(Argument argument, boolean value) {
+        if (!this.putBits(registeredSlot(argument), PrimitiveBits.of(value))) {
+            this.overflow().putIfAbsent(argument.getSlot(), value);
+        }
+    }
+
+    private long getBits(Argument argument) {
+        int slot = argument.getSlot();
+        if (!this.isPublished(slot)) {
+            throw new EvaluationException(
+                    "Key %s not present in cache", argument.getName());
+        }
+
+        return this.primitives.get(slot);
+    }
+
+    /**
+     * @return The slot of the @argument
+     * @throws EvaluationException If the argument is not registered
+     */
+    private static int registeredSlot(Argument argument) {
+        int slot = argument.getSlot();
+        if (slot < 0) {
+            throw new EvaluationException(
+                    "Argument %s not registered", argument.getName());
+        }
+
+        return slot;
+    }
+
+    private Object getOverflow(Argument argument) {
+        Object value = this.lookup(argument);
+        if (value == null) {
+            throw new EvaluationException(
+                    "Key %s not present in cache", argument.getName());
+        }
+
+        return value;
+    }
+
+    /**
+     * Stores the @bits on the @slot if no other writer claimed it first.
+     *
+     * @return False if the slot is out of the cache bounds. True otherwise.
+     */
+    private boolean putBits(int slot, long bits) {
+        if (slot >= this.values.length()) {
+            return false;
+        }
+
+        this.claimBits(slot, bits);
+        return true;
+    }
+
+    /**
+     * Claims the @slot and stores the @bits on it, unless another writer claimed it
+     * first.
+     *
+     * @return True if the bits were stored. False if another writer claimed the slot
+     */
+    private boolean claimBits(int slot, long bits) {
+        int word = slot >>> 5;
+        int shift = (slot & 31) << 1;
+        long previous = this.states.getAndAccumulate(
+                word, CLAIMED << shift, (current, mask) -> current | mask);
+        if ((previous & (CLAIMED << shift)) == 0) {
+            this.primitives.set(slot, bits);
+            this.states.accumulateAndGet(
+                    word, PUBLISHED << shift, (current, mask) -> current | mask);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isPublished(int slot) {
+        return (this.states.get(slot >>> 5) & (PUBLISHED << ((slot & 31) << 1))) != 0;
+    }
+
+    private Map<Integer, Object> overflow() {
+        Map<Integer, Object> overflow = this.overflow;
+        if (overflow == null) {
+            synchronized (this) {
+                overflow = this.overflow;
+                if (overflow == null) {
+                    overflow = new ConcurrentHashMap<>();
+                    this.overflow = overflow;
+                }
+            }
+        }
+        return overflow;
+    }
+}
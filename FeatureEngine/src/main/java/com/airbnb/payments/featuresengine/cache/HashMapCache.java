@@ -51,4 +51,13 @@ public class HashMapCache implements ICache {
 
         return this.cache.get(key);
     }
+
+    /**
+     * @param key The key to search for
+     * @return The value if any. Null otherwise.
+     */
+    @Override
+    public Object lookup(String key) {
+        return this.cache.get(key);
+    }
 }
@@ -1,5 +1,6 @@
 package com.airbnb.payments.featuresengine.cache;
 
+import com.airbnb.payments.featuresengine.arguments.Argument;
 import com.airbnb.payments.featuresengine.errors.EvaluationException;
 
 public interface ICache {
@@ -27,4 +28,142 @@ public interface ICache {
      * @throws EvaluationException If @key is not present
      */
     Object get(String key);
+
+    /**
+     * Returns the value stored under the @key or null if the @key is not present.
+     * Single probe alternative to contains() followed by get(). Null values are never
+     * cached, so null always means a miss.
+     *
+     * @param key The key to search for
+     * @return The value stored under the key or null
+     */
+    default Object lookup(String key) {
+        return this.contains(key) ? this.get(key) : null;
+    }
+
+    /**
+     * Returns the value cached for the @argument or null if there is none.
+     * Implementations aware of the registry slots should override this to skip the
+     * argument name hashing.
+     *
+     * @param argument The argument to search for
+     * @return The value cached for the argument or null
+     */
+    default Object lookup(Argument argument) {
+        return this.lookup(argument.getName());
+    }
+
+    /**
+     * Caches the @value for the @argument
+     *
+     * @param argument Argument that evaluated to the value
+     * @param value    Value to be cached
+     */
+    default void put(Argument argument, Object value) {
+        this.put(argument.getName(), value);
+    }
+
+    /**
+     * Caches the @value for the @argument and returns the value the cache ends up
+     * holding for it. Caches keeping the first value put, like the
+     * ConcurrentArrayCache, return the value another caller cached first, so every
+     * reader of the session sees the same value.
+     *
+     * @param argument Argument that evaluated to the value
+     * @param value    Value to be cached
+     * @return The value cached for the argument
+     */
+    default Object putOrGet(Argument argument, Object value) {
+        this.put(argument, value);
+        return value;
+    }
+
+    /**
+     * If a value is cached for the @argument
+     *
+     * @param argument The argument to search for
+     * @return True if there is a value cached for the argument. False otherwise
+     */
+    default boolean contains(Argument argument) {
+        return this.contains(argument.getName());
+    }
+
+    /*
+     * Primitive accessors.
+     *
+     * Used by arguments of type int, long, double and boolean so their values don't
+     * need to be boxed. The default implementations box the values on the Object
+     * storage; implementations with primitive storage should override them.
+     * The getters must only be called after contains(argument) returns true, or
+     * use lookupBits() to check and read the value with a single probe.
+     */
+
+    /**
+     * Returned by lookupBits() when no value is cached. It is out of the int range
+     * and a NaN payload Java arithmetic doesn't produce, so only long and double
+     * values can collide with it, and hardly ever do.
+     */
+    long MISSING = 0x7ff8_dead_beef_0001L;
+
+    /**
+     * Single probe read of the value cached for the primitive typed @argument, as
+     * raw long bits: the value itself for int and long, the raw bits for double and
+     * 1 or 0 for boolean.
+     *
+     * @param argument The argument to search for, of type int, long, double or boolean
+     * @return The bits of the cached value or MISSING if there is none. For long and
+     * double arguments, a MISSING result must be confirmed with contains(argument)
+     */
+    default long lookupBits(Argument argument) {
+        Object value = this.lookup(argument);
+        return value != null
+                ? PrimitiveBits.of(argument.getReturnType(), value)
+                : MISSING;
+    }
+
+    /**
+     * Same as putOrGet() for the primitive typed @argument, with its value encoded as
+     * raw long bits like on lookupBits()
+     *
+     * @param argument Argument that evaluated to the value
+     * @param bits     Bits of the value to be cached
+     * @return Bits of the value cached for the argument
+     */
+    default long putOrGetBits(Argument argument, long bits) {
+        Class<?> type = argument.getReturnType();
+        return PrimitiveBits.of(
+                type, this.putOrGet(argument, PrimitiveBits.box(type, bits)));
+    }
+
+    default int getInt(Argument argument) {
+        return (Integer) this.get(argument.getName());
+    }
+
+    default void putInt(Argument argument, int value) {
+        this.put(argument, Integer.valueOf(value));
+    }
+
+    default long getLong(Argument argument) {
+        return (Long) this.get(argument.getName());
+    }
+
+    default void putLong(Argument argument, long value) {
+        this.put(argument, Long.valueOf(value));
+    }
+
+    default double getDouble(Argument argument) {
+        return (Double) this.get(argument.getName());
+    }
+
+    default void putDouble(Argument argument, double value) {
+        this.put(argument, Double.valueOf(value));
+    }
+
+    default boolean getBoolean(Argument argument) {
+        return (Boolean) this.get(argument.getName());
+    }
+
+    default void putBoolean(Argument argument, boolean value) {
+        this.put(argument, Boolean.valueOf(value));
+    }
 }
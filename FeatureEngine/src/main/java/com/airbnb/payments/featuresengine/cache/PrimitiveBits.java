@@ -0,0 +1,73 @@
+package com.airbnb.payments.featuresengine.cache;
+
+/**
+ * Encodes the values of primitive typed arguments (int, long, double and boolean) as
+ * raw long bits, so the array caches can store all of them on a single long[].
+ */
+final class PrimitiveBits {
+
+    private PrimitiveBits() {
+    }
+
+    static long of(int value) {
+        return value;
+    }
+
+    static long of(long value) {
+        return value;
+    }
+
+    static long of(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    static long of(boolean value) {
+        return value ? 1L : 0L;
+    }
+
+    static int toInt(long bits) {
+        return (int) bits;
+    }
+
+    static long toLong(long bits) {
+        return bits;
+    }
+
+    static double toDouble(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    static boolean toBoolean(long bits) {
+        return bits != 0L;
+    }
+
+    /**
+     * Encodes a boxed value of the primitive @type
+     */
+    static long of(Class<?> type, Object value) {
+        if (type == int.class) {
+            return of((int) (Integer) value);
+        } else if (type == long.class) {
+            return of((long) (Long) value);
+        } else if (type == double.class) {
+            return of((double) (Double) value);
+        } else {
+            return of((boolean) (Boolean) value);
+        }
+    }
+
+    /**
+     * Decodes the @bits into a boxed value of the primitive @type
+     */
+    static Object box(Class<?> type, long bits) {
+        if (type == int.class) {
+            return toInt(bits);
+        } else if (type == long.class) {
+            return toLong(bits);
+        } else if (type == double.class) {
+            return toDouble(bits);
+        } else {
+            return toBoolean(bits);
+        }
+    }
+}
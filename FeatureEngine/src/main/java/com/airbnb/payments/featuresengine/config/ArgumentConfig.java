@@ -6,6 +6,11 @@ import lombok.Getter;
 public class ArgumentConfig extends ExpressionConfig {
     private String name;
     private boolean cacheable;
+    // Cache shared across sessions. Null when the argument is only session cached
+    private SharedCacheConfig sharedCache;
+    // If the expression is pure and dependency free, or only depends on other
+    // constants, so its value can be computed once at registration
+    private boolean constant;
 
     public ArgumentConfig(String name,
                           String returnType) {
@@ -25,6 +30,13 @@ public class ArgumentConfig extends ExpressionConfig {
         this(name, returnType, expression, true, false);
     }
 
+    public ArgumentConfig(String name,
+                          String returnType,
+                          String expression,
+                          boolean constant) {
+        this(name, returnType, expression, true, false, new String[0], null, constant);
+    }
+
     public ArgumentConfig(String name,
                           String returnType,
                           String expression,
@@ -39,8 +51,32 @@ public class ArgumentConfig extends ExpressionConfig {
                           boolean cacheable,
                           boolean isAsync,
                           String[] dependencies) {
+        this(name, returnType, expression, cacheable, isAsync, dependencies, null);
+    }
+
+    public ArgumentConfig(String name,
+                          String returnType,
+                          String expression,
+                          boolean cacheable,
+                          boolean isAsync,
+                          String[] dependencies,
+                          SharedCacheConfig sharedCache) {
+        this(name, returnType, expression, cacheable, isAsync, dependencies,
+                sharedCache, false);
+    }
+
+    public ArgumentConfig(String name,
+                          String returnType,
+                          String expression,
+                          boolean cacheable,
+                          boolean isAsync,
+                          String[] dependencies,
+                          SharedCacheConfig sharedCache,
+                          boolean constant) {
         super(expression, returnType, isAsync, dependencies);
         this.name = name;
         this.cacheable = cacheable;
+        this.sharedCache = sharedCache;
+        this.constant = constant;
     }
 }
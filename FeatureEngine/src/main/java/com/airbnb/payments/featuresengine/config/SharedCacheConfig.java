@@ -0,0 +1,42 @@
+package com.airbnb.payments.featuresengine.config;
+
+import lombok.Getter;
+
+import java.time.Duration;
+import java.util.concurrent.Executor;
+
+/**
+ * Configuration of the cache of an argument shared across sessions. Values are keyed
+ * by the values of the input arguments the argument depends on.
+ */
+@Getter
+public class SharedCacheConfig {
+    // Maximum number of values (distinct inputs) kept in the cache
+    private long maximumSize;
+    // Values older than that are evicted
+    private Duration ttl;
+    // Values older than that are still served, but refreshed in the background
+    // (stale-while-revalidate). Null to disable refreshes
+    private Duration refreshAfter;
+    // Executor the background refreshes run on. Null to run them on the executor of
+    // the evaluation reading the stale value, or on the common pool for sync ones
+    private Executor refreshExecutor;
+
+    public SharedCacheConfig(long maximumSize, Duration ttl) {
+        this(maximumSize, ttl, null);
+    }
+
+    public SharedCacheConfig(long maximumSize, Duration ttl, Duration refreshAfter) {
+        this(maximumSize, ttl, refreshAfter, null);
+    }
+
+    public SharedCacheConfig(long maximumSize,
+                             Duration ttl,
+                             Duration refreshAfter,
+                             Executor refreshExecutor) {
+        this.maximumSize = maximumSize;
+        this.ttl = ttl;
+        this.refreshAfter = refreshAfter;
+        this.refreshExecutor = refreshExecutor;
+    }
+}
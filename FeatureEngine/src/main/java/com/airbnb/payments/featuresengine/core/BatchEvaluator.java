@@ -0,0 +1,195 @@
+package com.airbnb.payments.featuresengine.core;
+
+import com.airbnb.payments.featuresengine.arguments.Argument;
+import com.airbnb.payments.featuresengine.arguments.ArgumentRegistry;
+import com.airbnb.payments.featuresengine.arguments.IInputProvider;
+import com.airbnb.payments.featuresengine.cache.ArrayCache;
+import com.airbnb.payments.featuresengine.errors.EvaluationException;
+import com.airbnb.payments.featuresengine.expressions.Expression;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Evaluates expressions over many input rows in one call, for offline jobs like
+ * scoring and backfills.
+ * <p>
+ * Rows are split in chunks evaluated in parallel on a fork-join pool. Each chunk
+ * reuses a single session and ArrayCache for all its rows, the cache being cleared
+ * between rows, so the per row cost is only the evaluation itself. Results are
+ * written on the caller's preallocated output, at the index of the row.
+ * <p>
+ * Only sync expressions can be evaluated in batch.
+ */
+public class BatchEvaluator {
+    private static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    private ArgumentRegistry registry;
+    private int chunkSize;
+    private ForkJoinPool pool;
+
+    /**
+     * Creates an evaluator running on the common fork-join pool
+     *
+     * @param registry Registry with all arguments the expressions depend on
+     */
+    public BatchEvaluator(ArgumentRegistry registry) {
+        this(registry, DEFAULT_CHUNK_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param registry  Registry with all arguments the expressions depend on
+     * @param chunkSize Number of consecutive rows evaluated by a single task
+     * @param pool      Pool to evaluate the chunks on
+     */
+    public BatchEvaluator(ArgumentRegistry registry, int chunkSize, ForkJoinPool pool) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+
+        this.registry = registry;
+        this.chunkSize = chunkSize;
+        this.pool = pool;
+    }
+
+    /**
+     * Evaluates the @expression for every row of @rows.
+     *
+     * @param expression Expression to evaluate
+     * @param rows       Inputs of each row
+     * @param output     Receives the result of each row. Must fit all rows
+     * @throws EvaluationException If the evaluation of any row fails
+     */
+    public void eval(Expression expression,
+                     List<? extends IInputProvider> rows,
+                     Object[] output) {
+        checkOutput(output.length, rows);
+        this.run(rows, (session, row) -> output[row] = expression.eval(session));
+    }
+
+    /*
+     * Unboxed versions of eval(), see Expression.evalInt() and siblings.
+     */
+
+    public void evalInt(Expression expression,
+                        List<? extends IInputProvider> rows,
+                        int[] output) {
+        checkOutput(output.length, rows);
+        this.run(rows, (session, row) -> output[row] = expression.evalInt(session));
+    }
+
+    public void evalLong(Expression expression,
+                         List<? extends IInputProvider> rows,
+                         long[] output) {
+        checkOutput(output.length, rows);
+        this.run(rows, (session, row) -> output[row] = expression.evalLong(session));
+    }
+
+    public void evalDouble(Expression expression,
+                           List<? extends IInputProvider> rows,
+                           double[] output) {
+        checkOutput(output.length, rows);
+        this.run(rows, (session, row) -> output[row] = expression.evalDouble(session));
+    }
+
+    public void evalBoolean(Expression expression,
+                            List<? extends IInputProvider> rows,
+                            boolean[] output) {
+        checkOutput(output.length, rows);
+        this.run(rows, (session, row) -> output[row] = expression.evalBoolean(session));
+    }
+
+    /**
+     * Evaluates all @arguments for every row of @rows. Within a row the arguments
+     * share the session cache, so common dependencies are computed once per row.
+     *
+     * @param arguments Arguments (usually named expressions) to evaluate
+     * @param rows      Inputs of each row
+     * @param output    Receives the values, output[i][row] being the value of the
+     *                  i-th argument on the given row
+     * @throws EvaluationException If the evaluation of any row fails
+     */
+    public void eval(List<Argument> arguments,
+                     List<? extends IInputProvider> rows,
+                     Object[][] output) {
+        if (output.length < arguments.size()) {
+            throw new EvaluationException(
+                    "Output has %d columns for %d arguments",
+                    output.length,
+                    arguments.size());
+        }
+
+        int[] slots = new int[arguments.size()];
+        for (int i = 0; i < slots.length; ++i) {
+            slots[i] = arguments.get(i).getSlot();
+            checkOutput(output[i].length, rows);
+        }
+
+        this.run(rows, (session, row) -> {
+            for (int i = 0; i < slots.length; ++i) {
+                output[i][row] = this.registry.value(slots[i], session);
+            }
+        });
+    }
+
+    /**
+     * Evaluates one row with the session already bound to its inputs
+     */
+    @FunctionalInterface
+    private interface RowEvaluation {
+        void eval(EvalSession session, int row);
+    }
+
+    /**
+     * Splits the @rows in chunks and runs @evaluation on every row of every chunk,
+     * in parallel on the pool.
+     */
+    private void run(List<? extends IInputProvider> rows, RowEvaluation evaluation) {
+        int chunks = (rows.size() + this.chunkSize - 1) / this.chunkSize;
+        try {
+            this.pool.submit(() -> IntStream.range(0, chunks).parallel().forEach(
+                    (chunk) -> this.runChunk(rows, chunk, evaluation)))
+                    .get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EvaluationException(e, "Interrupted evaluating batch");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EvaluationException) {
+                throw (EvaluationException) e.getCause();
+            }
+            throw new EvaluationException(
+                    e.getCause(),
+                    "Error evaluating batch: %s",
+                    e.getCause().getMessage());
+        }
+    }
+
+    private void runChunk(List<? extends IInputProvider> rows,
+                          int chunk,
+                          RowEvaluation evaluation) {
+        int from = chunk * this.chunkSize;
+        int to = Math.min(from + this.chunkSize, rows.size());
+
+        ArrayCache cache = new ArrayCache(this.registry);
+        EvalSession session = new EvalSession(null, this.registry, cache);
+        for (int row = from; row < to; ++row) {
+            cache.clear();
+            session.rebind(rows.get(row));
+            try {
+                evaluation.eval(session, row);
+            } catch (RuntimeException e) {
+                throw new EvaluationException(
+                        e, "Error evaluating row %d: %s", row, e.getMessage());
+            }
+        }
+    }
+
+    private static void checkOutput(int length, List<? extends IInputProvider> rows) {
+        if (length < rows.size()) {
+            throw new EvaluationException(
+                    "Output has %d entries for %d rows", length, rows.size());
+        }
+    }
+}
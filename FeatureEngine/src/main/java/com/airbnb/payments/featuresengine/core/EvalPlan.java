@@ -0,0 +1,215 @@
+package com.airbnb.payments.featuresengine.core;
+
+import com.airbnb.payments.featuresengine.arguments.Argument;
+import com.airbnb.payments.featuresengine.arguments.ArgumentRegistry;
+import com.airbnb.payments.featuresengine.arguments.InputArgument;
+import com.airbnb.payments.featuresengine.errors.CompilationException;
+import com.airbnb.payments.featuresengine.errors.EvaluationException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Precomputed evaluation of a set of target arguments, for callers reading many
+ * arguments (eg.: a feature vector) on each session.
+ * <p>
+ * The plan computes once the closure of the targets and sorts it topologically,
+ * which is the slot order since arguments are only registered after their
+ * dependencies. Each evaluation then walks that order iteratively: by the time an
+ * argument is computed all its cacheable dependencies are already on the session
+ * cache, so there is no recursion down the dependency chain and no dependency is
+ * rediscovered per target. Non cacheable arguments are only computed when they are
+ * targets, as their dependents recompute them anyway.
+ * <p>
+ * Dependencies are computed best effort: a target may only need some of them on
+ * branches it doesn't take (eg.: $flag ? $x : 0), so a dependency failing doesn't
+ * fail the plan. Targets needing it compute it again, failing then, like they do
+ * when evaluated on their own.
+ * <p>
+ * Async evaluations start all async arguments up front, leaves first, then compute
+ * the sync ones on the calling thread while those are in flight.
+ * <p>
+ * All inputs of the plan are prefetched with a single bulk read when the session
+ * input provider supports it.
+ */
+public class EvalPlan {
+    private ArgumentRegistry registry;
+    // Registry version the plan was built against, kept alive so the arguments of
+    // the plan are not discarded
+    private ArgumentRegistry version;
+    private List<Argument> targets;
+    // Arguments computed by the plan, in topological order
+    private Argument[] steps;
+    // Index on steps of each target
+    private int[] targetSteps;
+    // If each step is a target, otherwise it is computed best effort
+    private boolean[] isTarget;
+    // Cacheable inputs of the plan, prefetched in bulk
+    private Argument[] inputs;
+    private boolean isAsync;
+
+    /**
+     * @param registry Registry with all arguments of the plan
+     * @param targets  Names of the arguments to evaluate
+     * @throws CompilationException If any of the targets is not registered
+     */
+    public EvalPlan(ArgumentRegistry registry, Collection<String> targets) {
+        this.registry = registry;
+        this.version = registry.snapshot();
+        this.targets = new ArrayList<>(targets.size());
+
+        Set<Argument> closure = new HashSet<>();
+        for (String name : targets) {
+            Argument target = this.version.get(name);
+            this.targets.add(target);
+            closure.add(target);
+            for (Argument dependency : target.dependencies()) {
+                if (dependency.isCacheable() && !dependency.isConstant()) {
+                    closure.add(dependency);
+                }
+            }
+        }
+
+        this.steps = closure.toArray(new Argument[0]);
+        Arrays.sort(this.steps, Comparator.comparingInt(Argument::getSlot));
+
+        this.targetSteps = new int[this.targets.size()];
+        this.isTarget = new boolean[this.steps.length];
+        for (int i = 0; i < this.targetSteps.length; ++i) {
+            int slot = this.targets.get(i).getSlot();
+            for (int step = 0; step < this.steps.length; ++step) {
+                if (this.steps[step].getSlot() == slot) {
+                    this.targetSteps[i] = step;
+                    this.isTarget[step] = true;
+                    break;
+                }
+            }
+        }
+
+        this.isAsync = Arrays.stream(this.steps).anyMatch(Argument::isAsync);
+        this.inputs = Arrays.stream(this.steps)
+                .filter((step) -> step instanceof InputArgument && step.isCacheable())
+                .toArray(Argument[]::new);
+    }
+
+    /**
+     * Target arguments, in the order their values are returned
+     */
+    public List<Argument> targets() {
+        return Collections.unmodifiableList(this.targets);
+    }
+
+    /**
+     * @return True if any argument of the plan is async, requiring evalAsync()
+     */
+    public boolean isAsync() {
+        return this.isAsync;
+    }
+
+    /**
+     * Evaluates all targets on the @session.
+     *
+     * @param session Session of the individual request
+     * @return The value of each target, in the order of targets()
+     * @throws EvaluationException If the plan is async or if computing any of the
+     *                             targets fails
+     */
+    public Object[] eval(EvalSession session) {
+        if (this.isAsync) {
+            throw new EvaluationException(
+                    "Plans with async arguments must be evaluated using evalAsync()."
+                            + " Plan of %s was not",
+                    this.targets);
+        }
+
+        session.prefetch(this.inputs);
+        Object[] values = new Object[this.steps.length];
+        this.evalSync(session, values);
+        return this.results(values);
+    }
+
+    /**
+     * Evaluates all targets on the @session, async arguments included.
+     *
+     * @param session  Session of the individual request
+     * @param executor Executor to run the fetching on
+     * @return Future with the value of each target, in the order of targets()
+     */
+    public CompletableFuture<Object[]> evalAsync(EvalSession session, Executor executor) {
+        Object[] values = new Object[this.steps.length];
+        List<CompletableFuture<Object>> fetches = new ArrayList<>();
+        int[] fetchSteps = new int[this.steps.length];
+
+        try {
+            session.prefetch(this.inputs);
+            for (int step = 0; step < this.steps.length; ++step) {
+                if (!this.steps[step].isAsync()) {
+                    continue;
+                }
+
+                CompletableFuture<Object> fetch =
+                        this.steps[step].valueAsync(session, executor);
+                // Targets depending on the other fetches share them, so only the
+                // targets are waited for
+                if (this.isTarget[step]) {
+                    fetchSteps[fetches.size()] = step;
+                    fetches.add(fetch);
+                }
+            }
+
+            // Sync arguments never depend on async ones
+            this.evalSync(session, values);
+        } catch (RuntimeException e) {
+            CompletableFuture<Object[]> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        return CompletableFuture
+                .allOf(fetches.toArray(new CompletableFuture[0]))
+                .thenApply((ignored) -> {
+                    for (int i = 0; i < fetches.size(); ++i) {
+                        values[fetchSteps[i]] = fetches.get(i).join();
+                    }
+                    return this.results(values);
+                });
+    }
+
+    /**
+     * Computes all sync steps, in order, into @values. Only failures of the targets
+     * are thrown
+     */
+    private void evalSync(EvalSession session, Object[] values) {
+        for (int step = 0; step < this.steps.length; ++step) {
+            if (this.steps[step].isAsync()) {
+                continue;
+            }
+
+            try {
+                values[step] = this.registry.value(this.steps[step].getSlot(), session);
+            } catch (RuntimeException e) {
+                if (this.isTarget[step]) {
+                    throw e;
+                }
+                // The targets may not need the dependency, the ones that do fail
+                // computing it again
+            }
+        }
+    }
+
+    private Object[] results(Object[] values) {
+        Object[] results = new Object[this.targetSteps.length];
+        for (int i = 0; i < results.length; ++i) {
+            results[i] = values[this.targetSteps[i]];
+        }
+        return results;
+    }
+}
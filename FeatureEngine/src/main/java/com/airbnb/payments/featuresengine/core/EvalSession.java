@@ -1,8 +1,20 @@
 package com.airbnb.payments.featuresengine.core;
 
+import com.airbnb.payments.featuresengine.arguments.Argument;
 import com.airbnb.payments.featuresengine.arguments.ArgumentRegistry;
 import com.airbnb.payments.featuresengine.arguments.IInputProvider;
+import com.airbnb.payments.featuresengine.cache.ConcurrentArrayCache;
 import com.airbnb.payments.featuresengine.cache.ICache;
+import com.airbnb.payments.featuresengine.tracing.SessionTrace;
+import com.airbnb.payments.featuresengine.tracing.Tracing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 /**
  * The evaluation session will hold all information pertinent to the current user
@@ -14,17 +26,40 @@ import com.airbnb.payments.featuresengine.cache.ICache;
  * all rules and expression evaluations.
  */
 public class EvalSession {
+    /**
+     * Prefetched value of inputs the provider doesn't have, so they aren't asked for
+     * again
+     */
+    public static final Object MISSING = new Object();
+
     private ICache cache;
     private ArgumentRegistry registry;
+    // Version of the registry names are resolved against. Pinned on creation
+    private volatile ArgumentRegistry version;
     private IInputProvider arguments;
+    // Fetches and computations in flight on this session, by argument. Created on the
+    // first one
+    private volatile ConcurrentHashMap<Argument, CompletableFuture<Object>> fetches;
+    // Inputs prefetched in bulk, by name. Created on the first prefetch
+    private volatile ConcurrentHashMap<String, Object> prefetched;
+    // Trace of the argument reads, if the session is traced
+    private SessionTrace trace;
 
+    /**
+     * Creates a session cached by a ConcurrentArrayCache sized from the @registry.
+     */
+    public EvalSession(IInputProvider provider, ArgumentRegistry registry) {
+        this(provider, registry, new ConcurrentArrayCache(registry));
+    }
 
     public EvalSession(IInputProvider provider,
                        ArgumentRegistry registry,
                        ICache cache) {
         this.cache = cache;
         this.registry = registry;
+        this.version = registry != null ? registry.snapshot() : null;
         this.arguments = provider;
+        this.trace = Tracing.sample();
     }
 
     /**
@@ -41,6 +76,18 @@ public class EvalSession {
         return this.registry;
     }
 
+    /**
+     * Version of the registry the session resolves argument names against. It is
+     * pinned to the latest published version when the session is created, so the
+     * session keeps a consistent view, and keeps the arguments it may evaluate from
+     * being discarded, while new versions are published.
+     *
+     * @return The registry snapshot or null if the session has no registry
+     */
+    public ArgumentRegistry version() {
+        return this.version;
+    }
+
     /**
      * Cache used to store arguments after fetching. Some fetching might be expensive,
      * like expression evaluations. The cache will save re-computations.
@@ -49,5 +96,165 @@ public class EvalSession {
         return this.cache;
     }
 
+    /**
+     * Trace of all argument reads of the session, if it was sampled (see Tracing) or
+     * startTrace() was called
+     *
+     * @return The trace or null if the session is not traced
+     */
+    public SessionTrace trace() {
+        return this.trace;
+    }
+
+    /**
+     * Traces the session, whatever the sampling rate. Must be called before
+     * evaluating anything on the session.
+     *
+     * @return The session trace
+     */
+    public SessionTrace startTrace() {
+        if (this.trace == null) {
+            this.trace = new SessionTrace();
+        }
+        return this.trace;
+    }
+
+    /**
+     * Registers @fetch as the async fetch of the @argument on this session, unless
+     * one was already registered, in which case the caller must use the existing one
+     * instead. This guarantees concurrent requests for the same argument share a
+     * single fetch. Failed fetches are unregistered, so the argument can be fetched
+     * again.
+     *
+     * @param argument The argument being fetched
+     * @param fetch    Future the caller will complete with the argument value
+     * @return The fetch already registered for the argument or null if @fetch was
+     * registered
+     */
+    public CompletableFuture<Object> fetchIfAbsent(
+            Argument argument, CompletableFuture<Object> fetch) {
+        ConcurrentHashMap<Argument, CompletableFuture<Object>> fetches = this.fetches;
+        if (fetches == null) {
+            synchronized (this) {
+                fetches = this.fetches;
+                if (fetches == null) {
+                    fetches = new ConcurrentHashMap<>();
+                    this.fetches = fetches;
+                }
+            }
+        }
+
+        CompletableFuture<Object> inFlight = fetches.putIfAbsent(argument, fetch);
+        if (inFlight == null) {
+            ConcurrentHashMap<Argument, CompletableFuture<Object>> registered = fetches;
+            fetch.whenComplete((value, e) -> {
+                if (e != null) {
+                    registered.remove(argument, fetch);
+                }
+            });
+        }
+        return inFlight;
+    }
+
+    /**
+     * Computes the value of the cacheable sync @argument with @compute, unless its
+     * computation or fetch is already in flight on this session, in which case the
+     * value of that one is returned instead. Like fetchIfAbsent() for async fetches,
+     * this guarantees arguments loaded in parallel compute a dependency they have in
+     * common only once.
+     *
+     * @param argument The argument being computed
+     * @param compute  Computes, and caches, the argument value
+     * @return The value of the argument
+     */
+    public Object computeIfAbsent(Argument argument, Supplier<Object> compute) {
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = this.fetchIfAbsent(argument, result);
+        if (inFlight != null) {
+            try {
+                return inFlight.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        try {
+            Object value = compute.get();
+            result.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets all @inputs not read yet in a single IInputProvider.getAll() call, if the
+     * input provider supports bulk reads. The inputs are then served from the
+     * prefetched values, still going through the usual type checks and caching.
+     *
+     * @param inputs Cacheable input arguments about to be read
+     */
+    public void prefetch(Argument[] inputs) {
+        if (this.arguments == null || !this.arguments.isBulk()) {
+            return;
+        }
+
+        ConcurrentHashMap<String, Object> prefetched = this.prefetched;
+        List<String> names = new ArrayList<>(inputs.length);
+        for (Argument input : inputs) {
+            if (!this.cache.contains(input)
+                    && (prefetched == null || !prefetched.containsKey(input.getName()))) {
+                names.add(input.getName());
+            }
+        }
+        if (names.isEmpty()) {
+            return;
+        }
 
+        Map<String, Object> values = this.arguments.getAll(names);
+        if (prefetched == null) {
+            synchronized (this) {
+                prefetched = this.prefetched;
+                if (prefetched == null) {
+                    prefetched = new ConcurrentHashMap<>();
+                    this.prefetched = prefetched;
+                }
+            }
+        }
+        for (String name : names) {
+            Object value = values.get(name);
+            prefetched.put(name, value != null ? value : MISSING);
+        }
+    }
+
+    /**
+     * Gets the value of an input prefetched in bulk
+     *
+     * @param name Name of the input
+     * @return The prefetched value, MISSING if the provider doesn't have the input or
+     * null if the input was not prefetched
+     */
+    public Object prefetched(String name) {
+        ConcurrentHashMap<String, Object> prefetched = this.prefetched;
+        return prefetched != null ? prefetched.get(name) : null;
+    }
+
+    /**
+     * Rebinds the session to a new set of inputs so it can be reused for the next row
+     * of a batch. The caller must clear the cache beforehand. Batch sessions are not
+     * traced.
+     *
+     * @param provider Inputs of the next evaluation
+     */
+    void rebind(IInputProvider provider) {
+        this.arguments = provider;
+        this.version = this.registry != null ? this.registry.snapshot() : null;
+        this.fetches = null;
+        this.prefetched = null;
+        this.trace = null;
+    }
 }
@@ -0,0 +1,77 @@
+package com.airbnb.payments.featuresengine.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Type helpers shared by the argument and expression factories.
+ */
+public class Types {
+    /**
+     * Primitive types by their Java keyword
+     */
+    private static final Map<String, Class<?>> primitives = new HashMap<>();
+
+    /**
+     * Boxed type of each primitive type
+     */
+    private static final Map<Class<?>, Class<?>> boxes = new HashMap<>();
+
+    static {
+        boxes.put(boolean.class, Boolean.class);
+        boxes.put(byte.class, Byte.class);
+        boxes.put(char.class, Character.class);
+        boxes.put(double.class, Double.class);
+        boxes.put(float.class, Float.class);
+        boxes.put(int.class, Integer.class);
+        boxes.put(long.class, Long.class);
+        boxes.put(short.class, Short.class);
+
+        primitives.put(boolean.class.getName(), boolean.class);
+        primitives.put(byte.class.getName(), byte.class);
+        primitives.put(char.class.getName(), char.class);
+        primitives.put(double.class.getName(), double.class);
+        primitives.put(float.class.getName(), float.class);
+        primitives.put(int.class.getName(), int.class);
+        primitives.put(long.class.getName(), long.class);
+        primitives.put(short.class.getName(), short.class);
+    }
+
+    /**
+     * Same as Class.forName but also resolves primitive type names (int, long,
+     * double...).
+     *
+     * @param name Fully qualified class name or primitive type name
+     * @return The class named @name
+     * @throws ClassNotFoundException If @name can't be resolved
+     */
+    public static Class<?> forName(String name) throws ClassNotFoundException {
+        Class<?> primitive = primitives.get(name);
+        return primitive != null ? primitive : Class.forName(name);
+    }
+
+    /**
+     * Gets the boxed version of the @type
+     *
+     * @param type Any type
+     * @return The boxed type if @type is primitive. @type itself otherwise.
+     */
+    public static Class<?> boxed(Class<?> type) {
+        Class<?> boxed = boxes.get(type);
+        return boxed != null ? boxed : type;
+    }
+
+    /**
+     * If values of @type have a primitive specialized evaluation path
+     * (int, long, double and boolean).
+     *
+     * @param type The type to check
+     * @return True if @type is specialized. False otherwise.
+     */
+    public static boolean isSpecialized(Class<?> type) {
+        return type == int.class
+                || type == long.class
+                || type == double.class
+                || type == boolean.class;
+    }
+}
@@ -0,0 +1,64 @@
+package com.airbnb.payments.featuresengine.core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor of the blocking evaluation mode (see Expression.evalBlocking()).
+ * <p>
+ * On JDK 21+ every task runs on its own virtual thread, so blocking on I/O inside an
+ * argument costs no platform thread. The engine still targets Java 8, therefore the
+ * virtual thread executor is looked up reflectively and older JDKs fall back to a
+ * cached pool of daemon platform threads, which keeps the same semantics at a higher
+ * cost per blocked task.
+ */
+public final class VirtualThreads {
+    private static final ExecutorService EXECUTOR;
+    private static final boolean SUPPORTED;
+
+    static {
+        ExecutorService executor;
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            executor = (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            executor = null;
+        }
+
+        SUPPORTED = executor != null;
+        EXECUTOR = SUPPORTED ? executor : Executors.newCachedThreadPool(daemonThreads());
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return True if the running JDK has virtual threads
+     */
+    public static boolean isSupported() {
+        return SUPPORTED;
+    }
+
+    /**
+     * Shared executor running each task on a new virtual thread, or on a cached
+     * platform thread if virtual threads are not supported.
+     *
+     * @return The executor
+     */
+    public static ExecutorService executor() {
+        return EXECUTOR;
+    }
+
+    private static ThreadFactory daemonThreads() {
+        AtomicLong count = new AtomicLong();
+        return (runnable) -> {
+            Thread thread = new Thread(
+                    runnable, "features-engine-blocking-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
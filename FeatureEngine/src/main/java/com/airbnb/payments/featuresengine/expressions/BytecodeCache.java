@@ -0,0 +1,243 @@
+package com.airbnb.payments.featuresengine.expressions;
+
+import com.airbnb.payments.featuresengine.arguments.ArgumentRegistry;
+import com.airbnb.payments.featuresengine.core.EvalSession;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import org.codehaus.janino.UnitCompiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Directory holding the bytecode of previously compiled expressions, so a new
+ * process can load the generated classes instead of compiling them again.
+ * <p>
+ * Entries are keyed by a hash of the generated source together with the bytecode of
+ * the engine classes the generated code links against, the bytecode of the classes
+ * the source imports and the compiler version, so any change to the expression, to
+ * the code generation, to the engine methods or imported classes the expressions
+ * call or to the compiler results in a new key instead of stale bytecode. Stale
+ * bytecode would load fine and only fail on evaluation, with a NoSuchMethodError.
+ * Classes referenced by their fully qualified name, without an import, are not part
+ * of the key: the cache directory must be cleared when they change. Missing,
+ * unreadable or corrupted entries are treated as misses and the caller compiles the
+ * source.
+ * <p>
+ * Entries are written to a temporary file and atomically moved in place, therefore
+ * several processes can safely share the same directory.
+ */
+class BytecodeCache {
+    // Bump when the entry file layout changes
+    private static final int FORMAT_VERSION = 1;
+    private static final String EXTENSION = ".classes";
+    // Engine classes the generated code links against
+    private static final Class<?>[] LINKED_CLASSES = {
+            EvalSession.class,
+            ArgumentRegistry.class,
+            IObjectEvaluator.class,
+            IIntEvaluator.class,
+            ILongEvaluator.class,
+            IDoubleEvaluator.class,
+            IBooleanEvaluator.class,
+    };
+    private static final String ENGINE_VERSION = String.format(
+            "%d/%s/%s/%s",
+            FORMAT_VERSION,
+            engineHash(),
+            version(UnitCompiler.class),
+            System.getProperty("java.specification.version"));
+
+    // Single type imports of the generated sources
+    private static final Pattern IMPORT = Pattern.compile(
+            "^import\\s+([\\w.$]+)\\s*;", Pattern.MULTILINE);
+    // Hash of the bytecode of each imported class, computed once per process
+    private static final ConcurrentHashMap<String, String> IMPORT_HASHES =
+            new ConcurrentHashMap<>();
+
+    private Path directory;
+
+    /**
+     * @param directory Directory the entries are read from and written to. Created
+     *                  if it doesn't exist
+     * @throws UncheckedIOException If the directory can't be created
+     */
+    BytecodeCache(Path directory) {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Computes the entry key of the generated @source, whose imported classes are
+     * resolved on the @classLoader
+     */
+    static String key(String source, ClassLoader classLoader) {
+        Hasher hasher = Hashing.sha256().newHasher()
+                .putString(ENGINE_VERSION, StandardCharsets.UTF_8)
+                .putChar('\0')
+                .putString(source, StandardCharsets.UTF_8);
+        Matcher imports = IMPORT.matcher(source);
+        while (imports.find()) {
+            String name = imports.group(1);
+            if (!name.startsWith("java.")) {
+                hasher.putChar('\0').putString(
+                        IMPORT_HASHES.computeIfAbsent(
+                                name, (k) -> classHash(k, classLoader)),
+                        StandardCharsets.UTF_8);
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Reads the classes stored under @key.
+     *
+     * @param key Entry key
+     * @return Bytecode by class name or null if there is no valid entry for the key
+     */
+    Map<String, byte[]> load(String key) {
+        Path file = this.file(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file)))) {
+            int count = in.readInt();
+            Map<String, byte[]> classes = new LinkedHashMap<>();
+            for (int i = 0; i < count; ++i) {
+                String name = in.readUTF();
+                byte[] bytecode = new byte[in.readInt()];
+                in.readFully(bytecode);
+                classes.put(name, bytecode);
+            }
+            return classes;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the @classes under @key. Failures are ignored, the entry is simply
+     * compiled again next time.
+     *
+     * @param key     Entry key
+     * @param classes Bytecode by class name
+     */
+    void store(String key, Map<String, byte[]> classes) {
+        Path file = this.file(key);
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(this.directory, key, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(classes.size());
+                for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    out.write(entry.getValue());
+                }
+            }
+            Files.move(temp, file,
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | UnsupportedOperationException e) {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // Nothing else to do
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Directory of the cache
+     */
+    Path directory() {
+        return this.directory;
+    }
+
+    private Path file(String key) {
+        return this.directory.resolve(key + EXTENSION);
+    }
+
+    /**
+     * Hashes the bytecode of the LINKED_CLASSES, which changes with every build of
+     * the engine that changes them, unlike the engine version. If the bytecode can't
+     * be read, a random value is returned, so the entries of this process are never
+     * loaded by another one.
+     */
+    private static String engineHash() {
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (Class<?> clazz : LINKED_CLASSES) {
+            try (InputStream in = clazz.getResourceAsStream(
+                    clazz.getSimpleName() + ".class")) {
+                if (in == null) {
+                    return UUID.randomUUID().toString();
+                }
+                hasher.putBytes(ByteStreams.toByteArray(in));
+            } catch (IOException e) {
+                return UUID.randomUUID().toString();
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Hashes the bytecode of the class @name, which may be a nested class. Classes
+     * that can't be found hash to a fixed value, as the source then fails to compile
+     * anyway.
+     */
+    private static String classHash(String name, ClassLoader classLoader) {
+        String resource = name.replace('.', '/');
+        while (true) {
+            try (InputStream in = classLoader != null
+                    ? classLoader.getResourceAsStream(resource + ".class")
+                    : ClassLoader.getSystemResourceAsStream(resource + ".class")) {
+                if (in != null) {
+                    return Hashing.sha256().hashBytes(ByteStreams.toByteArray(in))
+                            .toString();
+                }
+            } catch (IOException e) {
+                return UUID.randomUUID().toString();
+            }
+
+            // Outer.Inner is stored as Outer$Inner
+            int separator = resource.lastIndexOf('/');
+            if (separator < 0) {
+                return "missing";
+            }
+            resource = resource.substring(0, separator)
+                    + '$' + resource.substring(separator + 1);
+        }
+    }
+
+    private static String version(Class<?> clazz) {
+        String version = clazz.getPackage() != null
+                ? clazz.getPackage().getImplementationVersion()
+                : null;
+        return version != null ? version : "dev";
+    }
+}
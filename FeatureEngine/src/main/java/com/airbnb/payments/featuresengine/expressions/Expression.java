@@ -1,43 +1,111 @@
 package com.airbnb.payments.featuresengine.expressions;
 
 import com.airbnb.payments.featuresengine.arguments.Argument;
+import com.airbnb.payments.featuresengine.arguments.ArgumentRegistry;
 import com.airbnb.payments.featuresengine.errors.CompilationException;
 import com.airbnb.payments.featuresengine.core.EvalSession;
+import com.airbnb.payments.featuresengine.core.VirtualThreads;
 import com.airbnb.payments.featuresengine.errors.EvaluationException;
+import com.airbnb.payments.featuresengine.metrics.Metrics;
+import com.airbnb.payments.featuresengine.tracing.SessionTrace;
+import com.airbnb.payments.featuresengine.tracing.TraceSpan;
 
-import org.codehaus.commons.compiler.CompileException;
-import org.codehaus.commons.compiler.IExpressionEvaluator;
-import org.codehaus.janino.ExpressionEvaluator;
-
-import java.lang.reflect.InvocationTargetException;
-import java.util.Arrays;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Expression {
-    private static final Void VOID = null;
+    private static final CompletableFuture<Void> NO_ARGUMENTS =
+            CompletableFuture.completedFuture(null);
     // All metadata about the expression
     private ExpressionMetadata info;
     // Actual expression evaluator
-    private IExpressionEvaluator eval;
-
-    private static final String[] DEFAULT_IMPORTS = {
-            "java.util.concurrent.CompletableFuture",
-    };
+    private IObjectEvaluator eval;
+    // Unboxed evaluators. Sync expressions of type int, long, double or boolean are
+    // compiled to the matching one instead of the boxing evaluator above
+    private IIntEvaluator intEval;
+    private ILongEvaluator longEval;
+    private IDoubleEvaluator doubleEval;
+    private IBooleanEvaluator booleanEval;
+    // Async arguments directly accessed by the expression
+    private Argument[] asyncArgs;
+    // Cacheable inputs the expression depends on, prefetched in bulk
+    private Argument[] inputs;
+    // Registry version standalone expressions were compiled against, kept alive so
+    // the argument versions they read are not discarded
+    private ArgumentRegistry version;
+    // Batch the expression was compiled in, if any
+    private ExpressionBatch batch;
 
-    Expression(ExpressionMetadata info) {
+    /**
+     * @param info      The expression metadata
+     * @param evaluator The compiled code. Must implement one of the evaluator
+     *                  interfaces (IObjectEvaluator, IIntEvaluator, ...). Null if it
+     *                  is bound later on, by an ExpressionBatch
+     */
+    Expression(ExpressionMetadata info, Object evaluator) {
         this.info = info;
+        this.asyncArgs = info.getAccessedArguments().stream()
+                .filter(Argument::isAsync)
+                .toArray(Argument[]::new);
+        this.inputs = info.getInputArguments();
 
-        try {
-            this.eval = buildExpressionEvaluator(this.info);
-        } catch (CompileException e) {
+        if (evaluator != null) {
+            this.bind(evaluator);
+        }
+    }
+
+    /**
+     * Sets the compiled code of the expression
+     *
+     * @param evaluator Instance of one of the evaluator interfaces
+     */
+    void bind(Object evaluator) {
+        if (evaluator instanceof IObjectEvaluator) {
+            this.eval = (IObjectEvaluator) evaluator;
+        } else if (evaluator instanceof IIntEvaluator) {
+            this.intEval = (IIntEvaluator) evaluator;
+        } else if (evaluator instanceof ILongEvaluator) {
+            this.longEval = (ILongEvaluator) evaluator;
+        } else if (evaluator instanceof IDoubleEvaluator) {
+            this.doubleEval = (IDoubleEvaluator) evaluator;
+        } else if (evaluator instanceof IBooleanEvaluator) {
+            this.booleanEval = (IBooleanEvaluator) evaluator;
+        } else {
             throw new CompilationException(
-                    e, "Failed compiling %s", this.info.getSourceExpression());
+                    "Invalid evaluator for %s", this.info.getSourceExpression());
         }
     }
 
+    /**
+     * Sets the compiled code of the expression, out of the classes of the @batch
+     */
+    void bind(Object evaluator, ExpressionBatch batch) {
+        this.bind(evaluator);
+        this.batch = batch;
+    }
+
+    /**
+     * Batch the expression was compiled in (see ExpressionBatch)
+     *
+     * @return The batch or null if the expression was compiled on its own
+     */
+    public final ExpressionBatch batch() {
+        return this.batch;
+    }
+
+    /**
+     * Keeps the registry @version alive for as long as the expression
+     */
+    void pin(ArgumentRegistry version) {
+        this.version = version;
+    }
+
     /**
      * Getter.
      *
@@ -61,19 +129,116 @@ public class Expression {
      * @return Result of the expression computation
      */
     public final Object eval(EvalSession session) {
+        this.checkSync();
+
+        try {
+            this.prefetch(session);
+            return this.evaluate(session, null);
+        } catch (Exception e) {
+            throw this.failure(e);
+        }
+
+    }
+
+    /*
+     * Unboxed versions of eval(). Expressions of the matching primitive type are
+     * evaluated without boxing; expressions of any other type have their result
+     * unboxed, which fails if the type doesn't match.
+     */
+
+    public final int evalInt(EvalSession session) {
+        this.checkSync();
+
+        try {
+            this.prefetch(session);
+            if (this.intEval != null) {
+                return this.intEval.evaluate(session, null);
+            }
+            return (Integer) this.evaluate(session, null);
+        } catch (Exception e) {
+            throw this.failure(e);
+        }
+    }
+
+    public final long evalLong(EvalSession session) {
+        this.checkSync();
+
+        try {
+            this.prefetch(session);
+            if (this.longEval != null) {
+                return this.longEval.evaluate(session, null);
+            }
+            return (Long) this.evaluate(session, null);
+        } catch (Exception e) {
+            throw this.failure(e);
+        }
+    }
+
+    public final double evalDouble(EvalSession session) {
+        this.checkSync();
+
+        try {
+            this.prefetch(session);
+            if (this.doubleEval != null) {
+                return this.doubleEval.evaluate(session, null);
+            }
+            return (Double) this.evaluate(session, null);
+        } catch (Exception e) {
+            throw this.failure(e);
+        }
+    }
+
+    public final boolean evalBoolean(EvalSession session) {
+        this.checkSync();
+
+        try {
+            this.prefetch(session);
+            if (this.booleanEval != null) {
+                return this.booleanEval.evaluate(session, null);
+            }
+            return (Boolean) this.evaluate(session, null);
+        } catch (Exception e) {
+            throw this.failure(e);
+        }
+    }
+
+    /**
+     * Prefetches all inputs of the expression in bulk, if the session input provider
+     * supports it. See EvalSession.prefetch()
+     */
+    private void prefetch(EvalSession session) {
+        if (this.inputs.length > 0) {
+            session.prefetch(this.inputs);
+        }
+    }
+
+    /**
+     * Sync evaluations can't run expressions marked as async
+     */
+    private void checkSync() {
         if (this.info.isAsync()) {
             throw new EvaluationException(
                     "Async expressions must be computed using evalAsync()."
                             + " Expression (%s) was not",
                     this.info.getSourceExpression());
         }
+    }
 
-        try {
-            return this.eval.evaluate(new Object[]{session, null});
-        } catch (Exception e) {
-            throw cause(e, this.info().getSourceExpression());
+    /**
+     * Runs the compiled code, boxing the result of primitive evaluators
+     */
+    private Object evaluate(EvalSession session, Executor executor) {
+        if (this.eval != null) {
+            return this.eval.evaluate(session, executor);
+        } else if (this.intEval != null) {
+            return this.intEval.evaluate(session, executor);
+        } else if (this.longEval != null) {
+            return this.longEval.evaluate(session, executor);
+        } else if (this.doubleEval != null) {
+            return this.doubleEval.evaluate(session, executor);
+        } else {
+            return this.booleanEval.evaluate(session, executor);
         }
-
     }
 
     /**
@@ -94,21 +259,28 @@ public class Expression {
     public final CompletableFuture<Object> evalAsync(
             EvalSession session, Executor executor) {
         CompletableFuture<Object> result = new CompletableFuture<>();
+        try {
+            this.prefetch(session);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(this.failure(e));
+            return result;
+        }
 
-        Argument[] asyncArgs = this.info.getAccessedArguments().stream()
-                .filter(Argument::isAsync)
-                .toArray(Argument[]::new);
+        // The evaluation continues on the thread completing the last argument, under
+        // the current trace span
+        SessionTrace trace = session != null ? session.trace() : null;
+        TraceSpan span = trace != null ? trace.current() : null;
 
         // All async arguments will be asynchronously fetched and cached in the session
         // before this expression runs.
         // Expression that have async arguments will rely on those arguments to be
         // already in the session.cache() and therefore they will load those arguments
         // normally.
-        this.cacheAsyncArguments(asyncArgs, session, executor).thenAccept(
+        this.cacheAsyncArguments(this.asyncArgs, session, executor).thenAccept(
                 (v) -> {
+                    TraceSpan previous = trace != null ? trace.swap(span) : null;
                     try {
-                        Object res = this.eval.evaluate(
-                                new Object[]{session, executor});
+                        Object res = this.evaluate(session, executor);
                         if (res instanceof CompletableFuture) {
                             // Handles when the expression itself is async
                             ((CompletableFuture<Object>)
@@ -128,6 +300,10 @@ public class Expression {
                     } catch (Exception e) {
                         result.completeExceptionally(
                                 cause(e, this.info.getSourceExpression()));
+                    } finally {
+                        if (trace != null) {
+                            trace.swap(previous);
+                        }
                     }
                 })
                 .exceptionally((e) -> {
@@ -135,142 +311,222 @@ public class Expression {
                             cause(e, this.info.getSourceExpression()));
                     return null;
                 });
+
+        if (Metrics.isEnabled()) {
+            result.whenComplete((value, e) -> {
+                if (e != null) {
+                    Metrics.sink().evalError(this.info);
+                }
+            });
+        }
         return result;
     }
 
     /**
-     * Asynchronously caches all arguments passed in on @arguments. The resulting
-     * completable future will only be ready when all arguments are in teh cache.
+     * Evaluates the expression on the blocking mode, available for sync and async
+     * expressions. The calling thread waits for the result, so the evaluation is
+     * meant to run on a virtual thread.
+     *
+     * @param session Session of the individual request
+     * @return Result of the expression computation
+     * @see #evalBlocking(EvalSession, ExecutorService)
+     */
+    public final Object evalBlocking(EvalSession session) {
+        return this.evalBlocking(session, VirtualThreads.executor());
+    }
+
+    /**
+     * Evaluates the expression on the blocking mode, available for sync and async
+     * expressions. The calling thread waits for the result.
+     * <p>
+     * On this mode async arguments may be written as plain blocking calls instead of
+     * returning CompletableFuture, although the latter still works. The async
+     * arguments the expression accesses are independent of each other and get
+     * forked on the @executor, one task each, and joined before the expression runs.
+     * If any of them fails the others are cancelled. With a virtual thread executor
+     * (see VirtualThreads) blocked fetches cost no platform thread.
+     * <p>
+     * Bounded executors work too, including with async arguments forking their own
+     * async arguments: forks no thread of the @executor started by the time they are
+     * needed run on the thread waiting for them. The evaluation never deadlocks, it
+     * only loses parallelism once the executor is saturated.
+     *
+     * @param session  Session of the individual request
+     * @param executor Executor to fork the async arguments on
+     * @return Result of the expression computation
+     */
+    @SuppressWarnings(value = "unchecked")
+    public final Object evalBlocking(EvalSession session, ExecutorService executor) {
+        try {
+            this.prefetch(session);
+            this.forkAsyncArguments(this.asyncArgs, session, executor);
+            Object result = this.evaluate(session, executor);
+            if (result instanceof CompletableFuture) {
+                // Async expressions written on the CompletableFuture style
+                result = ((CompletableFuture<Object>) result).join();
+            }
+            return result;
+        } catch (Exception e) {
+            throw this.failure(e);
+        }
+    }
+
+    /**
+     * Fetches all @arguments on the blocking mode, forking all but one of them on the
+     * @executor and running the remaining one on the calling thread. Returns once all
+     * are in the session cache.
      *
      * @param arguments Arguments to be fetched
      * @param session   Caller's evaluation session
-     * @param executor  Executor to fetch the arguments on
-     * @return Future to be fulfilled when all arguments are ready
+     * @param executor  Executor to fork the arguments on
+     * @throws EvaluationException If any of the fetches fails
      */
-    private CompletableFuture<Void> cacheAsyncArguments(
-            Argument[] arguments, EvalSession session, Executor executor) {
-        CompletableFuture<Void> result = new CompletableFuture<>();
-        if (arguments == null || arguments.length == 0) {
-            result.complete(null);
-            return result;
+    private void forkAsyncArguments(
+            Argument[] arguments, EvalSession session, ExecutorService executor) {
+        if (arguments.length == 0) {
+            return;
         }
 
-        CompletableFuture.runAsync(
-                () -> {
+        SessionTrace trace = session.trace();
+        TraceSpan span = trace != null ? trace.current() : null;
+        Fork[] forks = new Fork[arguments.length - 1];
+        try {
+            for (int i = 1; i < arguments.length; ++i) {
+                Argument argument = arguments[i];
+                forks[i - 1] = new Fork(() -> {
+                    // Forks read their argument under the current trace span
+                    TraceSpan previous = trace != null ? trace.swap(span) : null;
                     try {
-                        // TODO Use DisjointSets to optimize this logic.
-
-                        if (this.info.hasCommonDependencies()) {
-                            // Arguments have dependencies in common.
-                            // To avoid racing when loading the same arguments in the
-                            // same session, we load the async arguments serially when
-                            // they share at least one dependency.
-                            //
-                            // As an example, one of the issues of loading the async
-                            // args in parallel is if different arguments depend on a
-                            // common nested argument. In this case, if both fetches
-                            // start before the other finishes, they will fetch the
-                            // dependant argument independently instead of leveraging
-                            // the cached result of one another and possibly can get
-                            // different values causing unattended consequences.
-                            CompletableFuture<Object> fetchAllTask = null;
-                            for (Argument arg : arguments) {
-                                if (fetchAllTask == null) {
-                                    // First argument, start the chain
-                                    fetchAllTask = arg.valueAsync(session, executor);
-                                } else {
-                                    // Nesting all other arguments in the chain
-                                    fetchAllTask = fetchAllTask.thenCompose(
-                                            (r) -> arg.valueAsync(session, executor));
-                                }
-                            }
-
-                            fetchAllTask
-                                    .thenAccept((r) -> result.complete(VOID))
-                                    .exceptionally((e) -> {
-                                        result.completeExceptionally(
-                                                cause(e, this.info.getSourceExpression()));
-                                        return VOID;
-                                    });
-                        } else {
-                            // Arguments have no dependencies in common and therefore
-                            // they can be load in parallel
-                            CompletableFuture[] futures = Arrays.stream(arguments)
-                                    .map((argument) -> argument.valueAsync(
-                                            session,
-                                            executor))
-                                    .toArray(CompletableFuture[]::new);
-
-                            CompletableFuture.allOf(futures)
-                                    .thenAccept(result::complete)
-                                    .exceptionally((e) -> {
-                                        result.completeExceptionally(
-                                                cause(e, this.info().getSourceExpression()));
-                                        return null;
-                                    });
+                        argument.valueBlocking(session, executor);
+                    } finally {
+                        if (trace != null) {
+                            trace.swap(previous);
                         }
-                    } catch (Exception e) {
-                        result.completeExceptionally(
-                                cause(e, this.info().getSourceExpression()));
                     }
-                }, executor);
+                });
+                forks[i - 1].submit(executor);
+            }
 
-        return result;
+            arguments[0].valueBlocking(session, executor);
+            for (Fork fork : forks) {
+                fork.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EvaluationException(
+                    e, "Interrupted evaluating %s", this.info.getSourceExpression());
+        } catch (ExecutionException e) {
+            throw cause(e.getCause(), this.info.getSourceExpression());
+        } finally {
+            for (Fork fork : forks) {
+                if (fork != null) {
+                    fork.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetch forked by forkAsyncArguments(). It runs on the executor or, if it has not
+     * started by the time it is joined, on the joining thread. Joining therefore never
+     * waits for a task queued behind busy threads, so forks nested in forked fetches
+     * can't deadlock a bounded executor: they just run inline once it is saturated.
+     */
+    private static final class Fork implements Runnable {
+        private final Runnable fetch;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private Future<?> future;
+
+        private Fork(Runnable fetch) {
+            this.fetch = fetch;
+        }
+
+        private void submit(ExecutorService executor) {
+            try {
+                this.future = executor.submit(this);
+            } catch (RejectedExecutionException e) {
+                // Runs on join
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!this.claimed.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                this.fetch.run();
+                this.done.complete(null);
+            } catch (Throwable e) {
+                this.done.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * Runs the fetch on the calling thread if no thread started it, then waits
+         * for it to complete
+         */
+        private void join() throws InterruptedException, ExecutionException {
+            this.run();
+            this.done.get();
+        }
+
+        /**
+         * Prevents the fetch from starting, or interrupts it if it is running
+         */
+        private void cancel() {
+            this.claimed.set(true);
+            if (this.future != null) {
+                this.future.cancel(true);
+            }
+        }
     }
 
     /**
-     * Builds a Janino ExpressionEvaluator to serve the given @expression evaluations
+     * Asynchronously caches all arguments passed in on @arguments. The resulting
+     * completable future will only be ready when all arguments are in teh cache.
+     * <p>
+     * Nothing is dispatched to the @executor here, only the arguments whose fetch is
+     * actually async do so. When all arguments are already cached the returned future
+     * is already completed and the expression evaluates inline.
+     *
+     * @param arguments Arguments to be fetched
+     * @param session   Caller's evaluation session
+     * @param executor  Executor to fetch the arguments on
+     * @return Future to be fulfilled when all arguments are ready
      */
-    private static IExpressionEvaluator buildExpressionEvaluator(
-            ExpressionMetadata info)
-            throws CompileException {
-        IExpressionEvaluator eval = new ExpressionEvaluator();
-
-        // All expressions will only feed of the arguments therefore all we need are
-        // the argument registry, the argument provider and the evaluation session
-        eval.setParameters(
-                new String[]{"session", "executor"},
-                new Class[]{EvalSession.class, Executor.class});
-
-        //Merge all imports (default and user) and set them
-        String[] allImports =
-                new String[DEFAULT_IMPORTS.length + info.getImports().length];
-        System.arraycopy(
-                DEFAULT_IMPORTS, 0, allImports, 0, DEFAULT_IMPORTS.length);
-        System.arraycopy(
-                info.getImports(),
-                0,
-                allImports,
-                DEFAULT_IMPORTS.length,
-                info.getImports().length);
-        eval.setDefaultImports(allImports);
-
-        // TODO Check when the expression gets destructed the compilation doesn't leak
+    private CompletableFuture<Void> cacheAsyncArguments(
+            Argument[] arguments, EvalSession session, Executor executor) {
+        if (arguments.length == 0) {
+            return NO_ARGUMENTS;
+        }
 
         try {
-            eval.setExpressionType(info.getReturnType());
-            eval.cook(info.getExpression());
-        } catch (CompileException e) {
-            if (info.isAsync()) {
-                try {
-                    // Async expression can return CompletableFuture, when they are root
-                    // async expression, or they can return the actual final type, when
-                    // only their arguments are async and therefore will be asynchronously
-                    // fetched before evaluating the expression.
-                    // Eg.:
-                    // $exp1 = 'MyClass.doFooAsync($a)' -> return type = CompletableFuture
-                    // $exp2 = '$exp1 + 10' -> return type = Integer
-                    eval.setExpressionType(CompletableFuture.class);
-                    eval.cook(info.getExpression());
-                } catch (CompileException innerEx) {
-                    throw e;
-                }
-            } else {
-                throw e;
+            // Arguments are loaded in parallel, even when they have dependencies in
+            // common: the session shares the in-flight fetch or computation of each
+            // argument, so common dependencies are still loaded once
+            CompletableFuture[] futures = new CompletableFuture[arguments.length];
+            for (int i = 0; i < arguments.length; ++i) {
+                futures[i] = arguments[i].valueAsync(session, executor);
             }
+            return CompletableFuture.allOf(futures);
+        } catch (Exception e) {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            result.completeExceptionally(cause(e, this.info().getSourceExpression()));
+            return result;
         }
+    }
 
-        return eval;
+    /**
+     * Unwraps the @e error of a sync evaluation, recording it
+     */
+    private EvaluationException failure(Throwable e) {
+        if (Metrics.isEnabled()) {
+            Metrics.sink().evalError(this.info);
+        }
+        return cause(e, this.info.getSourceExpression());
     }
 
     /**
@@ -288,8 +544,7 @@ public class Expression {
 
         if (e.getCause() instanceof EvaluationException) {
             return (EvaluationException) e.getCause();
-        } else if (e.getCause() instanceof InvocationTargetException ||
-                e.getCause() instanceof CompletionException ||
+        } else if (e.getCause() instanceof CompletionException ||
                 e.getCause() instanceof ExecutionException) {
             return new EvaluationException(
                     e.getCause(),
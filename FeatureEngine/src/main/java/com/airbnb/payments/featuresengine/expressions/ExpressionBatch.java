@@ -0,0 +1,278 @@
+package com.airbnb.payments.featuresengine.expressions;
+
+import com.airbnb.payments.featuresengine.core.EvalSession;
+import com.airbnb.payments.featuresengine.errors.CompilationException;
+import com.airbnb.payments.featuresengine.metrics.Metrics;
+
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.janino.ByteArrayClassLoader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Expressions compiled together as static methods of a few shared generated classes,
+ * instead of one class and one class loader per expression.
+ * <p>
+ * Expressions are added as they are created and compiled all at once by compile().
+ * They are grouped by imports and evaluator interface, each group is packed into
+ * classes of up to @classSize methods and all classes of the batch are loaded by a
+ * single class loader. Each evaluator is an instance of a batch class bound to the
+ * index of its expression, dispatching to the expression method with a switch.
+ * Identical expressions of the batch share their method.
+ * <p>
+ * Batch evaluators are not shared through the evaluator cache, so only the
+ * expressions of the batch keep its class loader alive: all its classes are unloaded
+ * together once they are unreachable. For the arguments of a registry, that is once
+ * every argument of the ArgumentFactory.createAll() or update() call that built the
+ * batch is replaced and discarded. Each update() call builds its own batch, and
+ * also recompiles into it the arguments left on batches less than half used by the
+ * new registry version (see size()), so the loaders of older batches don't pile up
+ * for a few arguments each.
+ * <p>
+ * Only sync expressions are batched. Async ones are compiled on their own as usual,
+ * as whether they evaluate to their type or to a CompletableFuture of it is only
+ * known by trying both. So are the expressions of a batch class failing to compile,
+ * which also finds the expression at fault.
+ */
+public final class ExpressionBatch {
+    private static final String METHOD_TEMPLATE =
+            "private static %s e%d(%s session, %s executor) {\n"
+                    + "    %s result = (\n%s\n    );\n"
+                    + "    return result;\n"
+                    + "}\n";
+
+    private final int classSize;
+    private final List<Expression> pending;
+    // Number of expressions bound to the classes of the batch
+    private int size;
+
+    /**
+     * Generated class, with the methods of a group of expressions
+     */
+    private static final class Unit {
+        private final String className;
+        private final Class<?> evaluatorInterface;
+        private final String[] imports;
+        // Expressions compiled into the class, by method index
+        private final List<ExpressionMetadata> methods = new ArrayList<>();
+        private final Map<String, Integer> indexes = new HashMap<>();
+        // Compilation result
+        private Map<String, byte[]> classes;
+
+        private Unit(String className, Class<?> evaluatorInterface, String[] imports) {
+            this.className = className;
+            this.evaluatorInterface = evaluatorInterface;
+            this.imports = imports;
+        }
+    }
+
+    /**
+     * @param classSize Maximum number of expressions compiled into a single class
+     */
+    public ExpressionBatch(int classSize) {
+        if (classSize <= 0) {
+            throw new IllegalArgumentException("Class size must be positive");
+        }
+
+        this.classSize = classSize;
+        this.pending = new ArrayList<>();
+    }
+
+    /**
+     * Adds the @expression, created without evaluator, to be compiled on compile()
+     */
+    synchronized void add(Expression expression) {
+        this.pending.add(expression);
+    }
+
+    /**
+     * Number of expressions compiled into the classes of the batch. Expressions
+     * compiled on their own, eg.: async ones, are not included.
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * Compiles all expressions added since the last call, the batch classes in
+     * parallel on the @pool, and binds their evaluators. The expressions can't be
+     * evaluated before.
+     *
+     * @param pool Pool to compile the classes on
+     * @throws CompilationException If any of the expressions fails compiling
+     */
+    public void compile(ForkJoinPool pool) {
+        List<Expression> expressions;
+        synchronized (this) {
+            expressions = new ArrayList<>(this.pending);
+            this.pending.clear();
+        }
+        // Sorted so the same expressions generate the same sources, which the
+        // bytecode cache is keyed by
+        expressions.sort(Comparator.comparing((expression) -> expression.info().getId()));
+
+        Map<Expression, Unit> units = new HashMap<>();
+        List<Unit> classes = this.pack(expressions, units);
+        ClassLoader parent = Thread.currentThread().getContextClassLoader();
+        try {
+            pool.submit(() -> classes.parallelStream().forEach(
+                    (unit) -> compile(unit, parent))).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompilationException(e, "Interrupted compiling expressions");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new CompilationException(e, "Failed compiling expressions");
+        }
+
+        Map<String, byte[]> bytecode = new HashMap<>();
+        for (Unit unit : classes) {
+            if (unit.classes != null) {
+                bytecode.putAll(unit.classes);
+            }
+        }
+        ClassLoader classLoader = new ByteArrayClassLoader(bytecode, parent);
+
+        int bound = 0;
+        for (Expression expression : expressions) {
+            Unit unit = units.get(expression);
+            Object evaluator = unit.classes != null
+                    ? instantiate(classLoader, unit, expression)
+                    : null;
+            if (evaluator != null) {
+                expression.bind(evaluator, this);
+                ++bound;
+            } else {
+                expression.bind(ExpressionFactory.compile(expression.info()));
+            }
+        }
+        synchronized (this) {
+            this.size += bound;
+        }
+    }
+
+    /**
+     * Groups the @expressions into units, filling @units with the unit of each
+     * expression.
+     *
+     * @return All units
+     */
+    private List<Unit> pack(List<Expression> expressions, Map<Expression, Unit> units) {
+        List<Unit> classes = new ArrayList<>();
+        // Unit being filled for each group of imports and evaluator interface
+        Map<List<Object>, Unit> current = new HashMap<>();
+        for (Expression expression : expressions) {
+            ExpressionMetadata info = expression.info();
+            Class<?> evaluatorInterface = ExpressionCompiler.evaluatorInterface(info);
+            String[] imports = ExpressionCompiler.imports(info);
+            List<Object> group = Arrays.asList(
+                    evaluatorInterface, Arrays.asList(imports));
+
+            Unit unit = current.get(group);
+            if (unit == null
+                    || (!unit.indexes.containsKey(info.getId())
+                    && unit.methods.size() == this.classSize)) {
+                unit = new Unit(
+                        "ExpressionBatch_" + classes.size(), evaluatorInterface, imports);
+                classes.add(unit);
+                current.put(group, unit);
+            }
+
+            if (!unit.indexes.containsKey(info.getId())) {
+                unit.indexes.put(info.getId(), unit.methods.size());
+                unit.methods.add(info);
+            }
+            units.put(expression, unit);
+        }
+        return classes;
+    }
+
+    /**
+     * Compiles the @unit, leaving its classes null if it fails
+     */
+    private static void compile(Unit unit, ClassLoader parent) {
+        try {
+            long start = System.nanoTime();
+            unit.classes = ExpressionCompiler.compileCached(source(unit), parent);
+            if (Metrics.isEnabled()) {
+                long nanos = (System.nanoTime() - start) / unit.methods.size();
+                for (ExpressionMetadata info : unit.methods) {
+                    Metrics.sink().compile(info, nanos);
+                }
+            }
+        } catch (CompileException e) {
+            unit.classes = null;
+        }
+    }
+
+    /**
+     * Builds the source of the batch class of the @unit
+     */
+    private static String source(Unit unit) {
+        String returnType = ExpressionCompiler.typeName(
+                ExpressionCompiler.methodType(unit.evaluatorInterface));
+        String session = EvalSession.class.getName();
+        String executor = Executor.class.getName();
+
+        StringBuilder body = new StringBuilder()
+                .append("private final int index;\n")
+                .append("public ").append(unit.className).append("(int index) {\n")
+                .append("    this.index = index;\n")
+                .append("}\n")
+                .append("public ").append(returnType)
+                .append(" evaluate(").append(session).append(" session, ")
+                .append(executor).append(" executor) {\n")
+                .append("    switch (this.index) {\n");
+        for (int i = 0; i < unit.methods.size(); ++i) {
+            body.append("        case ").append(i)
+                    .append(": return e").append(i).append("(session, executor);\n");
+        }
+        body.append("    }\n")
+                .append("    throw new java.lang.IllegalStateException(")
+                .append("\"No expression \" + this.index);\n")
+                .append("}\n");
+
+        for (int i = 0; i < unit.methods.size(); ++i) {
+            ExpressionMetadata info = unit.methods.get(i);
+            body.append(String.format(
+                    METHOD_TEMPLATE,
+                    returnType,
+                    i,
+                    session,
+                    executor,
+                    ExpressionCompiler.typeName(info.getReturnType()),
+                    info.getExpression()));
+        }
+
+        return ExpressionCompiler.compilationUnit(
+                unit.className, unit.imports, unit.evaluatorInterface, body.toString());
+    }
+
+    /**
+     * Instantiates the evaluator of the @expression out of its batch class
+     *
+     * @return The evaluator or null if the class can't be loaded (eg.: stale bytecode
+     * cache)
+     */
+    private static Object instantiate(ClassLoader classLoader,
+                                      Unit unit,
+                                      Expression expression) {
+        try {
+            return classLoader.loadClass(unit.className)
+                    .getConstructor(int.class)
+                    .newInstance(unit.indexes.get(expression.info().getId()));
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
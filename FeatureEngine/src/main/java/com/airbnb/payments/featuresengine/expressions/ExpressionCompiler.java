@@ -0,0 +1,345 @@
+package com.airbnb.payments.featuresengine.expressions;
+
+import com.airbnb.payments.featuresengine.core.EvalSession;
+import com.airbnb.payments.featuresengine.core.Types;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.janino.ByteArrayClassLoader;
+import org.codehaus.janino.ClassLoaderIClassLoader;
+import org.codehaus.janino.Java;
+import org.codehaus.janino.Parser;
+import org.codehaus.janino.Scanner;
+import org.codehaus.janino.UnitCompiler;
+import org.codehaus.janino.util.ClassFile;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Compiles expressions into classes implementing one of the evaluator interfaces
+ * (IObjectEvaluator, IIntEvaluator, ...), so evaluations are plain interface calls
+ * the JIT can inline.
+ * <p>
+ * The expression is assigned to a local of the expected type before being returned,
+ * therefore type mismatches are caught at compile time with the same assignment
+ * conversion rules as before, even when the interface returns Object.
+ * <p>
+ * Compiled evaluators are stateless, so they are cached by the expression id, which
+ * is a hash of everything that defines the generated code. Identical expressions,
+ * even across registries, share a single evaluator. Values are weakly referenced so
+ * unused evaluators (and their classes) can still be collected.
+ * <p>
+ * Optionally the generated bytecode is also persisted to a BytecodeCache so a new
+ * process can skip compilation altogether.
+ */
+class ExpressionCompiler {
+    private static final Cache<String, Object> evaluators =
+            CacheBuilder.newBuilder().weakValues().build();
+    // Optional persistent cache of the generated bytecode
+    private static volatile BytecodeCache bytecodeCache;
+
+    private static final String[] DEFAULT_IMPORTS = {
+            "java.util.concurrent.CompletableFuture",
+    };
+
+    private static final String METHOD_TEMPLATE =
+            "public %s evaluate(%s session, %s executor) {\n"
+                    + "    %s result = (\n%s\n    );\n"
+                    + "    return result;\n"
+                    + "}\n";
+
+    /**
+     * Compiles the expression described by @info into the evaluator matching its
+     * type: sync expressions of type int, long, double or boolean get the matching
+     * unboxed evaluator, all others an IObjectEvaluator.
+     *
+     * @param info Expression metadata
+     * @return Instance of the generated class
+     * @throws CompileException If the expression does not compile
+     */
+    static Object compile(ExpressionMetadata info) throws CompileException {
+        try {
+            return evaluators.get(info.getId(), () -> compileUncached(info));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof CompileException) {
+                throw (CompileException) e.getCause();
+            }
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    /**
+     * Same as compile() but always compiles the expression
+     */
+    static Object compileUncached(ExpressionMetadata info) throws CompileException {
+        Class<?> evaluatorInterface = evaluatorInterface(info);
+        if (evaluatorInterface != IObjectEvaluator.class) {
+            return compile(info, evaluatorInterface, info.getReturnType());
+        }
+
+        try {
+            return compile(info, IObjectEvaluator.class, info.getReturnType());
+        } catch (CompileException e) {
+            if (info.isAsync()) {
+                try {
+                    // Async expression can return CompletableFuture, when they are root
+                    // async expression, or they can return the actual final type, when
+                    // only their arguments are async and therefore will be asynchronously
+                    // fetched before evaluating the expression.
+                    // Eg.:
+                    // $exp1 = 'MyClass.doFooAsync($a)' -> return type = CompletableFuture
+                    // $exp2 = '$exp1 + 10' -> return type = Integer
+                    return compile(info, IObjectEvaluator.class, CompletableFuture.class);
+                } catch (CompileException innerEx) {
+                    throw e;
+                }
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Picks the evaluator interface the expression described by @info compiles to
+     */
+    static Class<?> evaluatorInterface(ExpressionMetadata info) {
+        Class<?> type = info.getReturnType();
+        if (info.isAsync() || !Types.isSpecialized(type)) {
+            return IObjectEvaluator.class;
+        } else if (type == int.class) {
+            return IIntEvaluator.class;
+        } else if (type == long.class) {
+            return ILongEvaluator.class;
+        } else if (type == double.class) {
+            return IDoubleEvaluator.class;
+        } else {
+            return IBooleanEvaluator.class;
+        }
+    }
+
+    /**
+     * Compiles the expression described by @info into an instance of the
+     * @evaluatorInterface.
+     *
+     * @param info               Expression metadata
+     * @param evaluatorInterface One of the evaluator interfaces
+     * @param expressionType     Type the expression must be assignable to
+     * @return Instance of the generated class
+     * @throws CompileException If the expression does not compile
+     */
+    static Object compile(ExpressionMetadata info,
+                          Class<?> evaluatorInterface,
+                          Class<?> expressionType) throws CompileException {
+        return cook(
+                info.getId(),
+                imports(info),
+                evaluatorInterface,
+                classBody(info, evaluatorInterface, expressionType));
+    }
+
+    /**
+     * Cooks the @classBody into a class implementing the @evaluatorInterface and
+     * instantiates it. When a bytecode cache is set, the class is loaded from there
+     * if it was compiled before and stored there otherwise.
+     *
+     * @param className          Name of the generated class
+     * @param imports            Imports of the class body
+     * @param evaluatorInterface One of the evaluator interfaces
+     * @param classBody          Body of the class
+     * @return Instance of the generated class
+     * @throws CompileException If the class body does not compile
+     */
+    static Object cook(String className,
+                       String[] imports,
+                       Class<?> evaluatorInterface,
+                       String classBody) throws CompileException {
+        String source = compilationUnit(
+                className, imports, evaluatorInterface, classBody);
+        ClassLoader parent = Thread.currentThread().getContextClassLoader();
+
+        BytecodeCache cache = bytecodeCache;
+        String key = cache != null ? BytecodeCache.key(source, parent) : null;
+        if (cache != null) {
+            Map<String, byte[]> classes = cache.load(key);
+            if (classes != null) {
+                try {
+                    return instantiate(
+                            new ByteArrayClassLoader(classes, parent), className);
+                } catch (CompileException | LinkageError e) {
+                    // The entry is not loadable anymore, it gets compiled and
+                    // replaced below
+                }
+            }
+        }
+
+        Map<String, byte[]> classes = compileUnit(source, parent);
+        if (cache != null) {
+            cache.store(key, classes);
+        }
+        return instantiate(new ByteArrayClassLoader(classes, parent), className);
+    }
+
+    /**
+     * Compiles the compilation unit @source into bytecode, or loads it from the
+     * bytecode cache if it was compiled before.
+     *
+     * @param source      Source of the compilation unit
+     * @param classLoader Class loader to resolve referenced classes on
+     * @return Bytecode by class name
+     * @throws CompileException If the source does not compile
+     */
+    static Map<String, byte[]> compileCached(String source, ClassLoader classLoader)
+            throws CompileException {
+        BytecodeCache cache = bytecodeCache;
+        String key = cache != null ? BytecodeCache.key(source, classLoader) : null;
+        if (cache != null) {
+            Map<String, byte[]> classes = cache.load(key);
+            if (classes != null) {
+                return classes;
+            }
+        }
+
+        Map<String, byte[]> classes = compileUnit(source, classLoader);
+        if (cache != null) {
+            cache.store(key, classes);
+        }
+        return classes;
+    }
+
+    /**
+     * Sets the directory compiled classes are persisted to and loaded from. Null
+     * disables the bytecode cache.
+     *
+     * @param directory Cache directory or null
+     */
+    static void bytecodeCache(Path directory) {
+        bytecodeCache = directory != null ? new BytecodeCache(directory) : null;
+    }
+
+    /**
+     * Builds the source of the whole compilation unit of the generated class
+     */
+    static String compilationUnit(String className,
+                                  String[] imports,
+                                  Class<?> evaluatorInterface,
+                                  String classBody) {
+        StringBuilder source = new StringBuilder();
+        for (String anImport : imports) {
+            source.append("import ").append(anImport).append(";\n");
+        }
+        return source
+                .append("public final class ")
+                .append(className)
+                .append(" implements ")
+                .append(typeName(evaluatorInterface))
+                .append(" {\n")
+                .append(classBody)
+                .append("}\n")
+                .toString();
+    }
+
+    /**
+     * Compiles the @source into bytecode, resolving referenced classes on the
+     * @classLoader.
+     *
+     * @return Bytecode by class name
+     * @throws CompileException If the source does not compile
+     */
+    private static Map<String, byte[]> compileUnit(
+            String source, ClassLoader classLoader) throws CompileException {
+        try {
+            Java.CompilationUnit unit = new Parser(
+                    new Scanner(null, new StringReader(source)))
+                    .parseCompilationUnit();
+            ClassFile[] classFiles = new UnitCompiler(
+                    unit, new ClassLoaderIClassLoader(classLoader))
+                    .compileUnit(false, true, false);
+
+            Map<String, byte[]> classes = new LinkedHashMap<>();
+            for (ClassFile classFile : classFiles) {
+                classes.put(classFile.getThisClassName(), classFile.toByteArray());
+            }
+            return classes;
+        } catch (IOException e) {
+            throw new CompileException("Could not read the generated source", null, e);
+        }
+    }
+
+    /**
+     * Loads the class @className from the @classLoader and instantiates it
+     */
+    private static Object instantiate(ClassLoader classLoader, String className)
+            throws CompileException {
+        try {
+            return classLoader.loadClass(className).newInstance();
+        } catch (ClassNotFoundException
+                | InstantiationException
+                | IllegalAccessException e) {
+            throw new CompileException(
+                    String.format("Could not instantiate %s", className), null, e);
+        }
+    }
+
+    /**
+     * Builds the class body implementing the single method of @evaluatorInterface
+     */
+    static String classBody(ExpressionMetadata info,
+                            Class<?> evaluatorInterface,
+                            Class<?> expressionType) {
+        return String.format(
+                METHOD_TEMPLATE,
+                typeName(methodType(evaluatorInterface)),
+                EvalSession.class.getName(),
+                Executor.class.getName(),
+                typeName(expressionType),
+                info.getExpression());
+    }
+
+    /**
+     * Merges all imports (default and user)
+     */
+    static String[] imports(ExpressionMetadata info) {
+        String[] allImports =
+                new String[DEFAULT_IMPORTS.length + info.getImports().length];
+        System.arraycopy(
+                DEFAULT_IMPORTS, 0, allImports, 0, DEFAULT_IMPORTS.length);
+        System.arraycopy(
+                info.getImports(),
+                0,
+                allImports,
+                DEFAULT_IMPORTS.length,
+                info.getImports().length);
+        return allImports;
+    }
+
+    /**
+     * Return type of the evaluate() method of the @evaluatorInterface
+     */
+    static Class<?> methodType(Class<?> evaluatorInterface) {
+        try {
+            return evaluatorInterface
+                    .getMethod("evaluate", EvalSession.class, Executor.class)
+                    .getReturnType();
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(
+                    evaluatorInterface.getName() + " is not an evaluator interface", e);
+        }
+    }
+
+    /**
+     * Name of the @type as written in source code
+     */
+    static String typeName(Class<?> type) {
+        String name = type.getCanonicalName();
+        return name != null ? name : type.getName();
+    }
+}
@@ -3,11 +3,19 @@ package com.airbnb.payments.featuresengine.expressions;
 import com.airbnb.payments.featuresengine.arguments.Argument;
 import com.airbnb.payments.featuresengine.arguments.ArgumentRegistry;
 import com.airbnb.payments.featuresengine.config.ExpressionConfig;
+import com.airbnb.payments.featuresengine.core.Types;
 import com.airbnb.payments.featuresengine.errors.CompilationException;
+import com.airbnb.payments.featuresengine.metrics.Metrics;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import org.codehaus.commons.compiler.CompileException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.Function;
 
 /**
  * To simplify expression and prevent avoid the need to explicity do casting, access
@@ -16,13 +24,152 @@ import java.util.regex.Pattern;
  * runnable way to access the argument.
  */
 public class ExpressionFactory {
-    private static Pattern regex;
+    // Maximum number of expressions per batch class. Zero if batching is disabled
+    private static volatile int batchSize;
 
-    static {
-        regex = Pattern.compile("(\\$[A-Za-z_][A-Za-z_]*)");
+    /**
+     * Creates a standalone expression. It is compiled against the latest published
+     * version of the registry (see ArgumentRegistry.snapshot()), never against
+     * arguments still being registered, and keeps that version alive, so the
+     * versions of the arguments it reads are never discarded while it is in use.
+     *
+     * @param registry Registry with all arguments the expression depends on
+     * @param config   The expression configuration
+     * @return The compiled expression
+     * @throws CompilationException If the expression does not compile
+     */
+    public static Expression create(
+            ArgumentRegistry registry, ExpressionConfig config) {
+        ArgumentRegistry version = registry.snapshot();
+        Expression expression = create(version, config, null);
+        expression.pin(version);
+        return expression;
     }
 
-    public static Expression create(
+    /**
+     * Creates the expression of a registry argument, which is kept alive by the
+     * registry instead.
+     *
+     * @param registry Registry with all arguments the expression depends on
+     * @param config   The expression configuration
+     * @param batch    Batch compiling the expression on ExpressionBatch.compile(),
+     *                 if it is sync. Null to compile it right away
+     * @return The expression
+     * @throws CompilationException If the expression does not compile
+     */
+    public static Expression create(ArgumentRegistry registry,
+                                    ExpressionConfig config,
+                                    ExpressionBatch batch) {
+        ExpressionMetadata info = metadata(registry, config);
+        if (batch != null && !info.isAsync()) {
+            Expression expression = new Expression(info, null);
+            batch.add(expression);
+            return expression;
+        }
+
+        return new Expression(info, compile(info));
+    }
+
+    /**
+     * Compiles the expression described by @info on its own
+     *
+     * @return The evaluator
+     * @throws CompilationException If the expression does not compile
+     */
+    static Object compile(ExpressionMetadata info) {
+        try {
+            long start = System.nanoTime();
+            Object evaluator = ExpressionCompiler.compile(info);
+            if (Metrics.isEnabled()) {
+                Metrics.sink().compile(info, System.nanoTime() - start);
+            }
+            return evaluator;
+        } catch (CompileException e) {
+            throw new CompilationException(
+                    e, "Failed compiling %s", info.getSourceExpression());
+        }
+    }
+
+    /**
+     * Creates an expression whose whole dependency graph is compiled into a single
+     * class. Every named expression the expression depends on, directly or not,
+     * becomes a method of that class and its value is memoized on a field for the
+     * duration of the evaluation, instead of going through the registry and the
+     * session cache.
+     * <p>
+     * The fused expression and all its dependencies must be sync. Input arguments
+     * are still read from the session.
+     *
+     * @param registry Registry with all arguments the expression depends on
+     * @param config   The expression configuration
+     * @return The fused expression
+     * @throws CompilationException If the expression or any of its dependencies is
+     *                              async or does not compile
+     */
+    public static Expression createFused(
+            ArgumentRegistry registry, ExpressionConfig config) {
+        ArgumentRegistry version = registry.snapshot();
+        ExpressionMetadata info = metadata(version, config);
+        try {
+            long start = System.nanoTime();
+            Object evaluator = FusedCompiler.compile(info);
+            if (Metrics.isEnabled()) {
+                Metrics.sink().compile(info, System.nanoTime() - start);
+            }
+            Expression expression = new Expression(info, evaluator);
+            expression.pin(version);
+            return expression;
+        } catch (CompileException e) {
+            throw new CompilationException(
+                    e, "Failed compiling fused %s", info.getSourceExpression());
+        }
+    }
+
+    /**
+     * Persists the bytecode of every expression compiled from now on to @directory,
+     * and loads it from there instead of compiling when the same expression was
+     * compiled before, possibly by another process. Entries are keyed by the
+     * generated code, the engine and compiler versions and the bytecode of the
+     * imported classes. Classes an expression references by their fully qualified
+     * name are not part of the key, so the directory must be cleared when they change.
+     * <p>
+     * Meant to be set once at startup, before the registry is built, to cut the
+     * startup time of processes compiling large registries.
+     *
+     * @param directory Cache directory, created if missing. Null disables the cache
+     */
+    public static void setBytecodeCache(Path directory) {
+        ExpressionCompiler.bytecodeCache(directory);
+    }
+
+    /**
+     * Makes ArgumentFactory.createAll() and update() compile the sync expressions of
+     * their arguments in a batch (see ExpressionBatch), packing up to @size
+     * expressions per generated class. All classes of a call share a single class
+     * loader, only unloaded once all arguments of the call are discarded.
+     *
+     * @param size Expressions per class. Zero, the default, compiles each expression
+     *             into its own class
+     */
+    public static void setBatchSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Batch size can't be negative");
+        }
+        batchSize = size;
+    }
+
+    /**
+     * @return A new batch of the configured size or null if batching is disabled
+     */
+    public static ExpressionBatch newBatch() {
+        int size = batchSize;
+        return size > 0 ? new ExpressionBatch(size) : null;
+    }
+
+    /**
+     * Parses the expression arguments and builds the expression metadata
+     */
+    private static ExpressionMetadata metadata(
             ArgumentRegistry registry, ExpressionConfig config) {
         try {
             List<Argument> arguments = parseArguments(registry, config.getExpression());
@@ -37,16 +184,21 @@ public class ExpressionFactory {
             String finalExpression = processSyncExpression(
                     config.getExpression(),
                     arguments);
+            Class<?> returnType = Types.forName(config.getReturnType());
 
-            return new Expression(
-                    new ExpressionMetadata(
-                            generateID(),
-                            config.getExpression(),
+            return new ExpressionMetadata(
+                    registry,
+                    generateID(
                             finalExpression,
-                            Class.forName(config.getReturnType()),
-                            new HashSet<>(arguments),
-                            config.isAsync(),
-                            config.getDependencies()));
+                            returnType,
+                            config.getDependencies(),
+                            config.isAsync()),
+                    config.getExpression(),
+                    finalExpression,
+                    returnType,
+                    new HashSet<>(arguments),
+                    config.isAsync(),
+                    config.getDependencies());
         } catch (ClassNotFoundException e) {
             throw new CompilationException(e,
                     "Class not found when compiling expression %s",
@@ -55,51 +207,164 @@ public class ExpressionFactory {
     }
 
     /**
-     * TODO Explain
+     * Replaces every $argument reference by the call that reads the argument from the
+     * session registry. Arguments are read by their registry slot so the compiled
+     * expression never hashes the argument name. Arguments of type int, long, double
+     * and boolean are read through their unboxed accessors.
      *
-     * @param expression
-     * @param arguments
-     * @return
+     * @param expression The user inputted expression
+     * @param arguments  The arguments accessed by the expression
+     * @return The runnable expression
      */
     private static String processSyncExpression(
-            String expression, List<Argument> arguments) {
-        // Replaces the compressed syntax by the argument access logic
-        String result;
-        result = expression;
+            String expression, Collection<Argument> arguments) {
+        return rewrite(expression, arguments, ExpressionFactory::accessor);
+    }
+
+    /**
+     * Replaces every $argument reference of the @expression by the code the
+     * @accessor generates for that argument.
+     *
+     * @param expression The user inputted expression
+     * @param arguments  The arguments accessed by the expression
+     * @param accessor   Generates the code reading an argument
+     * @return The rewritten expression
+     */
+    static String rewrite(String expression,
+                          Collection<Argument> arguments,
+                          Function<Argument, String> accessor) {
+        Map<String, Argument> byName = new HashMap<>();
         for (Argument argument : arguments) {
-            result = result.replace(
-                    String.format("$%s", argument.getName()),
-                    String.format(
-                            "((%s)session.registry().value(\"%s\", session))",
-                            argument.getReturnType().getName(),
-                            argument.getName()));
+            byName.put(argument.getName(), argument);
         }
 
-        return result;
+        return ExpressionLexer.rewrite(expression, (name) -> {
+            Argument argument = byName.get(name);
+            return argument != null ? accessor.apply(argument) : "$" + name;
+        });
     }
 
     /**
-     * TODO Explain
+     * Builds the code that reads the @argument from the session registry
+     */
+    static String accessor(Argument argument) {
+        String literal = literal(argument);
+        if (literal != null) {
+            return literal;
+        }
+
+        Class<?> type = argument.getReturnType();
+        if (Types.isSpecialized(type)) {
+            return String.format(
+                    "(session.registry().%sValue(%d, session))",
+                    type.getName(),
+                    argument.getSlot());
+        }
+
+        return String.format(
+                "((%s)session.registry().value(%d, session))",
+                Types.boxed(type).getName(),
+                argument.getSlot());
+    }
+
+    /**
+     * Builds the Java literal of a constant @argument, so its value is inlined into
+     * the dependent expressions and the compiler folds it along with the rest of the
+     * constant subexpressions. Boxed types are boxed back so the expression still
+     * sees the declared type.
      *
-     * @param registry
-     * @param expression
-     * @return
+     * @param argument Any argument
+     * @return The literal or null if the argument is not a constant of a primitive
+     * or String type
      */
-    private static List<Argument> parseArguments(
-            ArgumentRegistry registry, String expression) {
-        Matcher matcher = regex.matcher(expression);
+    static String literal(Argument argument) {
+        if (!argument.isConstant()) {
+            return null;
+        }
 
-        // Captures all argument reading
-        ArrayList<String> matches = new ArrayList<>();
-        while (matcher.find()) {
-            matches.add(matcher.group(0));
+        Class<?> type = argument.getReturnType();
+        Object value = argument.getConstantValue();
+        if (Types.boxed(type) != value.getClass()) {
+            return null;
+        }
+
+        String literal;
+        if (value instanceof Integer) {
+            int number = (Integer) value;
+            literal = number == Integer.MIN_VALUE
+                    ? "java.lang.Integer.MIN_VALUE"
+                    : Integer.toString(number);
+        } else if (value instanceof Long) {
+            long number = (Long) value;
+            literal = number == Long.MIN_VALUE
+                    ? "java.lang.Long.MIN_VALUE"
+                    : number + "L";
+        } else if (value instanceof Double) {
+            double number = (Double) value;
+            if (Double.isNaN(number)) {
+                literal = "java.lang.Double.NaN";
+            } else if (Double.isInfinite(number)) {
+                literal = number > 0
+                        ? "java.lang.Double.POSITIVE_INFINITY"
+                        : "java.lang.Double.NEGATIVE_INFINITY";
+            } else {
+                literal = number + "D";
+            }
+        } else if (value instanceof Boolean) {
+            literal = value.toString();
+        } else if (value instanceof String) {
+            return stringLiteral((String) value);
+        } else {
+            return null;
         }
 
+        if (type.isPrimitive()) {
+            return String.format("(%s)", literal);
+        }
+        return String.format("%s.valueOf(%s)", type.getName(), literal);
+    }
+
+    private static String stringLiteral(String value) {
+        StringBuilder literal = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                literal.append('\\').append(c);
+            } else if (c < 0x20) {
+                // Octal, unicode escapes would be translated before parsing
+                literal.append(String.format("\\%03o", (int) c));
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.append('"').toString();
+    }
+
+    /**
+     * Lists the names of all arguments referenced by the @expression, in order and
+     * including repetitions.
+     *
+     * @param expression The user inputted expression
+     * @return The referenced argument names
+     * @see ExpressionLexer
+     */
+    public static List<String> references(String expression) {
+        return ExpressionLexer.references(expression);
+    }
+
+    /**
+     * Resolves the arguments referenced by the @expression on the @registry
+     *
+     * @param registry   Registry with the argument definitions
+     * @param expression The user inputted expression
+     * @return The distinct arguments referenced by the expression
+     * @throws CompilationException If any referenced argument is not registered
+     */
+    private static List<Argument> parseArguments(
+            ArgumentRegistry registry, String expression) {
         // Gets the argument definition from the registry
         Set<String> seenArguments = new HashSet<>();
         ArrayList<Argument> arguments = new ArrayList<>();
-        for (String s : matches) {
-            String name = s.substring(1);
+        for (String name : references(expression)) {
             if (seenArguments.contains(name)) {
                 continue;
             }
@@ -108,18 +373,39 @@ public class ExpressionFactory {
             arguments.add(registry.get(name));
         }
 
-        // We must handle the lengthier names first to prevent arguments with matching
-        // prefixes to harm the end expression.
-        // Eg.: $b + $big. If we create $b first, we would wrongly target ($b)ig
-        arguments.sort((a1, a2) -> a2.getName().length() - a1.getName().length());
         return arguments;
     }
 
-    private static String generateID() {
+    /**
+     * Generates the expression id out of everything that defines its compiled code.
+     * Expressions with the same id are interchangeable and share the same compiled
+     * evaluator.
+     *
+     * @param expression The processed expression
+     * @param returnType The expression type
+     * @param imports    The expression imports
+     * @param isAsync    If the expression is async
+     * @return Deterministic id of the expression
+     */
+    private static String generateID(String expression,
+                                     Class<?> returnType,
+                                     String[] imports,
+                                     boolean isAsync) {
+        Hasher hasher = Hashing.sha256().newHasher()
+                .putString(expression, StandardCharsets.UTF_8)
+                .putChar('\0')
+                .putString(returnType.getName(), StandardCharsets.UTF_8)
+                .putChar('\0')
+                .putBoolean(isAsync)
+                .putInt(imports.length);
+        for (String anImport : imports) {
+            hasher.putString(anImport, StandardCharsets.UTF_8).putChar('\0');
+        }
+
         return "Exp_"
-                + UUID.randomUUID()
+                + hasher.hash()
                 .toString()
-                .toUpperCase()
-                .replace("-", "");
+                .substring(0, 32)
+                .toUpperCase();
     }
 }
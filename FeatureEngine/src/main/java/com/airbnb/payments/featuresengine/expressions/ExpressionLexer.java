@@ -0,0 +1,135 @@
+package com.airbnb.payments.featuresengine.expressions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Single pass scanner of the $argument references of user expressions.
+ * <p>
+ * The scanner understands just enough of the Java lexical structure to tell code from
+ * string literals, char literals and comments, so a $ inside any of those is left
+ * untouched. A reference is a $ followed by a name made of letters, digits and
+ * underscores, starting with a letter or underscore. A $ that is part of a Java
+ * identifier, like foo$bar, is not a reference.
+ * <p>
+ * Finding the references and rewriting them is done in a single pass over the source
+ * that copies every character once, whatever the number of referenced arguments.
+ */
+public final class ExpressionLexer {
+
+    private ExpressionLexer() {
+    }
+
+    /**
+     * Lists the names of all arguments referenced by the @expression, in order and
+     * including repetitions.
+     *
+     * @param expression The user inputted expression
+     * @return The referenced argument names
+     */
+    public static List<String> references(String expression) {
+        List<String> names = new ArrayList<>();
+        scan(expression, (name) -> {
+            names.add(name);
+            return null;
+        }, null);
+        return names;
+    }
+
+    /**
+     * Replaces every $argument reference of the @expression by the code the
+     * @replacement generates for the argument name.
+     *
+     * @param expression  The user inputted expression
+     * @param replacement Generates the code replacing a reference, given the name
+     * @return The rewritten expression
+     */
+    public static String rewrite(String expression,
+                                 Function<String, String> replacement) {
+        StringBuilder result = new StringBuilder(expression.length() * 2);
+        scan(expression, replacement, result);
+        return result.toString();
+    }
+
+    /**
+     * Scans the @expression calling @reference for every reference found. If @result
+     * is given, the expression is copied into it with each reference replaced by what
+     * @reference returned.
+     */
+    private static void scan(String expression,
+                             Function<String, String> reference,
+                             StringBuilder result) {
+        int length = expression.length();
+        // Start of the source not yet copied into the result
+        int copied = 0;
+        int i = 0;
+        while (i < length) {
+            char c = expression.charAt(i);
+            if (c == '$' && i + 1 < length && isNameStart(expression.charAt(i + 1))) {
+                int end = i + 2;
+                while (end < length && isNamePart(expression.charAt(end))) {
+                    ++end;
+                }
+
+                String code = reference.apply(expression.substring(i + 1, end));
+                if (result != null) {
+                    result.append(expression, copied, i).append(code);
+                    copied = end;
+                }
+                i = end;
+            } else if (c == '"' || c == '\'') {
+                i = skipQuoted(expression, i, c);
+            } else if (c == '/' && i + 1 < length && expression.charAt(i + 1) == '/') {
+                int end = expression.indexOf('\n', i + 2);
+                i = end < 0 ? length : end + 1;
+            } else if (c == '/' && i + 1 < length && expression.charAt(i + 1) == '*') {
+                int end = expression.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                // Whole identifiers are skipped, including any $ they contain
+                ++i;
+                while (i < length
+                        && Character.isJavaIdentifierPart(expression.charAt(i))) {
+                    ++i;
+                }
+            } else {
+                ++i;
+            }
+        }
+
+        if (result != null) {
+            result.append(expression, copied, length);
+        }
+    }
+
+    /**
+     * Skips the string or char literal starting at @start, delimited by @quote
+     *
+     * @return Index right after the closing quote, or the expression length if the
+     * literal is not closed
+     */
+    private static int skipQuoted(String expression, int start, char quote) {
+        int length = expression.length();
+        int i = start + 1;
+        while (i < length) {
+            char c = expression.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == quote) {
+                return i + 1;
+            } else {
+                ++i;
+            }
+        }
+        return length;
+    }
+
+    private static boolean isNameStart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    private static boolean isNamePart(char c) {
+        return isNameStart(c) || (c >= '0' && c <= '9');
+    }
+}
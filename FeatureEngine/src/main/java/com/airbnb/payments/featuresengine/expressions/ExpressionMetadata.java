@@ -1,11 +1,12 @@
 package com.airbnb.payments.featuresengine.expressions;
 
 import com.airbnb.payments.featuresengine.arguments.Argument;
-import com.google.common.collect.Sets;
-import lombok.Data;
+import com.airbnb.payments.featuresengine.arguments.ArgumentRegistry;
+import com.airbnb.payments.featuresengine.arguments.ArgumentSet;
+import com.airbnb.payments.featuresengine.arguments.InputArgument;
 import lombok.Getter;
 
-import java.util.HashSet;
+import java.util.BitSet;
 import java.util.Set;
 
 /**
@@ -14,7 +15,7 @@ import java.util.Set;
  */
 @Getter
 public class ExpressionMetadata {
-    // Unique id given to each individual expression
+    // Content based id. Expressions compiling to the same code have the same id
     private String id;
     // The final expression, after the argument pre-processing
     private String expression;
@@ -24,8 +25,11 @@ public class ExpressionMetadata {
     private Class<?> returnType;
     // The arguments **directly** accessed by the expression
     private Set<Argument> accessedArguments;
-    // All arguments in the nested dependencies used on this expression (recursively)
-    private Set<Argument> dependentArguments;
+    // All arguments in the nested dependencies used on this expression (recursively).
+    // Shared with all expressions of the registry with the same dependencies
+    private ArgumentSet dependentArguments;
+    // Cacheable inputs in the nested dependencies, the ones prefetched in bulk
+    private Argument[] inputArguments;
     // All class imports used on this expression
     private String[] imports;
     // If the expression is asynchronous
@@ -35,6 +39,7 @@ public class ExpressionMetadata {
     private boolean commonDependency;
 
     /**
+     * @param registry
      * @param id
      * @param sourceExpression
      * @param expression
@@ -43,7 +48,8 @@ public class ExpressionMetadata {
      * @param isAsync
      * @param imports
      */
-    ExpressionMetadata(String id,
+    ExpressionMetadata(ArgumentRegistry registry,
+                       String id,
                        String sourceExpression,
                        String expression,
                        Class<?> returnType,
@@ -58,7 +64,7 @@ public class ExpressionMetadata {
         this.isAsync = isAsync;
         this.imports = imports;
 
-        this.loadDependencies();
+        this.loadDependencies(registry);
     }
 
     /**
@@ -75,18 +81,22 @@ public class ExpressionMetadata {
      * Does all the work to track common dependencies and ready this metadata object
      * for faster dependencies queries.
      */
-    private void loadDependencies() {
+    private void loadDependencies(ArgumentRegistry registry) {
         this.commonDependency = false;
-        this.dependentArguments = new HashSet<>();
+        BitSet slots = new BitSet(registry.size());
         for (Argument argument : this.accessedArguments) {
-            if (!Sets.intersection(
-                    this.dependentArguments,
-                    argument.dependencies()).isEmpty()) {
+            if (argument.dependencies().intersects(slots)) {
                 this.commonDependency = true;
             }
 
-            this.dependentArguments.add(argument);
-            this.dependentArguments.addAll(argument.dependencies());
+            slots.set(argument.getSlot());
+            argument.dependencies().addTo(slots);
         }
+        this.dependentArguments = registry.closure(slots);
+
+        this.inputArguments = this.dependentArguments.stream()
+                .filter((argument) -> argument instanceof InputArgument)
+                .filter(Argument::isCacheable)
+                .toArray(Argument[]::new);
     }
 }
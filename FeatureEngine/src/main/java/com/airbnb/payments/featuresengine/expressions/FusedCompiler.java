@@ -0,0 +1,314 @@
+package com.airbnb.payments.featuresengine.expressions;
+
+import com.airbnb.payments.featuresengine.arguments.Argument;
+import com.airbnb.payments.featuresengine.arguments.NamedExpression;
+import com.airbnb.payments.featuresengine.core.EvalSession;
+import com.airbnb.payments.featuresengine.core.Types;
+import com.airbnb.payments.featuresengine.errors.CompilationException;
+
+import org.codehaus.commons.compiler.CompileException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Compiles an expression together with its whole dependency graph into a single
+ * class.
+ * <p>
+ * Each argument of the graph becomes a method of the generated class. Cacheable
+ * arguments memoize their value on fields of the class instance, which is created per
+ * evaluation, so the graph is walked with plain method calls instead of going through
+ * the registry and the session cache. Named expressions of primitive types that are
+ * short and referenced only once are inlined on their single referrer.
+ * <p>
+ * Input arguments are still read from the session, so they follow the normal input
+ * provider and session cache rules. So are arguments with a cache shared across
+ * sessions. Constant arguments are inlined as literals.
+ */
+class FusedCompiler {
+    // Named expressions up to this many characters can be inlined
+    private static final int INLINE_LIMIT = 64;
+
+    private ExpressionMetadata info;
+    private String className;
+    // All arguments of the graph, sorted by slot
+    private List<Argument> closure;
+    // Named expressions inlined into their single referrer
+    private Set<Argument> inlined;
+
+    private FusedCompiler(ExpressionMetadata info) {
+        this.info = info;
+        this.className = "Fused_" + info.getId();
+        this.closure = new ArrayList<>(this.reachable());
+        this.closure.sort(Comparator.comparingInt(Argument::getSlot));
+    }
+
+    /**
+     * Arguments the generated class has a method for. Constants are inlined as
+     * literals, and the dependencies of arguments read from the session are computed
+     * by those arguments, so the graph is not walked past either.
+     */
+    private Set<Argument> reachable() {
+        Set<Argument> reachable = new HashSet<>();
+        Deque<Argument> pending = new ArrayDeque<>(this.info.getAccessedArguments());
+        while (!pending.isEmpty()) {
+            Argument argument = pending.pop();
+            if (argument.isConstant() || !reachable.add(argument)) {
+                continue;
+            }
+            if (isComputed(argument)) {
+                pending.addAll(metadata(argument).getAccessedArguments());
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * Compiles the expression described by @info and its dependency graph into the
+     * evaluator matching its type.
+     *
+     * @param info Expression metadata
+     * @return Instance of the generated class
+     * @throws CompileException     If the generated class does not compile
+     * @throws CompilationException If the expression or any of its dependencies is
+     *                              async
+     */
+    static Object compile(ExpressionMetadata info) throws CompileException {
+        if (info.isAsync()) {
+            throw new CompilationException(
+                    "Fused expression %s must be sync", info.getSourceExpression());
+        }
+
+        FusedCompiler compiler = new FusedCompiler(info);
+        for (Argument argument : compiler.closure) {
+            if (argument.isAsync()) {
+                throw new CompilationException(
+                        "Fused expression %s depends on async argument %s",
+                        info.getSourceExpression(),
+                        argument.getName());
+            }
+        }
+
+        compiler.findInlined();
+        Class<?> evaluatorInterface = ExpressionCompiler.evaluatorInterface(info);
+        return ExpressionCompiler.cook(
+                compiler.className,
+                compiler.imports(),
+                evaluatorInterface,
+                compiler.classBody(evaluatorInterface));
+    }
+
+    /**
+     * Finds the named expressions that can be inlined: primitive typed, short and
+     * referenced exactly once, by the root expression or by a memoized expression so
+     * they are still evaluated at most once per evaluation.
+     */
+    private void findInlined() {
+        Map<Argument, Integer> references = new HashMap<>();
+        Map<Argument, Argument> referrers = new HashMap<>();
+        this.countReferences(
+                this.info.getSourceExpression(),
+                this.info.getAccessedArguments(),
+                null,
+                references,
+                referrers);
+        for (Argument argument : this.closure) {
+            if (isComputed(argument)) {
+                ExpressionMetadata info = metadata(argument);
+                this.countReferences(
+                        info.getSourceExpression(),
+                        info.getAccessedArguments(),
+                        argument,
+                        references,
+                        referrers);
+            }
+        }
+
+        this.inlined = new HashSet<>();
+        for (Argument argument : this.closure) {
+            Argument referrer = referrers.get(argument);
+            if (isComputed(argument)
+                    && Types.isSpecialized(argument.getReturnType())
+                    && metadata(argument).getSourceExpression().length() <= INLINE_LIMIT
+                    && references.getOrDefault(argument, 0) == 1
+                    && (referrer == null || referrer.isCacheable())) {
+                this.inlined.add(argument);
+            }
+        }
+    }
+
+    private void countReferences(String expression,
+                                 Set<Argument> accessed,
+                                 Argument referrer,
+                                 Map<Argument, Integer> references,
+                                 Map<Argument, Argument> referrers) {
+        Map<String, Argument> byName = new HashMap<>();
+        for (Argument argument : accessed) {
+            byName.put(argument.getName(), argument);
+        }
+
+        for (String name : ExpressionFactory.references(expression)) {
+            Argument argument = byName.get(name);
+            references.merge(argument, 1, Integer::sum);
+            referrers.put(argument, referrer);
+        }
+    }
+
+    /**
+     * All imports of the expression and its dependencies
+     */
+    private String[] imports() {
+        Set<String> imports = new LinkedHashSet<>(
+                Arrays.asList(ExpressionCompiler.imports(this.info)));
+        for (Argument argument : this.closure) {
+            if (argument instanceof NamedExpression) {
+                imports.addAll(Arrays.asList(metadata(argument).getImports()));
+            }
+        }
+        return imports.toArray(new String[0]);
+    }
+
+    private String classBody(Class<?> evaluatorInterface) {
+        String session = EvalSession.class.getName();
+        StringBuilder body = new StringBuilder();
+
+        // Prototype instance, created by the compiler, and evaluation instances
+        body.append(String.format(
+                "private %s session;\n"
+                        + "public %s() {}\n"
+                        + "private %s(%s session) { this.session = session; }\n\n",
+                session, this.className, this.className, session));
+
+        body.append(String.format(
+                "public %s evaluate(%s session, %s executor) {\n"
+                        + "    return new %s(session).root();\n"
+                        + "}\n\n",
+                ExpressionCompiler.typeName(
+                        ExpressionCompiler.methodType(evaluatorInterface)),
+                session,
+                Executor.class.getName(),
+                this.className));
+
+        String rootType = ExpressionCompiler.typeName(this.info.getReturnType());
+        body.append(String.format(
+                "private %s root() {\n"
+                        + "    %s result = (\n%s\n    );\n"
+                        + "    return result;\n"
+                        + "}\n\n",
+                rootType,
+                rootType,
+                this.rewrite(this.info)));
+
+        for (Argument argument : this.closure) {
+            if (!this.inlined.contains(argument)) {
+                this.appendMethod(body, argument);
+            }
+        }
+
+        return body.toString();
+    }
+
+    /**
+     * Appends the method computing the @argument and, if the argument is cacheable,
+     * the fields memoizing it
+     */
+    private void appendMethod(StringBuilder body, Argument argument) {
+        String type = valueType(argument);
+        String name = method(argument);
+        String value = isComputed(argument)
+                ? this.rewrite(metadata(argument))
+                : ExpressionFactory.accessor(argument);
+
+        if (!argument.isCacheable()) {
+            body.append(String.format(
+                    "private %s %s() {\n"
+                            + "    %s value = (\n%s\n    );\n"
+                            + "    return value;\n"
+                            + "}\n\n",
+                    type, name, type, value));
+            return;
+        }
+
+        body.append(String.format(
+                "private %s %sValue;\n"
+                        + "private boolean %sDone;\n"
+                        + "private %s %s() {\n"
+                        + "    if (!this.%sDone) {\n"
+                        + "        %s value = (\n%s\n        );\n"
+                        + "        this.%sValue = value;\n"
+                        + "        this.%sDone = true;\n"
+                        + "    }\n"
+                        + "    return this.%sValue;\n"
+                        + "}\n\n",
+                type, name,
+                name,
+                type, name,
+                name,
+                type, value,
+                name,
+                name,
+                name));
+    }
+
+    /**
+     * Rewrites the expression source making each argument reference call the
+     * argument method, or inlining it
+     */
+    private String rewrite(ExpressionMetadata info) {
+        return ExpressionFactory.rewrite(
+                info.getSourceExpression(),
+                info.getAccessedArguments(),
+                this::access);
+    }
+
+    private String access(Argument argument) {
+        if (argument.isConstant()) {
+            return ExpressionFactory.accessor(argument);
+        }
+
+        if (this.inlined.contains(argument)) {
+            return String.format(
+                    "((%s)(%s))",
+                    valueType(argument),
+                    this.rewrite(metadata(argument)));
+        }
+
+        return String.format("this.%s()", method(argument));
+    }
+
+    private static String method(Argument argument) {
+        return "a" + argument.getSlot();
+    }
+
+    /**
+     * Type of the argument value as seen by the generated code
+     */
+    private static String valueType(Argument argument) {
+        Class<?> type = argument.getReturnType();
+        return ExpressionCompiler.typeName(
+                Types.isSpecialized(type) ? type : Types.boxed(type));
+    }
+
+    /**
+     * If the @argument is computed by the generated class. Inputs and arguments with
+     * a shared cache are read from the session instead, the latter so their values
+     * are still shared across sessions
+     */
+    private static boolean isComputed(Argument argument) {
+        return argument instanceof NamedExpression && argument.getSharedCache() == null;
+    }
+
+    private static ExpressionMetadata metadata(Argument argument) {
+        return ((NamedExpression) argument).getExpression().info();
+    }
+}
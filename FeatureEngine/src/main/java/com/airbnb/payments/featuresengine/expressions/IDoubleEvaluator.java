@@ -0,0 +1,13 @@
+package com.airbnb.payments.featuresengine.expressions;
+
+import com.airbnb.payments.featuresengine.core.EvalSession;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Implemented by the compiled code of expressions evaluating to double, so the result
+ * never gets boxed.
+ */
+public interface IDoubleEvaluator {
+    double evaluate(EvalSession session, Executor executor);
+}
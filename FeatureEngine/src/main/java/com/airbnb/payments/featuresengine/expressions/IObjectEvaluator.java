@@ -0,0 +1,13 @@
+package com.airbnb.payments.featuresengine.expressions;
+
+import com.airbnb.payments.featuresengine.core.EvalSession;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Implemented by the compiled code of expressions evaluating to objects (including
+ * CompletableFutures for async expressions). Called directly, without reflection.
+ */
+public interface IObjectEvaluator {
+    Object evaluate(EvalSession session, Executor executor);
+}
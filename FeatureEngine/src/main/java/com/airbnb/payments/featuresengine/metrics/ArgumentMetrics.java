@@ -0,0 +1,61 @@
+package com.airbnb.payments.featuresengine.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a single argument, recorded by the StripedMetricsSink
+ */
+public class ArgumentMetrics {
+    private final LatencyHistogram fetchLatency = new LatencyHistogram();
+    private final LatencyHistogram asyncWait = new LatencyHistogram();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * Latency of the sync and blocking fetches
+     */
+    public LatencyHistogram fetchLatency() {
+        return this.fetchLatency;
+    }
+
+    /**
+     * Time async fetches took to complete
+     */
+    public LatencyHistogram asyncWait() {
+        return this.asyncWait;
+    }
+
+    public long cacheHits() {
+        return this.cacheHits.sum();
+    }
+
+    public long cacheMisses() {
+        return this.cacheMisses.sum();
+    }
+
+    /**
+     * @return Ratio of the session cache reads that hit, or 0 if there were none
+     */
+    public double cacheHitRatio() {
+        long hits = this.cacheHits();
+        long total = hits + this.cacheMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long errors() {
+        return this.errors.sum();
+    }
+
+    void recordHit() {
+        this.cacheHits.increment();
+    }
+
+    void recordMiss() {
+        this.cacheMisses.increment();
+    }
+
+    void recordError() {
+        this.errors.increment();
+    }
+}
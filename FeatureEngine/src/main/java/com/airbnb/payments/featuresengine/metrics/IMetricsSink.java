@@ -0,0 +1,59 @@
+package com.airbnb.payments.featuresengine.metrics;
+
+import com.airbnb.payments.featuresengine.arguments.Argument;
+import com.airbnb.payments.featuresengine.expressions.ExpressionMetadata;
+
+/**
+ * Receives the engine metrics. Installed with Metrics.setSink().
+ * <p>
+ * Methods are called on the evaluation hot paths, from any thread, so
+ * implementations must be thread safe and cheap.
+ */
+public interface IMetricsSink {
+    /**
+     * A sync fetch of the @argument completed. For named expressions the latency
+     * includes fetching its dependencies not cached yet.
+     *
+     * @param argument The fetched argument
+     * @param nanos    Fetch latency
+     */
+    void fetch(Argument argument, long nanos);
+
+    /**
+     * An async fetch of the @argument completed
+     *
+     * @param argument The fetched argument
+     * @param nanos    Time from the fetch start until its future completed
+     */
+    void asyncWait(Argument argument, long nanos);
+
+    /**
+     * The value of a cacheable @argument was read from the session cache
+     */
+    void cacheHit(Argument argument);
+
+    /**
+     * The value of a cacheable @argument was not on the session cache
+     */
+    void cacheMiss(Argument argument);
+
+    /**
+     * Fetching the @argument failed
+     */
+    void fetchError(Argument argument);
+
+    /**
+     * An expression was compiled
+     *
+     * @param info  Metadata of the compiled expression
+     * @param nanos Compilation time, including the bytecode cache lookup
+     */
+    void compile(ExpressionMetadata info, long nanos);
+
+    /**
+     * Evaluating an expression failed
+     *
+     * @param info Metadata of the failed expression
+     */
+    void evalError(ExpressionMetadata info);
+}
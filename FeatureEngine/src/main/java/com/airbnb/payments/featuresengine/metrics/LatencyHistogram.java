@@ -0,0 +1,90 @@
+package com.airbnb.payments.featuresengine.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power of two buckets.
+ * <p>
+ * Bucket i counts the latencies in [2^(i-1), 2^i) nanoseconds, so recording is a
+ * leading zeros count plus a striped increment and percentiles are precise within a
+ * factor of two, which is enough to tell slow features apart.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets;
+    private final LongAdder total;
+
+    public LatencyHistogram() {
+        this.buckets = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            this.buckets[i] = new LongAdder();
+        }
+        this.total = new LongAdder();
+    }
+
+    /**
+     * @param nanos Latency to record. Negative values are recorded as zero
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        this.buckets[BUCKETS - Long.numberOfLeadingZeros(value | 1)].increment();
+        this.total.add(value);
+    }
+
+    /**
+     * @return Number of recorded latencies
+     */
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : this.buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return Sum of all recorded latencies, in nanoseconds
+     */
+    public long totalNanos() {
+        return this.total.sum();
+    }
+
+    /**
+     * @return Mean latency in nanoseconds, or 0 if nothing was recorded
+     */
+    public double meanNanos() {
+        long count = this.count();
+        return count == 0 ? 0 : (double) this.total.sum() / count;
+    }
+
+    /**
+     * Upper bound of the latency under which @quantile of the latencies fall.
+     *
+     * @param quantile Quantile in the [0, 1] range, eg.: 0.99
+     * @return The upper bound of the bucket holding the quantile, in nanoseconds, or
+     * 0 if nothing was recorded
+     */
+    public long percentileNanos(double quantile) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = this.buckets[i].sum();
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                // Wraps to Long.MAX_VALUE on the last bucket
+                return (1L << i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
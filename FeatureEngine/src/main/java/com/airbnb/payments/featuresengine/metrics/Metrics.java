@@ -0,0 +1,40 @@
+package com.airbnb.payments.featuresengine.metrics;
+
+/**
+ * Holds the metrics sink of the engine.
+ * <p>
+ * Metrics are disabled by default. The hot paths check isEnabled(), a single
+ * volatile read, before taking any timestamp or calling the sink, so disabled
+ * metrics cost next to nothing.
+ */
+public final class Metrics {
+    private static volatile IMetricsSink sink = NoopMetricsSink.INSTANCE;
+    private static volatile boolean enabled = false;
+
+    private Metrics() {
+    }
+
+    /**
+     * Installs the @sink receiving all metrics of the engine.
+     *
+     * @param sink The sink. Null disables metrics
+     */
+    public static void setSink(IMetricsSink sink) {
+        Metrics.sink = sink != null ? sink : NoopMetricsSink.INSTANCE;
+        Metrics.enabled = sink != null && sink != NoopMetricsSink.INSTANCE;
+    }
+
+    /**
+     * @return True if a sink other than the no-op one is installed
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return The installed sink
+     */
+    public static IMetricsSink sink() {
+        return sink;
+    }
+}
@@ -0,0 +1,42 @@
+package com.airbnb.payments.featuresengine.metrics;
+
+import com.airbnb.payments.featuresengine.arguments.Argument;
+import com.airbnb.payments.featuresengine.expressions.ExpressionMetadata;
+
+/**
+ * Default sink, dropping all metrics
+ */
+public final class NoopMetricsSink implements IMetricsSink {
+    public static final NoopMetricsSink INSTANCE = new NoopMetricsSink();
+
+    private NoopMetricsSink() {
+    }
+
+    @Override
+    public void fetch(Argument argument, long nanos) {
+    }
+
+    @Override
+    public void asyncWait(Argument argument, long nanos) {
+    }
+
+    @Override
+    public void cacheHit(Argument argument) {
+    }
+
+    @Override
+    public void cacheMiss(Argument argument) {
+    }
+
+    @Override
+    public void fetchError(Argument argument) {
+    }
+
+    @Override
+    public void compile(ExpressionMetadata info, long nanos) {
+    }
+
+    @Override
+    public void evalError(ExpressionMetadata info) {
+    }
+}
@@ -0,0 +1,98 @@
+package com.airbnb.payments.featuresengine.metrics;
+
+import com.airbnb.payments.featuresengine.arguments.Argument;
+import com.airbnb.payments.featuresengine.expressions.ExpressionMetadata;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In memory sink keeping per argument counters and latency histograms.
+ * <p>
+ * All counters are LongAdders, striped across cells under contention, so
+ * concurrent evaluations recording the same argument don't fight over a single
+ * cache line. Arguments are keyed by name, aggregating all registries.
+ */
+public class StripedMetricsSink implements IMetricsSink {
+    private final ConcurrentHashMap<String, ArgumentMetrics> arguments =
+            new ConcurrentHashMap<>();
+    private final LatencyHistogram compileLatency = new LatencyHistogram();
+    private final LongAdder evalErrors = new LongAdder();
+
+    @Override
+    public void fetch(Argument argument, long nanos) {
+        this.of(argument).fetchLatency().record(nanos);
+    }
+
+    @Override
+    public void asyncWait(Argument argument, long nanos) {
+        this.of(argument).asyncWait().record(nanos);
+    }
+
+    @Override
+    public void cacheHit(Argument argument) {
+        this.of(argument).recordHit();
+    }
+
+    @Override
+    public void cacheMiss(Argument argument) {
+        this.of(argument).recordMiss();
+    }
+
+    @Override
+    public void fetchError(Argument argument) {
+        this.of(argument).recordError();
+    }
+
+    @Override
+    public void compile(ExpressionMetadata info, long nanos) {
+        this.compileLatency.record(nanos);
+    }
+
+    @Override
+    public void evalError(ExpressionMetadata info) {
+        this.evalErrors.increment();
+    }
+
+    /**
+     * Metrics of the argument named @name
+     *
+     * @param name Name of the argument
+     * @return The argument metrics or null if nothing was recorded for it
+     */
+    public ArgumentMetrics argument(String name) {
+        return this.arguments.get(name);
+    }
+
+    /**
+     * Metrics of all arguments with anything recorded, by name
+     */
+    public Map<String, ArgumentMetrics> arguments() {
+        return Collections.unmodifiableMap(this.arguments);
+    }
+
+    /**
+     * Latency of the expression compilations
+     */
+    public LatencyHistogram compileLatency() {
+        return this.compileLatency;
+    }
+
+    /**
+     * @return Number of failed expression evaluations
+     */
+    public long evalErrors() {
+        return this.evalErrors.sum();
+    }
+
+    private ArgumentMetrics of(Argument argument) {
+        ArgumentMetrics metrics = this.arguments.get(argument.getName());
+        if (metrics == null) {
+            metrics = this.arguments.computeIfAbsent(
+                    argument.getName(), (name) -> new ArgumentMetrics());
+        }
+        return metrics;
+    }
+}
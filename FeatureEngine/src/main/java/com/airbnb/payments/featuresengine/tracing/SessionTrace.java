@@ -0,0 +1,192 @@
+package com.airbnb.payments.featuresengine.tracing;
+
+import com.airbnb.payments.featuresengine.arguments.Argument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Tree of all argument reads of a single session.
+ * <p>
+ * Each read opens a span, child of the span current on the thread when the read
+ * started. Async evaluations carry the current span along to the threads they
+ * continue on (see swap()), so the tree follows the argument dependencies across
+ * executors.
+ * <p>
+ * The trace exports as JSON or as collapsed stacks, the input of flame graph tools,
+ * weighted by the self time of each argument.
+ */
+public class SessionTrace {
+    private final long start;
+    private final ConcurrentLinkedQueue<TraceSpan> roots;
+    private final ThreadLocal<TraceSpan> current;
+
+    public SessionTrace() {
+        this.start = System.nanoTime();
+        this.roots = new ConcurrentLinkedQueue<>();
+        this.current = new ThreadLocal<>();
+    }
+
+    /**
+     * Opens the span of a read of the @argument and makes it current on the calling
+     * thread.
+     *
+     * @param argument The argument read
+     * @param cacheHit If the value is on the session cache
+     * @param async    If the read is async
+     * @return The new span, to be passed to exit()
+     */
+    public TraceSpan enter(Argument argument, boolean cacheHit, boolean async) {
+        TraceSpan parent = this.current.get();
+        TraceSpan span = new TraceSpan(
+                argument.getName(), cacheHit, async, this.now(), parent, parent);
+        if (parent != null) {
+            parent.addChild(span);
+        } else {
+            this.roots.add(span);
+        }
+
+        this.current.set(span);
+        return span;
+    }
+
+    /**
+     * Closes the synchronous part of the @span, making the previous span current
+     * again. Sync spans end here, async ones on end().
+     *
+     * @param span  Span returned by enter()
+     * @param error Error of the read, if any
+     */
+    public void exit(TraceSpan span, Throwable error) {
+        long now = this.now();
+        span.dispatched(now);
+        if (!span.isAsync() || error != null) {
+            span.end(now, error);
+        }
+        this.restore(span.previous);
+    }
+
+    /**
+     * Ends an async @span, once its value is available
+     */
+    public void end(TraceSpan span, Throwable error) {
+        span.end(this.now(), error);
+    }
+
+    /**
+     * @return The span current on the calling thread, if any
+     */
+    public TraceSpan current() {
+        return this.current.get();
+    }
+
+    /**
+     * Makes @span current on the calling thread. Used to continue a trace on another
+     * thread.
+     *
+     * @param span The new current span, may be null
+     * @return The span current before, to be restored by another swap()
+     */
+    public TraceSpan swap(TraceSpan span) {
+        TraceSpan previous = this.current.get();
+        this.restore(span);
+        return previous;
+    }
+
+    /**
+     * @return The spans of the top level reads
+     */
+    public List<TraceSpan> roots() {
+        return new ArrayList<>(this.roots);
+    }
+
+    /**
+     * Exports the trace as a JSON object with the tree of spans.
+     *
+     * @return {"durationNanos": ..., "spans": [{"argument": ..., "children": [...]}]}
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"durationNanos\":").append(this.now()).append(",\"spans\":");
+        appendJson(json, this.roots());
+        return json.append('}').toString();
+    }
+
+    /**
+     * Exports the trace as collapsed stacks, one line per path of the tree:
+     * "root;child;grandchild selfNanos". Self time excludes the time of children.
+     *
+     * @return The collapsed stacks
+     */
+    public String toCollapsedStacks() {
+        StringBuilder stacks = new StringBuilder();
+        for (TraceSpan root : this.roots()) {
+            appendStacks(stacks, root, root.getArgument());
+        }
+        return stacks.toString();
+    }
+
+    private long now() {
+        return System.nanoTime() - this.start;
+    }
+
+    private void restore(TraceSpan span) {
+        if (span == null) {
+            this.current.remove();
+        } else {
+            this.current.set(span);
+        }
+    }
+
+    private static void appendJson(StringBuilder json, List<TraceSpan> spans) {
+        json.append('[');
+        for (int i = 0; i < spans.size(); ++i) {
+            TraceSpan span = spans.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+
+            json.append("{\"argument\":");
+            appendString(json, span.getArgument());
+            json.append(",\"thread\":");
+            appendString(json, span.getThread());
+            json.append(",\"cacheHit\":").append(span.isCacheHit())
+                    .append(",\"async\":").append(span.isAsync())
+                    .append(",\"startNanos\":").append(span.getStartNanos())
+                    .append(",\"endNanos\":").append(span.getEndNanos())
+                    .append(",\"waitNanos\":").append(span.waitNanos());
+            if (span.getError() != null) {
+                json.append(",\"error\":");
+                appendString(json, span.getError());
+            }
+            json.append(",\"children\":");
+            appendJson(json, span.getChildren());
+            json.append('}');
+        }
+        json.append(']');
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private static void appendStacks(StringBuilder stacks, TraceSpan span, String path) {
+        long self = span.durationNanos();
+        for (TraceSpan child : span.getChildren()) {
+            self -= child.durationNanos();
+            appendStacks(stacks, child, path + ";" + child.getArgument());
+        }
+        stacks.append(path).append(' ').append(Math.max(self, 0)).append('\n');
+    }
+}
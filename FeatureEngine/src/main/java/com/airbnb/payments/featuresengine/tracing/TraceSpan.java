@@ -0,0 +1,94 @@
+package com.airbnb.payments.featuresengine.tracing;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single argument read of a traced session. Times are in nanoseconds since the
+ * start of the trace.
+ */
+@Getter
+public class TraceSpan {
+    // Name of the argument read
+    private final String argument;
+    // Thread the read started on
+    private final String thread;
+    // If the value was on the session cache
+    private final boolean cacheHit;
+    // If the read was async (valueAsync)
+    private final boolean async;
+    private final long startNanos;
+    // When the synchronous part of the read returned
+    private volatile long dispatchedNanos;
+    // When the value was available
+    private volatile long endNanos;
+    // Error message, if the read failed
+    private volatile String error;
+    private final TraceSpan parent;
+    private final List<TraceSpan> children;
+    // Span current on the thread before this one started
+    @Getter(AccessLevel.NONE)
+    final TraceSpan previous;
+
+    TraceSpan(String argument,
+              boolean cacheHit,
+              boolean async,
+              long startNanos,
+              TraceSpan parent,
+              TraceSpan previous) {
+        this.argument = argument;
+        this.thread = Thread.currentThread().getName();
+        this.cacheHit = cacheHit;
+        this.async = async;
+        this.startNanos = startNanos;
+        this.dispatchedNanos = -1;
+        this.endNanos = -1;
+        this.parent = parent;
+        this.children = new ArrayList<>();
+        this.previous = previous;
+    }
+
+    /**
+     * @return Time from the start of the read until the value was available
+     */
+    public long durationNanos() {
+        return Math.max(this.endNanos - this.startNanos, 0);
+    }
+
+    /**
+     * @return Time waited on the future of an async read, after its synchronous part
+     * returned. 0 for sync reads
+     */
+    public long waitNanos() {
+        return this.async && this.dispatchedNanos >= 0
+                ? Math.max(this.endNanos - this.dispatchedNanos, 0)
+                : 0;
+    }
+
+    public List<TraceSpan> getChildren() {
+        synchronized (this.children) {
+            return Collections.unmodifiableList(new ArrayList<>(this.children));
+        }
+    }
+
+    void addChild(TraceSpan child) {
+        synchronized (this.children) {
+            this.children.add(child);
+        }
+    }
+
+    void dispatched(long nanos) {
+        this.dispatchedNanos = nanos;
+    }
+
+    void end(long nanos, Throwable error) {
+        if (error != null) {
+            this.error = String.valueOf(error.getMessage());
+        }
+        this.endNanos = nanos;
+    }
+}
@@ -0,0 +1,48 @@
+package com.airbnb.payments.featuresengine.tracing;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Holds the session trace sampling rate of the engine.
+ * <p>
+ * Each new EvalSession is traced with the configured probability. Tracing is off by
+ * default, costing a null check per argument read.
+ */
+public final class Tracing {
+    private static volatile double sampleRate = 0;
+
+    private Tracing() {
+    }
+
+    /**
+     * Sets the fraction of sessions traced.
+     *
+     * @param rate Probability in the [0, 1] range. 0 disables tracing
+     */
+    public static void setSampleRate(double rate) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("Sample rate must be within [0, 1]");
+        }
+        Tracing.sampleRate = rate;
+    }
+
+    /**
+     * @return The fraction of sessions traced
+     */
+    public static double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Decides if a new session is traced.
+     *
+     * @return The trace of the new session or null if it is not sampled
+     */
+    public static SessionTrace sample() {
+        double rate = sampleRate;
+        if (rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate)) {
+            return new SessionTrace();
+        }
+        return null;
+    }
+}
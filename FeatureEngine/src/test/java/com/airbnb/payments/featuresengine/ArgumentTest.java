@@ -1,18 +1,38 @@
 package com.airbnb.payments.featuresengine;
 
 import com.airbnb.payments.featuresengine.arguments.*;
+import com.airbnb.payments.featuresengine.cache.ArrayCache;
+import com.airbnb.payments.featuresengine.cache.ConcurrentArrayCache;
 import com.airbnb.payments.featuresengine.cache.HashMapCache;
 import com.airbnb.payments.featuresengine.cache.ICache;
 import com.airbnb.payments.featuresengine.config.ArgumentConfig;
+import com.airbnb.payments.featuresengine.config.ExpressionConfig;
+import com.airbnb.payments.featuresengine.config.SharedCacheConfig;
+import com.airbnb.payments.featuresengine.core.EvalPlan;
 import com.airbnb.payments.featuresengine.core.EvalSession;
 import com.airbnb.payments.featuresengine.errors.CompilationException;
 import com.airbnb.payments.featuresengine.errors.EvaluationException;
 import com.airbnb.payments.featuresengine.arguments.NamedExpression;
+import com.airbnb.payments.featuresengine.expressions.Expression;
+import com.airbnb.payments.featuresengine.expressions.ExpressionFactory;
 import org.junit.Test;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 
@@ -169,10 +189,12 @@ public class ArgumentTest {
                                 true,
                                 false,
                                 new String[]{TestUtils.class.getName()}));
+                // Sessions only see the arguments published before their creation
+                session = new EvalSession(session.inputs(), session.registry());
                 session.registry().value("a", session);
                 fail();
             } catch (EvaluationException e) {
-                assertTrue(e.getCause().getCause() instanceof ClassCastException);
+                assertTrue(e.getCause() instanceof ClassCastException);
             } catch (Exception e) {
                 fail();
             }
@@ -193,6 +215,7 @@ public class ArgumentTest {
                                 true,
                                 true,
                                 new String[]{TestUtils.class.getName()}));
+                session = new EvalSession(session.inputs(), session.registry());
                 session.registry().valueAsync("a", session, executor).get();
                 fail();
             } catch (ExecutionException e) {
@@ -203,6 +226,903 @@ public class ArgumentTest {
         }
     }
 
+    @Test
+    public void argumentSlots() throws CompilationException {
+        EvalSession session = TestUtils.testSession();
+        ArgumentRegistry registry = session.registry();
+
+        // Slots are dense and follow the registration order
+        assertEquals(0, registry.get("i_int_a").getSlot());
+        assertEquals(1, registry.get("i_int_b").getSlot());
+        for (int slot = 0; slot < registry.size(); slot++) {
+            assertEquals(slot, registry.get(slot).getSlot());
+        }
+
+        int slot = registry.get("e_int_c").getSlot();
+        assertEquals(9, registry.value(slot, session));
+        assertEquals(9, registry.value("e_int_c", session));
+    }
+
+    @Test
+    public void createAll() {
+        ArgumentRegistry registry = new ArgumentRegistry();
+        ArgumentFactory.create(
+                registry, new ArgumentConfig("b_in", Integer.class.getName()));
+
+        // Dependents listed before their dependencies
+        List<ArgumentConfig> configs = Arrays.asList(
+                new ArgumentConfig("b_sum", Integer.class.getName(), "$b_x + $b_y"),
+                new ArgumentConfig("b_y", Integer.class.getName(), "$b_x * $b_in"),
+                new ArgumentConfig("b_x", Integer.class.getName(), "$b_a + 1"),
+                new ArgumentConfig("b_a", Integer.class.getName()));
+
+        List<Argument> arguments = ArgumentFactory.createAll(
+                registry, configs, new ForkJoinPool(4));
+        assertEquals(4, arguments.size());
+        for (int i = 0; i < configs.size(); i++) {
+            assertEquals(configs.get(i).getName(), arguments.get(i).getName());
+        }
+
+        // Dependencies are always registered before their dependents
+        assertEquals(1, registry.get("b_a").getSlot());
+        assertEquals(2, registry.get("b_x").getSlot());
+        assertEquals(3, registry.get("b_y").getSlot());
+        assertEquals(4, registry.get("b_sum").getSlot());
+
+        HashMapInputProvider provider = new HashMapInputProvider();
+        provider.put("b_in", 3);
+        provider.put("b_a", 1);
+        EvalSession session = new EvalSession(provider, registry);
+        assertEquals(8, registry.value("b_sum", session));
+
+        try {
+            ArgumentFactory.createAll(registry, Arrays.asList(
+                    new ArgumentConfig("c_a", Integer.class.getName(), "$c_b + 1"),
+                    new ArgumentConfig("c_b", Integer.class.getName(), "$c_a + 1")));
+            fail();
+        } catch (CompilationException e) {
+            assertTrue(e.getMessage().contains("[c_a, c_b]"));
+        }
+
+        try {
+            ArgumentFactory.createAll(registry, Collections.singletonList(
+                    new ArgumentConfig("b_a", Integer.class.getName())));
+            fail();
+        } catch (CompilationException e) {
+            assertTrue(e.getMessage().contains("already registered"));
+        }
+    }
+
+    private static final AtomicInteger sharedFetches = new AtomicInteger();
+
+    public static CompletableFuture<Integer> sharedFetch(int value) {
+        sharedFetches.incrementAndGet();
+        return CompletableFuture.supplyAsync(() -> value);
+    }
+
+    @Test
+    public void asyncFetchesAreShared()
+            throws ExecutionException, InterruptedException {
+        Executor executor = Executors.newFixedThreadPool(4);
+        String[] imports = {ArgumentTest.class.getName()};
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("s_in", int.class, registry);
+        ArgumentFactory.createAll(registry, Arrays.asList(
+                new ArgumentConfig("s_shared", Integer.class.getName(),
+                        "ArgumentTest.sharedFetch($s_in)", true, true, imports),
+                new ArgumentConfig("s_left", Integer.class.getName(),
+                        "$s_shared + 1", true, true, imports),
+                new ArgumentConfig("s_right", Integer.class.getName(),
+                        "$s_shared * 2", true, true, imports),
+                new ArgumentConfig("s_root", Integer.class.getName(),
+                        "$s_left + $s_right", true, true, imports)));
+
+        HashMapInputProvider provider = new HashMapInputProvider();
+        provider.put("s_in", 5);
+
+        for (int i = 0; i < 20; i++) {
+            sharedFetches.set(0);
+            EvalSession session = new EvalSession(provider, registry);
+            assertEquals(16, registry.valueAsync("s_root", session, executor).get());
+            // The diamond dependency is fetched once per session
+            assertEquals(1, sharedFetches.get());
+        }
+
+        EvalSession session = new EvalSession(provider, registry);
+        assertSame(
+                registry.valueAsync("s_shared", session, executor),
+                registry.valueAsync("s_shared", session, executor));
+    }
+
+    private static final AtomicInteger gateCalls = new AtomicInteger();
+    private static CountDownLatch gateEntered;
+    private static CountDownLatch gateReleased;
+
+    public static int gate(int value) {
+        // Holds the computation until the test releases it
+        gateCalls.incrementAndGet();
+        gateEntered.countDown();
+        try {
+            gateReleased.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return value;
+    }
+
+    @Test
+    public void sharedSyncDependencies()
+            throws ExecutionException, InterruptedException {
+        String[] imports = {ArgumentTest.class.getName()};
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("t_in", int.class, registry);
+        TestUtils.argument("t_x", int.class, true, true, registry);
+        TestUtils.argument("t_y", int.class, true, true, registry);
+        ArgumentFactory.createAll(registry, Arrays.asList(
+                new ArgumentConfig("t_shared", int.class.getName(),
+                        "ArgumentTest.gate($t_in)", true, false, imports),
+                new ArgumentConfig("t_left", Integer.class.getName(),
+                        "$t_x * $t_shared", true, true, imports),
+                new ArgumentConfig("t_right", Integer.class.getName(),
+                        "$t_y * $t_shared", true, true, imports),
+                new ArgumentConfig("t_root", Integer.class.getName(),
+                        "$t_left + $t_right", true, true, imports)));
+        Executor unused = (runnable) -> {
+            throw new AssertionError("No executor thread expected");
+        };
+
+        gateCalls.set(0);
+        gateEntered = new CountDownLatch(1);
+        gateReleased = new CountDownLatch(1);
+        PendingInputProvider inputs = new PendingInputProvider();
+        inputs.complete("t_in", 3);
+        CompletableFuture<Object> result = registry.valueAsync(
+                "t_root", new EvalSession(inputs, registry), unused);
+
+        // Each branch continues on the thread completing its async input. The left
+        // one holds the computation of the common sync dependency ...
+        Thread left = new Thread(() -> inputs.complete("t_x", 1));
+        left.start();
+        gateEntered.await();
+
+        // ... while the right one needs it too
+        Thread right = new Thread(() -> inputs.complete("t_y", 2));
+        right.start();
+        while (right.getState() != Thread.State.WAITING) {
+            Thread.yield();
+        }
+
+        gateReleased.countDown();
+        left.join();
+        right.join();
+        assertEquals(9, result.get());
+        // Computed once, the right branch waited for the left one's computation
+        assertEquals(1, gateCalls.get());
+    }
+
+    @Test
+    public void asyncFastPath() throws ExecutionException, InterruptedException {
+        EvalSession session = TestUtils.testSession();
+        ArgumentRegistry registry = session.registry();
+        Executor unused = (runnable) -> {
+            throw new AssertionError("No executor hop expected");
+        };
+
+        // Inputs and sync expressions complete inline
+        CompletableFuture<Object> input =
+                registry.valueAsync("i_int_a", session, unused);
+        assertTrue(input.isDone());
+        assertEquals(1, input.get());
+        assertEquals(9, registry.valueAsync("e_int_c", session, unused).get());
+
+        // Cached values too, even for async arguments
+        Executor executor = Executors.newFixedThreadPool(2);
+        Object value = registry.valueAsync("async_int_e", session, executor).get();
+        CompletableFuture<Object> cached =
+                registry.valueAsync("async_int_e", session, unused);
+        assertTrue(cached.isDone());
+        assertEquals(value, cached.get());
+    }
+
+    private static final AtomicInteger profileFetches = new AtomicInteger();
+
+    public static CompletableFuture<Integer> fetchProfile(int merchant) {
+        profileFetches.incrementAndGet();
+        return CompletableFuture.supplyAsync(() -> merchant * 10);
+    }
+
+    @Test
+    public void sharedCache() throws ExecutionException, InterruptedException {
+        Executor executor = Executors.newFixedThreadPool(2);
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("m_id", int.class, registry);
+        TestUtils.argument("m_other", int.class, registry);
+        Argument profile = ArgumentFactory.create(registry, new ArgumentConfig(
+                "m_profile",
+                Integer.class.getName(),
+                "ArgumentTest.fetchProfile($m_id)",
+                true,
+                true,
+                new String[]{ArgumentTest.class.getName()},
+                new SharedCacheConfig(
+                        100, Duration.ofMinutes(1), Duration.ofMillis(50))));
+        Argument score = ArgumentFactory.create(registry, new ArgumentConfig(
+                "m_score",
+                int.class.getName(),
+                "$m_id + $m_other",
+                true,
+                false,
+                new String[0],
+                new SharedCacheConfig(100, Duration.ofMinutes(1))));
+
+        // Fetched once per merchant, whatever the session
+        profileFetches.set(0);
+        for (int merchant : new int[]{1, 2, 1, 1, 2}) {
+            HashMapInputProvider provider = new HashMapInputProvider();
+            provider.put("m_id", merchant);
+            EvalSession session = new EvalSession(provider, registry);
+            assertEquals(merchant * 10,
+                    registry.valueAsync("m_profile", session, executor).get());
+        }
+        assertEquals(2, profileFetches.get());
+        assertEquals(3, profile.getSharedCache().stats().hitCount());
+        assertEquals(2, profile.getSharedCache().stats().missCount());
+
+        // Stale values are served while refreshed in the background
+        Thread.sleep(100);
+        HashMapInputProvider provider = new HashMapInputProvider();
+        provider.put("m_id", 1);
+        assertEquals(10, registry.valueAsync(
+                "m_profile", new EvalSession(provider, registry), executor).get());
+        for (int i = 0; i < 100 && profile.getSharedCache().refreshCount() == 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, profile.getSharedCache().refreshCount());
+        assertEquals(3, profileFetches.get());
+
+        // Keyed by all inputs, on the sync and unboxed paths too
+        for (int other : new int[]{1, 2, 1}) {
+            HashMapInputProvider inputs = new HashMapInputProvider();
+            inputs.put("m_id", 1);
+            inputs.put("m_other", other);
+            EvalSession session = new EvalSession(inputs, registry);
+            assertEquals(1 + other, registry.value("m_score", session));
+        }
+        assertEquals(1, score.getSharedCache().stats().hitCount());
+        assertEquals(2, score.getSharedCache().size());
+
+        try {
+            ArgumentFactory.create(registry, new ArgumentConfig(
+                    "m_input", Integer.class.getName(), null, true, false,
+                    new String[0], new SharedCacheConfig(1, Duration.ofMinutes(1))));
+            fail();
+        } catch (CompilationException e) {
+            assertTrue(e.getMessage().contains("named expressions"));
+        }
+    }
+
+    @Test
+    public void sharedCacheAdmission() {
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("a_id", int.class, registry);
+        Argument doubled = ArgumentFactory.create(registry, new ArgumentConfig(
+                "a_doubled", int.class.getName(), "$a_id * 2", true, false,
+                new String[0], new SharedCacheConfig(2, Duration.ofMinutes(1))));
+        SharedArgumentCache cache = doubled.getSharedCache();
+
+        // Once full, keys read a single time are not cached ...
+        for (int id : new int[]{1, 2, 3, 1}) {
+            HashMapInputProvider inputs = new HashMapInputProvider();
+            inputs.put("a_id", id);
+            assertEquals(id * 2,
+                    registry.value("a_doubled", new EvalSession(inputs, registry)));
+        }
+        assertEquals(1, cache.rejectionCount());
+        assertEquals(1, cache.stats().hitCount());
+        assertEquals(2, cache.size());
+
+        // ... but they are once read again, evicting the least recently used
+        for (int id : new int[]{3, 3, 1, 2}) {
+            HashMapInputProvider inputs = new HashMapInputProvider();
+            inputs.put("a_id", id);
+            assertEquals(id * 2,
+                    registry.value("a_doubled", new EvalSession(inputs, registry)));
+        }
+        assertEquals(3, cache.stats().hitCount());
+        assertEquals(1, cache.rejectionCount());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void sharedCacheRefreshExecutor() {
+        AtomicInteger refreshes = new AtomicInteger();
+        Executor executor = (runnable) -> {
+            refreshes.incrementAndGet();
+            runnable.run();
+        };
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("r_id", int.class, registry);
+        Argument doubled = ArgumentFactory.create(registry, new ArgumentConfig(
+                "r_doubled", int.class.getName(), "$r_id * 2", true, false,
+                new String[0], new SharedCacheConfig(
+                        100, Duration.ofMinutes(1), Duration.ofNanos(1), executor)));
+
+        // Sync reads refresh stale values on the configured executor
+        HashMapInputProvider inputs = new HashMapInputProvider();
+        inputs.put("r_id", 1);
+        assertEquals(2, registry.value("r_doubled", new EvalSession(inputs, registry)));
+        assertEquals(0, refreshes.get());
+        assertEquals(2, registry.value("r_doubled", new EvalSession(inputs, registry)));
+        assertEquals(1, refreshes.get());
+        assertEquals(1, doubled.getSharedCache().refreshCount());
+    }
+
+    @Test
+    public void constantFolding() {
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("c_in", int.class, registry);
+        Argument limit = ArgumentFactory.create(registry, new ArgumentConfig(
+                "c_limit", int.class.getName(), "100", true));
+        Argument twice = ArgumentFactory.create(registry, new ArgumentConfig(
+                "c_twice", int.class.getName(), "$c_limit * 2", true));
+        Argument boxed = ArgumentFactory.create(registry, new ArgumentConfig(
+                "c_boxed", Long.class.getName(), "Long.valueOf(Long.MIN_VALUE)", true));
+        Argument label = ArgumentFactory.create(registry, new ArgumentConfig(
+                "c_label", String.class.getName(), "\"a\\\"b\\n\"", true));
+        Argument mixed = ArgumentFactory.create(registry, new ArgumentConfig(
+                "c_mixed", int.class.getName(), "$c_in + $c_twice"));
+        Argument literal = ArgumentFactory.create(registry, new ArgumentConfig(
+                "c_literal", int.class.getName(), "100"));
+        Argument now = ArgumentFactory.create(registry, new ArgumentConfig(
+                "c_now", long.class.getName(), "System.nanoTime()"));
+
+        // Declared constant, dependency free or only depending on constants
+        assertTrue(limit.isConstant());
+        assertTrue(twice.isConstant());
+        assertTrue(boxed.isConstant());
+        assertTrue(label.isConstant());
+        assertFalse(mixed.isConstant());
+        // Folding is opt-in, even for dependency free expressions
+        assertFalse(literal.isConstant());
+        assertFalse(now.isConstant());
+        assertEquals(200, twice.getConstantValue());
+        assertEquals("a\"b\n", label.getConstantValue());
+
+        // Inlined as literals into the dependents
+        assertEquals("(100) * 2",
+                ((NamedExpression) twice).getExpression().info().getExpression());
+        String mixedCode = ((NamedExpression) mixed).getExpression().info()
+                .getExpression();
+        assertTrue(mixedCode.endsWith("+ (200)"));
+
+        Expression expression = ExpressionFactory.create(registry, new ExpressionConfig(
+                "$c_mixed + $c_label.length() + ($c_boxed == Long.MIN_VALUE ? 1 : 0)",
+                int.class.getName()));
+        Expression fused = ExpressionFactory.createFused(registry, new ExpressionConfig(
+                "$c_mixed + $c_label.length() + ($c_boxed == Long.MIN_VALUE ? 1 : 0)",
+                int.class.getName()));
+        HashMapInputProvider provider = new HashMapInputProvider();
+        provider.put("c_in", 5);
+        TestCache cache = new TestCache();
+        EvalSession session = new EvalSession(provider, registry, cache);
+        assertEquals(210, expression.eval(session));
+        assertEquals(210, fused.eval(new EvalSession(provider, registry)));
+
+        // Constants never go through the session cache
+        assertTrue(cache.contains("c_mixed"));
+        assertFalse(cache.contains("c_twice"));
+        assertFalse(cache.contains("c_label"));
+        assertEquals(200, registry.value("c_twice", session));
+
+        // Constants must only depend on constants, and evaluate at registration
+        try {
+            ArgumentFactory.create(registry, new ArgumentConfig(
+                    "c_input", int.class.getName(), "$c_in + 1", true));
+            fail();
+        } catch (CompilationException e) {
+            assertTrue(e.getMessage().contains("non constant argument c_in"));
+        }
+        try {
+            ArgumentFactory.create(registry, new ArgumentConfig(
+                    "c_failing", int.class.getName(), "Integer.parseInt(\"x\")", true));
+            fail();
+        } catch (CompilationException e) {
+            assertTrue(e.getMessage().contains("constant argument c_failing"));
+        }
+        assertFalse(registry.exists("c_input"));
+        assertFalse(registry.exists("c_failing"));
+
+        // Constants are inlined into their dependents created on the same call
+        List<Argument> created = ArgumentFactory.createAll(registry, Arrays.asList(
+                new ArgumentConfig("c_all_sum", int.class.getName(),
+                        "$c_all_base + $c_in"),
+                new ArgumentConfig("c_all_base", int.class.getName(),
+                        "$c_limit + 1", true)));
+        assertTrue(created.get(1).isConstant());
+        assertEquals(101, created.get(1).getConstantValue());
+        assertTrue(((NamedExpression) created.get(0)).getExpression().info()
+                .getExpression().startsWith("(101) +"));
+        assertEquals(106, registry.value("c_all_sum", new EvalSession(provider, registry)));
+
+        // Each session reads the clock again
+        TestCache first = new TestCache();
+        TestCache second = new TestCache();
+        long firstNow = (Long) registry.value(
+                "c_now", new EvalSession(provider, registry, first));
+        long secondNow = (Long) registry.value(
+                "c_now", new EvalSession(provider, registry, second));
+        assertTrue(first.contains("c_now"));
+        assertTrue(second.contains("c_now"));
+        assertTrue(secondNow > firstNow);
+    }
+
+    /**
+     * Async input provider completing each read when told to
+     */
+    private static class PendingInputProvider implements IAsyncInputProvider {
+        private Map<String, CompletableFuture<Object>> pending = new HashMap<>();
+
+        @Override
+        public synchronized CompletableFuture<Object> getAsync(String name) {
+            return this.pending.computeIfAbsent(name, (key) -> new CompletableFuture<>());
+        }
+
+        @Override
+        public boolean exists(String name) {
+            return true;
+        }
+
+        void complete(String name, Object value) {
+            this.getAsync(name).complete(value);
+        }
+    }
+
+    @Test
+    public void sharedCacheKeys() throws ExecutionException, InterruptedException {
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("k_flag", boolean.class, registry);
+        TestUtils.argument("k_a", int.class, registry);
+        TestUtils.argument("k_b", int.class, registry);
+        TestUtils.argument("k_async", int.class, true, true, registry);
+        Argument pick = ArgumentFactory.create(registry, new ArgumentConfig(
+                "k_pick", int.class.getName(), "$k_flag ? $k_a : $k_b", true, false,
+                new String[0], new SharedCacheConfig(100, Duration.ofMinutes(1))));
+        ArgumentFactory.create(registry, new ArgumentConfig(
+                "k_double", int.class.getName(), "$k_async * 2", true, true,
+                new String[0], new SharedCacheConfig(100, Duration.ofMinutes(1))));
+
+        // Inputs of branches not taken are not required
+        for (int i = 0; i < 2; ++i) {
+            HashMapInputProvider inputs = new HashMapInputProvider();
+            inputs.put("k_flag", true);
+            inputs.put("k_a", 1);
+            assertEquals(1, registry.value("k_pick", new EvalSession(inputs, registry)));
+        }
+        assertEquals(1, pick.getSharedCache().stats().hitCount());
+
+        // But they are still part of the key
+        HashMapInputProvider inputs = new HashMapInputProvider();
+        inputs.put("k_flag", true);
+        inputs.put("k_a", 1);
+        inputs.put("k_b", 2);
+        assertEquals(1, registry.value("k_pick", new EvalSession(inputs, registry)));
+        assertEquals(2, pick.getSharedCache().size());
+
+        // Async inputs of the key are read without blocking
+        Executor unused = (runnable) -> {
+            throw new AssertionError("No executor thread expected");
+        };
+        PendingInputProvider pending = new PendingInputProvider();
+        CompletableFuture<Object> result = registry.valueAsync(
+                "k_double", new EvalSession(pending, registry), unused);
+        assertFalse(result.isDone());
+        pending.complete("k_async", 4);
+        assertEquals(8, result.get());
+    }
+
+    @Test
+    public void asyncInputProvider() throws ExecutionException, InterruptedException {
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("ai_x", int.class, true, true, registry);
+        TestUtils.argument("ai_y", int.class, true, true, registry);
+        Expression expression = ExpressionFactory.create(registry, new ExpressionConfig(
+                "$ai_x + $ai_y", int.class.getName(), true));
+        Executor unused = (runnable) -> {
+            throw new AssertionError("No executor thread expected");
+        };
+
+        // Completes on the thread completing the last input
+        PendingInputProvider inputs = new PendingInputProvider();
+        CompletableFuture<Object> result =
+                expression.evalAsync(new EvalSession(inputs, registry), unused);
+        assertFalse(result.isDone());
+        inputs.complete("ai_x", 1);
+        assertFalse(result.isDone());
+        inputs.complete("ai_y", 2);
+        assertTrue(result.isDone());
+        assertEquals(3, result.get());
+
+        // Sync reads block on the provider
+        assertEquals(1, registry.value("ai_x", new EvalSession(inputs, registry)));
+
+        // Missing inputs fail the evaluation
+        PendingInputProvider missing = new PendingInputProvider();
+        result = expression.evalAsync(new EvalSession(missing, registry), unused);
+        missing.complete("ai_x", null);
+        missing.complete("ai_y", 2);
+        try {
+            result.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("ai_x not found"));
+        }
+    }
+
+    /**
+     * Input provider with bulk reads, counting the reads of each kind
+     */
+    private static class BulkInputProvider extends HashMapInputProvider {
+        private AtomicInteger bulkReads = new AtomicInteger();
+        private AtomicInteger reads = new AtomicInteger();
+        private AtomicInteger existsReads = new AtomicInteger();
+        private HashMap<String, Object> inputs;
+
+        BulkInputProvider() {
+            this(new HashMap<>());
+        }
+
+        private BulkInputProvider(HashMap<String, Object> inputs) {
+            super(inputs);
+            this.inputs = inputs;
+        }
+
+        @Override
+        public Object get(String name) {
+            this.reads.incrementAndGet();
+            return super.get(name);
+        }
+
+        @Override
+        public boolean exists(String name) {
+            this.existsReads.incrementAndGet();
+            return super.exists(name);
+        }
+
+        @Override
+        public Map<String, Object> getAll(Collection<String> names) {
+            this.bulkReads.incrementAndGet();
+            Map<String, Object> values = new HashMap<>();
+            for (String name : names) {
+                if (this.inputs.containsKey(name)) {
+                    values.put(name, this.inputs.get(name));
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public boolean isBulk() {
+            return true;
+        }
+    }
+
+    @Test
+    public void bulkInputPrefetch() {
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("b_x", int.class, registry);
+        TestUtils.argument("b_y", int.class, registry);
+        TestUtils.argument("b_z", int.class, registry);
+        TestUtils.argument("b_fresh", int.class, false, false, registry);
+        TestUtils.argument("b_sum", int.class, "$b_x * $b_z", registry);
+        TestUtils.argument("b_all", int.class, "$b_sum + $b_y + $b_fresh", registry);
+        Expression expression = ExpressionFactory.create(registry, new ExpressionConfig(
+                "$b_all + $b_x", int.class.getName()));
+
+        BulkInputProvider inputs = new BulkInputProvider();
+        inputs.put("b_x", 2);
+        inputs.put("b_y", 3);
+        inputs.put("b_z", 4);
+        inputs.put("b_fresh", 5);
+        EvalSession session = new EvalSession(inputs, registry);
+        assertEquals(18, expression.evalInt(session));
+
+        // One bulk read for all cacheable inputs, non cacheable ones read as usual
+        assertEquals(1, inputs.bulkReads.get());
+        assertEquals(1, inputs.reads.get());
+
+        // Inputs already read are not fetched again
+        EvalPlan plan = new EvalPlan(registry, Arrays.asList("b_all", "b_sum"));
+        assertArrayEquals(new Object[]{16, 8}, plan.eval(session));
+        assertEquals(1, inputs.bulkReads.get());
+
+        // Missing inputs still fail on evaluation, without asking the provider again
+        BulkInputProvider missing = new BulkInputProvider();
+        missing.put("b_x", 2);
+        try {
+            expression.eval(new EvalSession(missing, registry));
+            fail();
+        } catch (EvaluationException e) {
+            assertTrue(e.getMessage().contains("not found"));
+            assertEquals(1, missing.bulkReads.get());
+            assertEquals(0, missing.reads.get());
+            assertEquals(0, missing.existsReads.get());
+        }
+    }
+
+    @Test
+    public void dependencyClosures() {
+        ArgumentRegistry registry = new ArgumentRegistry();
+        Argument a = TestUtils.argument("d_a", int.class, registry);
+        Argument b = TestUtils.argument("d_b", int.class, registry);
+        Argument sum = TestUtils.argument("d_sum", int.class, "$d_a + $d_b", registry);
+        Argument diff = TestUtils.argument("d_diff", int.class, "$d_a - $d_b", registry);
+        Argument both = TestUtils.argument(
+                "d_both", int.class, "$d_sum * $d_diff", registry);
+
+        // Same dependencies, same closure instance
+        assertSame(sum.dependencies(), diff.dependencies());
+        assertSame(ArgumentSet.EMPTY, a.dependencies());
+        assertEquals(Arrays.asList(a, b, sum, diff),
+                new ArrayList<>(both.dependencies()));
+        assertTrue(both.dependencies().contains(sum));
+        assertFalse(both.dependencies().contains(both));
+        // Arguments are equal by name, whatever their registry
+        assertTrue(both.dependencies().contains(TestUtils.argument("d_b", int.class)));
+
+        NamedExpression common = (NamedExpression) both;
+        assertTrue(common.getExpression().info().hasCommonDependencies());
+        assertFalse(((NamedExpression) sum).getExpression().info()
+                .hasCommonDependencies());
+    }
+
+    @Test
+    public void registryVersions() {
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("v_in", int.class, registry);
+        TestUtils.argument("v_a", int.class, "$v_in + 1", registry);
+        assertEquals(2, registry.version());
+
+        HashMapInputProvider provider = new HashMapInputProvider();
+        provider.put("v_in", 1);
+        EvalSession session = new EvalSession(provider, registry);
+        assertEquals(2, registry.value("v_a", session));
+        ArgumentRegistry pinned = session.version();
+        assertTrue(pinned.isSnapshot());
+
+        // Sessions keep their version while new ones are published
+        TestUtils.argument("v_b", int.class, "$v_a * 3", registry);
+        assertEquals(3, registry.version());
+        assertEquals(2, pinned.version());
+        assertFalse(pinned.exists("v_b"));
+        assertEquals(2, pinned.size());
+        try {
+            registry.value("v_b", session);
+            fail();
+        } catch (EvaluationException e) {
+            assertTrue(e.getMessage().contains("not registered"));
+        }
+
+        EvalSession next = new EvalSession(provider, registry);
+        assertEquals(6, registry.value("v_b", next));
+        assertSame(registry.snapshot(), next.version());
+
+        // Snapshots can't be registered with
+        try {
+            TestUtils.argument("v_c", int.class, pinned);
+            fail();
+        } catch (CompilationException e) {
+            assertTrue(e.getMessage().contains("immutable"));
+        }
+
+        // Failed batches are not published, not even partially
+        try {
+            ArgumentFactory.createAll(registry, Arrays.asList(
+                    new ArgumentConfig("v_c", Integer.class.getName(), "$v_b + 1"),
+                    new ArgumentConfig("v_d", Integer.class.getName(), "$v_c.foo()")));
+            fail();
+        } catch (CompilationException e) {
+            assertFalse(registry.exists("v_c"));
+            assertEquals(3, registry.size());
+            assertEquals(3, registry.version());
+        }
+
+        ArgumentFactory.createAll(registry, Arrays.asList(
+                new ArgumentConfig("v_c", Integer.class.getName(), "$v_b + 1"),
+                new ArgumentConfig("v_d", Integer.class.getName(), "$v_c * 2")));
+        assertEquals(4, registry.version());
+        assertEquals(3, registry.get("v_c").getSlot());
+        assertEquals(14, registry.value("v_d", new EvalSession(provider, registry)));
+    }
+
+    private static volatile ArgumentRegistry probed;
+    private static volatile String probeError;
+
+    /**
+     * Compiles a standalone expression reading $r_first while it is being registered
+     */
+    public static int probe(int value) {
+        try {
+            ExpressionFactory.create(
+                    probed, new ExpressionConfig("$r_first + 1", int.class.getName()));
+        } catch (CompilationException e) {
+            probeError = e.getMessage();
+        }
+        return value;
+    }
+
+    @Test
+    public void standaloneExpressionsSeePublishedArguments() {
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("r_in", int.class, registry);
+        probed = registry;
+        probeError = null;
+
+        // Constants are folded while the batch is registered, so the probe runs
+        // before the batch is rolled back
+        String[] imports = {ArgumentTest.class.getName()};
+        try {
+            ArgumentFactory.createAll(registry, Arrays.asList(
+                    new ArgumentConfig("r_first", int.class.getName(), "1", true),
+                    new ArgumentConfig("r_probe", int.class.getName(),
+                            "ArgumentTest.probe($r_first)", true, false, imports,
+                            null, true),
+                    new ArgumentConfig("r_broken", int.class.getName(), "$r_probe.foo()")));
+            fail();
+        } catch (CompilationException e) {
+            assertFalse(registry.exists("r_first"));
+        }
+        assertNotNull(probeError);
+        assertTrue(probeError.contains("r_first not registered"));
+
+        // The slots of rolled back arguments are reused
+        Argument other = TestUtils.argument("r_other", int.class, "$r_in * 3", registry);
+        assertEquals(1, other.getSlot());
+        HashMapInputProvider provider = new HashMapInputProvider();
+        provider.put("r_in", 2);
+        Expression expression = ExpressionFactory.create(registry, new ExpressionConfig(
+                "$r_other + 1", int.class.getName()));
+        assertEquals(7, expression.eval(new EvalSession(provider, registry)));
+    }
+
+    @Test
+    public void incrementalUpdate() {
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("u_in", int.class, registry);
+        TestUtils.argument("u_limit", int.class, "10", registry);
+        TestUtils.argument("u_a", int.class, "$u_in + $u_limit", registry);
+        TestUtils.argument("u_b", int.class, "$u_a * 2", registry);
+        Argument other = TestUtils.argument("u_other", int.class, "$u_in - 1", registry);
+        assertEquals(
+                Collections.singletonList(registry.get("u_b")),
+                registry.dependents("u_a"));
+
+        HashMapInputProvider provider = new HashMapInputProvider();
+        provider.put("u_in", 1);
+        EvalSession before = new EvalSession(provider, registry);
+
+        // Only the updated argument and its dependents are recompiled
+        List<Argument> recompiled = ArgumentFactory.update(registry,
+                Collections.singletonList(
+                        new ArgumentConfig("u_limit", Integer.class.getName(), "20")));
+        assertEquals(Arrays.asList("u_limit", "u_a", "u_b"),
+                recompiled.stream().map(Argument::getName).collect(Collectors.toList()));
+        assertSame(other, registry.get("u_other"));
+        assertEquals(6, registry.version());
+
+        assertEquals(42, registry.value("u_b", new EvalSession(provider, registry)));
+        assertEquals(22, registry.value("u_b", before));
+
+        // Updates breaking the types of dependents are not published
+        try {
+            ArgumentFactory.update(registry, Collections.singletonList(
+                    new ArgumentConfig("u_a", String.class.getName(), "\"a\"")));
+            fail();
+        } catch (CompilationException e) {
+            assertEquals(6, registry.version());
+            assertEquals(int.class, registry.get("u_a").getReturnType());
+        }
+
+        try {
+            ArgumentFactory.update(registry, Collections.singletonList(
+                    new ArgumentConfig("u_in", Integer.class.getName(), "$u_b + 1")));
+            fail();
+        } catch (CompilationException e) {
+            assertTrue(e.getMessage().contains("Circular dependency"));
+            assertEquals(0, registry.get("u_in").getSlot());
+        }
+        assertEquals(42, registry.value("u_b", new EvalSession(provider, registry)));
+    }
+
+    @Test
+    public void discardUnusedVersions() {
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("w_in", int.class, registry);
+        TestUtils.argument("w_a", int.class, "$w_in + 1", registry);
+        int slot = registry.get("w_a").getSlot();
+
+        HashMapInputProvider provider = new HashMapInputProvider();
+        provider.put("w_in", 1);
+        // The version is pinned on creation, evaluated or not
+        EvalSession session = new EvalSession(provider, registry);
+        ArgumentFactory.update(registry, Collections.singletonList(
+                new ArgumentConfig("w_a", Integer.class.getName(), "$w_in + 2")));
+
+        // Still seen by the version of the session
+        ArgumentFactory.create(registry, new ArgumentConfig("w_b", "int", "1"));
+        assertNotNull(registry.get(slot));
+        assertEquals(2, registry.value("w_a", session));
+
+        // Discarded once the version of the session is released
+        registry.release(session.version());
+        assertNull(registry.get(slot));
+        session = new EvalSession(provider, registry);
+        assertEquals(3, registry.value("w_a", session));
+
+        // Replaced arguments kept around fail reading discarded dependencies
+        Argument top = TestUtils.argument("w_top", int.class, "$w_a * 10", registry);
+        int previous = registry.get("w_a").getSlot();
+        ArgumentFactory.update(registry, Collections.singletonList(
+                new ArgumentConfig("w_a", Integer.class.getName(), "$w_in + 3")));
+        assertNotNull(registry.get(previous));
+        registry.release(session.version());
+        assertNull(registry.get(previous));
+        assertEquals(40, registry.value("w_top", new EvalSession(provider, registry)));
+        try {
+            ((NamedExpression) top).getExpression()
+                    .eval(new EvalSession(provider, registry));
+            fail();
+        } catch (EvaluationException e) {
+            assertTrue(e.getMessage().contains("discarded"));
+        }
+    }
+
+    @Test
+    public void primitiveArguments()
+            throws ExecutionException, InterruptedException {
+        Executor executor = Executors.newFixedThreadPool(2);
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("p_int_a", int.class, registry);
+        TestUtils.argument("p_long_a", long.class, registry);
+        TestUtils.argument("p_int_b", int.class, "$p_int_a * 2", registry);
+        TestUtils.argument(
+                "p_double_a", double.class, "$p_int_b + $p_long_a / 2.0", registry);
+        TestUtils.argument(
+                "p_boolean_a", boolean.class, "$p_double_a > $p_int_b", registry);
+        TestUtils.argument(
+                "p_int_async", int.class, true, true, "$p_int_b + 1", registry);
+
+        HashMapInputProvider provider = new HashMapInputProvider();
+        provider.put("p_int_a", 3);
+        provider.put("p_long_a", 5L);
+
+        for (ICache cache : new ICache[]{
+                new HashMapCache(),
+                new TestCache(),
+                new ArrayCache(registry),
+                new ConcurrentArrayCache(registry)}) {
+            EvalSession session = new EvalSession(provider, registry, cache);
+            assertEquals(8.5, registry.value("p_double_a", session));
+            assertEquals(true, registry.value("p_boolean_a", session));
+            assertEquals(6, registry.value("p_int_b", session));
+            assertEquals(6, cache.getInt(registry.get("p_int_b")));
+            assertEquals(7, registry.valueAsync(
+                    "p_int_async", session, executor).get());
+        }
+
+        {
+            // Type checking still happens for primitive inputs
+            HashMapInputProvider wrong = new HashMapInputProvider();
+            wrong.put("p_int_a", 3L);
+            EvalSession session = new EvalSession(wrong, registry);
+            try {
+                registry.value("p_int_b", session);
+                fail();
+            } catch (EvaluationException e) {
+                assertTrue(e.getMessage().contains("not assignable"));
+            }
+        }
+    }
+
     @Test
     public void duplicatedArgument() throws CompilationException {
         try {
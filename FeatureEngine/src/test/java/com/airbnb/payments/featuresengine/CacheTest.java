@@ -0,0 +1,159 @@
+package com.airbnb.payments.featuresengine;
+
+import com.airbnb.payments.featuresengine.arguments.Argument;
+import com.airbnb.payments.featuresengine.arguments.ArgumentRegistry;
+import com.airbnb.payments.featuresengine.cache.ArrayCache;
+import com.airbnb.payments.featuresengine.cache.ConcurrentArrayCache;
+import com.airbnb.payments.featuresengine.cache.HashMapCache;
+import com.airbnb.payments.featuresengine.cache.ICache;
+import com.airbnb.payments.featuresengine.core.EvalSession;
+import com.airbnb.payments.featuresengine.errors.EvaluationException;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class CacheTest {
+
+    @Test
+    public void lookup() {
+        ICache cache = new HashMapCache();
+        assertNull(cache.lookup("a"));
+        cache.put("a", 1);
+        assertEquals(1, cache.lookup("a"));
+    }
+
+    @Test
+    public void arrayCache() {
+        ArgumentRegistry registry = TestUtils.testSession().registry();
+        Argument argument = registry.get("e_int_c");
+        ArrayCache cache = new ArrayCache(registry);
+
+        assertFalse(cache.contains("e_int_c"));
+        assertNull(cache.lookup(argument));
+        assertNull(cache.lookup("not_registered"));
+
+        cache.put(argument, 9);
+        assertTrue(cache.contains("e_int_c"));
+        assertEquals(9, cache.lookup(argument));
+        assertEquals(9, cache.get("e_int_c"));
+
+        cache.put("i_int_a", 1);
+        assertEquals(1, cache.lookup(registry.get("i_int_a")));
+
+        cache.clear();
+        assertFalse(cache.contains("e_int_c"));
+        assertFalse(cache.contains("i_int_a"));
+
+        try {
+            cache.get("e_int_c");
+            fail();
+        } catch (EvaluationException e) {
+            assertTrue(e.getMessage().contains("not present"));
+        }
+    }
+
+    @Test
+    public void argumentsRegisteredAfterCreation() {
+        EvalSession base = TestUtils.testSession();
+        ArrayCache arrayCache = new ArrayCache(base.registry());
+        ConcurrentArrayCache concurrentCache = new ConcurrentArrayCache(base.registry());
+
+        Argument late = TestUtils.argument(
+                "late", Integer.class, "$e_int_c * 2", base.registry());
+
+        for (ICache cache : new ICache[]{arrayCache, concurrentCache}) {
+            EvalSession session = new EvalSession(
+                    base.inputs(), base.registry(), cache);
+            assertEquals(18, session.registry().value("late", session));
+            assertEquals(18, cache.lookup(late));
+        }
+    }
+
+    @Test
+    public void concurrentCacheKeepsFirstValue() {
+        ArgumentRegistry registry = TestUtils.testSession().registry();
+        Argument argument = registry.get("async_int_c");
+        ConcurrentArrayCache cache = new ConcurrentArrayCache(registry);
+
+        cache.put(argument, 9);
+        cache.put(argument, 10);
+        assertEquals(9, cache.lookup(argument));
+        assertEquals(9, cache.get("async_int_c"));
+        // Losing writers get the value every reader sees
+        assertEquals(9, cache.putOrGet(argument, 11));
+
+        Argument primitive = TestUtils.argument("p_first", int.class, registry);
+        ConcurrentArrayCache grown = new ConcurrentArrayCache(registry);
+        assertEquals(3L, grown.putOrGetBits(primitive, 3L));
+        assertEquals(3L, grown.putOrGetBits(primitive, 4L));
+        assertEquals(3, grown.putOrGet(primitive, 5));
+    }
+
+    @Test
+    public void primitiveSlots() {
+        ArgumentRegistry registry = new ArgumentRegistry();
+        Argument intArg = TestUtils.argument("int", int.class, registry);
+        Argument longArg = TestUtils.argument("long", long.class, registry);
+        Argument doubleArg = TestUtils.argument("double", double.class, registry);
+        Argument booleanArg = TestUtils.argument("boolean", boolean.class, registry);
+
+        for (ICache cache : new ICache[]{
+                new ArrayCache(registry),
+                new ConcurrentArrayCache(registry),
+                new HashMapCache()}) {
+            assertFalse(cache.contains(intArg));
+            assertEquals(ICache.MISSING, cache.lookupBits(intArg));
+            assertEquals(ICache.MISSING, cache.lookupBits(doubleArg));
+            cache.putInt(intArg, -3);
+            cache.putLong(longArg, Long.MAX_VALUE);
+            cache.putDouble(doubleArg, 0.25);
+            cache.putBoolean(booleanArg, true);
+
+            assertTrue(cache.contains(intArg));
+            assertEquals(-3, cache.getInt(intArg));
+            assertEquals(Long.MAX_VALUE, cache.getLong(longArg));
+            assertEquals(0.25, cache.getDouble(doubleArg), 0.0);
+            assertTrue(cache.getBoolean(booleanArg));
+
+            assertEquals(-3, cache.lookupBits(intArg));
+            assertEquals(Long.MAX_VALUE, cache.lookupBits(longArg));
+            assertEquals(0.25, Double.longBitsToDouble(cache.lookupBits(doubleArg)), 0.0);
+            assertEquals(1L, cache.lookupBits(booleanArg));
+
+            // The boxed view reads the same slots
+            assertEquals(-3, cache.lookup(intArg));
+            assertEquals(0.25, cache.get("double"));
+        }
+    }
+
+    @Test
+    public void evaluateWithArrayCaches()
+            throws ExecutionException, InterruptedException {
+        Executor executor = Executors.newFixedThreadPool(2);
+        EvalSession base = TestUtils.testSession();
+
+        {
+            EvalSession session = new EvalSession(
+                    base.inputs(),
+                    base.registry(),
+                    new ArrayCache(base.registry()));
+            assertEquals(9, session.registry().value("e_int_c", session));
+            assertEquals(9, session.registry().value("e_int_c", session));
+            assertTrue(session.cache().contains("e_int_c"));
+            assertFalse(session.cache().contains("e_int_d"));
+        }
+
+        {
+            EvalSession session = new EvalSession(base.inputs(), base.registry());
+            assertEquals(38, session.registry().valueAsync(
+                    "async_int_f", session, executor).get());
+            assertEquals(39, session.registry().valueAsync(
+                    "async_int_h", session, executor).get());
+            assertTrue(session.cache().contains("async_int_c"));
+        }
+    }
+}
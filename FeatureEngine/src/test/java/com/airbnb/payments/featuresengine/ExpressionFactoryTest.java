@@ -7,14 +7,27 @@ import com.airbnb.payments.featuresengine.cache.HashMapCache;
 import com.airbnb.payments.featuresengine.cache.ICache;
 import com.airbnb.payments.featuresengine.config.ArgumentConfig;
 import com.airbnb.payments.featuresengine.config.ExpressionConfig;
+import com.airbnb.payments.featuresengine.config.SharedCacheConfig;
 import com.airbnb.payments.featuresengine.core.EvalSession;
+import com.airbnb.payments.featuresengine.errors.CompilationException;
 import com.airbnb.payments.featuresengine.expressions.Expression;
 import com.airbnb.payments.featuresengine.expressions.ExpressionFactory;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 
 import static org.junit.Assert.*;
 
 public class ExpressionFactoryTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private static EvalSession createTestSession() {
         ICache cache = new HashMapCache();
 
@@ -75,6 +88,51 @@ public class ExpressionFactoryTest {
         assertArrayEquals(new String[0], expression.info().getImports());
     }
 
+    @Test
+    public void contentBasedIds() {
+        EvalSession session = createTestSession();
+        ArgumentRegistry registry = session.registry();
+
+        String id = ExpressionFactory.create(
+                registry,
+                new ExpressionConfig("$a + $b", Integer.class.getName())).info().getId();
+
+        // Identical expressions share the id (and the compiled evaluator)
+        Expression same = ExpressionFactory.create(
+                registry, new ExpressionConfig("$a + $b", Integer.class.getName()));
+        assertEquals(id, same.info().getId());
+        assertEquals(3, same.eval(session));
+
+        // Anything changing the compiled code changes the id
+        assertNotEquals(id, ExpressionFactory.create(
+                registry,
+                new ExpressionConfig("$a + $b", Number.class.getName()))
+                .info().getId());
+        assertNotEquals(id, ExpressionFactory.create(
+                registry,
+                new ExpressionConfig("$a + $b", Integer.class.getName(), true))
+                .info().getId());
+        assertNotEquals(id, ExpressionFactory.create(
+                registry,
+                new ExpressionConfig(
+                        "$a + $b",
+                        Integer.class.getName(),
+                        new String[]{TestUtils.class.getName()}))
+                .info().getId());
+        assertNotEquals(id, ExpressionFactory.create(
+                registry,
+                new ExpressionConfig("$b + $a", Integer.class.getName()))
+                .info().getId());
+
+        // Same text reading arguments on different slots is a different expression
+        ArgumentRegistry other = new ArgumentRegistry();
+        TestUtils.argument("b", Integer.class, other);
+        TestUtils.argument("a", Integer.class, other);
+        assertNotEquals(id, ExpressionFactory.create(
+                other, new ExpressionConfig("$a + $b", Integer.class.getName()))
+                .info().getId());
+    }
+
     @Test
     public void convertDoubleMatch() {
         EvalSession session = createTestSession();
@@ -83,8 +141,8 @@ public class ExpressionFactoryTest {
                 session.registry(), new ExpressionConfig(
                         "$a + $b", Integer.class.getName()));
         assertEquals(
-                "((java.lang.Integer)session.registry().value(\"a\", session))"
-                        + " + ((java.lang.Integer)session.registry().value(\"b\", session))",
+                "((java.lang.Integer)session.registry().value(0, session))"
+                        + " + ((java.lang.Integer)session.registry().value(1, session))",
                 expression.info().getExpression());
 
 
@@ -118,4 +176,114 @@ public class ExpressionFactoryTest {
 
         }
     }
+
+    @Test
+    public void fusedExpression() {
+        TestCache cache = new TestCache();
+        EvalSession session = TestUtils.testSession(cache);
+        ExpressionConfig config = new ExpressionConfig(
+                "$e_int_c * 2 + $e_int_d - $e_int_e", Integer.class.getName());
+
+        Expression fused = ExpressionFactory.createFused(session.registry(), config);
+        assertEquals(10, fused.eval(session));
+
+        // Named expressions are memoized inside the fused evaluation, inputs still
+        // go through the session
+        assertFalse(cache.contains("e_int_c"));
+        assertTrue(cache.contains("i_int_a"));
+
+        Expression regular = ExpressionFactory.create(session.registry(), config);
+        assertEquals(regular.eval(session), fused.eval(session));
+    }
+
+    @Test
+    public void bytecodeCache() throws IOException {
+        Path directory = temporaryFolder.newFolder("bytecode").toPath();
+        EvalSession session = TestUtils.testSession(new HashMapCache());
+        ExpressionConfig config = new ExpressionConfig(
+                "$e_int_c * 3 + $e_int_d", Integer.class.getName());
+
+        ExpressionFactory.setBytecodeCache(directory);
+        try {
+            Expression compiled = ExpressionFactory.createFused(
+                    session.registry(), config);
+            File[] entries = directory.toFile().listFiles();
+            assertEquals(1, entries.length);
+            byte[] entry = Files.readAllBytes(entries[0].toPath());
+
+            // Loaded from the cache directory, the entry is left untouched
+            Expression loaded = ExpressionFactory.createFused(
+                    session.registry(), config);
+            assertEquals(compiled.eval(session), loaded.eval(session));
+            assertArrayEquals(entry, Files.readAllBytes(entries[0].toPath()));
+
+            // Corrupted entries are compiled and written again
+            Files.write(entries[0].toPath(), new byte[]{1, 2, 3});
+            Expression recompiled = ExpressionFactory.createFused(
+                    session.registry(), config);
+            assertEquals(compiled.eval(session), recompiled.eval(session));
+            assertArrayEquals(entry, Files.readAllBytes(entries[0].toPath()));
+        } finally {
+            ExpressionFactory.setBytecodeCache(null);
+        }
+    }
+
+    @Test
+    public void fusedPrimitiveExpression() {
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("p_a", int.class, registry);
+        TestUtils.argument("p_b", int.class, "$p_a * 2", registry);
+        TestUtils.argument("p_c", double.class, "$p_b + 0.5", registry);
+        TestUtils.argument("p_d", double.class, true, false, "$p_c / 2", registry);
+        TestUtils.argument("p_e", long.class, false, false, "$p_a + 1L", registry);
+
+        HashMapInputProvider provider = new HashMapInputProvider();
+        provider.put("p_a", 3);
+        EvalSession session = new EvalSession(provider, registry);
+
+        Expression fused = ExpressionFactory.createFused(
+                registry,
+                new ExpressionConfig(
+                        "$p_d * $p_b + $p_e + $p_e", double.class.getName()));
+        assertEquals(27.5, fused.evalDouble(session), 0.0);
+        assertEquals(27.5, fused.eval(session));
+    }
+
+    @Test
+    public void fusedSharedCacheDependency() {
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("s_in", int.class, registry);
+        TestUtils.argument("s_small", int.class, "$s_in + 1", registry);
+        ArgumentFactory.create(registry, new ArgumentConfig(
+                "s_shared", int.class.getName(), "$s_small * 2", true, false,
+                new String[0], new SharedCacheConfig(100, Duration.ofMinutes(1))));
+
+        HashMapInputProvider provider = new HashMapInputProvider();
+        provider.put("s_in", 3);
+        TestCache cache = new TestCache();
+        EvalSession session = new EvalSession(provider, registry, cache);
+
+        // The shared argument is read from the session, which computes its
+        // dependencies as usual
+        Expression fused = ExpressionFactory.createFused(registry, new ExpressionConfig(
+                "$s_shared + 1", int.class.getName()));
+        assertEquals(9, fused.eval(session));
+        assertTrue(cache.contains("s_shared"));
+        assertTrue(cache.contains("s_small"));
+    }
+
+    @Test
+    public void fusedAsyncExpression() {
+        EvalSession session = TestUtils.testSession();
+
+        try {
+            ExpressionFactory.createFused(
+                    session.registry(),
+                    new ExpressionConfig(
+                            "$async_int_c + 1", Integer.class.getName(), true));
+            fail();
+        } catch (CompilationException e) {
+            assertTrue(e.getMessage().contains("must be sync"));
+        }
+    }
 }
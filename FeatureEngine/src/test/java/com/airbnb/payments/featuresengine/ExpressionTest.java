@@ -1,21 +1,45 @@
 package com.airbnb.payments.featuresengine;
 
 import com.airbnb.payments.featuresengine.arguments.Argument;
+import com.airbnb.payments.featuresengine.arguments.ArgumentFactory;
+import com.airbnb.payments.featuresengine.arguments.ArgumentRegistry;
+import com.airbnb.payments.featuresengine.arguments.HashMapInputProvider;
+import com.airbnb.payments.featuresengine.arguments.IInputProvider;
+import com.airbnb.payments.featuresengine.arguments.NamedExpression;
+import com.airbnb.payments.featuresengine.config.ArgumentConfig;
+import com.airbnb.payments.featuresengine.config.ExpressionConfig;
+import com.airbnb.payments.featuresengine.core.BatchEvaluator;
+import com.airbnb.payments.featuresengine.core.EvalPlan;
 import com.airbnb.payments.featuresengine.core.EvalSession;
 import com.airbnb.payments.featuresengine.errors.CompilationException;
 import com.airbnb.payments.featuresengine.errors.EvaluationException;
 import com.airbnb.payments.featuresengine.expressions.Expression;
+import com.airbnb.payments.featuresengine.expressions.ExpressionBatch;
+import com.airbnb.payments.featuresengine.expressions.ExpressionFactory;
+import com.airbnb.payments.featuresengine.metrics.ArgumentMetrics;
+import com.airbnb.payments.featuresengine.metrics.Metrics;
+import com.airbnb.payments.featuresengine.metrics.StripedMetricsSink;
+import com.airbnb.payments.featuresengine.tracing.SessionTrace;
+import com.airbnb.payments.featuresengine.tracing.TraceSpan;
+import com.airbnb.payments.featuresengine.tracing.Tracing;
 import com.google.common.collect.Sets;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -72,6 +96,45 @@ public class ExpressionTest {
         }
     }
 
+    @Test
+    public void evaluatePrimitiveExpressions() {
+        {
+            Expression expression = TestUtils.expression("3 + 4", int.class);
+            assertEquals(7, expression.evalInt(null));
+            assertEquals(7, expression.eval(null));
+        }
+
+        {
+            Expression expression = TestUtils.expression("3L * 4L", long.class);
+            assertEquals(12L, expression.evalLong(null));
+        }
+
+        {
+            Expression expression = TestUtils.expression("Math.sqrt(9)", double.class);
+            assertEquals(3.0, expression.evalDouble(null), 0.0);
+        }
+
+        {
+            Expression expression = TestUtils.expression("1 < 2", boolean.class);
+            assertTrue(expression.evalBoolean(null));
+        }
+
+        {
+            // Boxed expressions can still be evaluated unboxed
+            Expression expression = TestUtils.expression("3 + 4", Integer.class);
+            assertEquals(7, expression.evalInt(null));
+        }
+
+        {
+            // Primitive type mismatches are caught during compilation
+            try {
+                TestUtils.expression("1.5", int.class);
+                fail();
+            } catch (CompilationException e) {
+            }
+        }
+    }
+
     @Test
     public void evaluateInstanceMethod() {
         Expression expression = TestUtils.expression(
@@ -79,6 +142,40 @@ public class ExpressionTest {
         assertEquals("trim_me", expression.eval(null));
     }
 
+    @Test
+    public void evaluateWithComments() {
+        Expression expression = TestUtils.expression(
+                "/* sum */ 1 + 2 // three", Integer.class);
+        assertEquals(3, expression.eval(null));
+    }
+
+    @Test
+    public void parseReferences() {
+        assertEquals(
+                Arrays.asList("b", "big", "v_1", "b"),
+                ExpressionFactory.references(
+                        "$b + $big + \"$s \\\" $t\" + '$' + '\\'' /* $c */"
+                                + " + x$y + $v_1 + $b // $d"));
+
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("r", Integer.class, registry);
+        TestUtils.argument("r2", Integer.class, registry);
+        TestUtils.argument("rr", Integer.class, registry);
+        HashMapInputProvider provider = new HashMapInputProvider();
+        provider.put("r", 1);
+        provider.put("r2", 20);
+        provider.put("rr", 300);
+        EvalSession session = new EvalSession(provider, registry);
+
+        // Prefixes of other names, names with digits and $ inside literals
+        Expression expression = ExpressionFactory.create(
+                registry,
+                new ExpressionConfig(
+                        "$r + $r2 + $rr + \"$r$rr\".length() /* $r */",
+                        Integer.class.getName()));
+        assertEquals(326, expression.eval(session));
+    }
+
     @Test
     public void evaluateConstructor() {
         Expression expression = TestUtils.expression(
@@ -403,4 +500,416 @@ public class ExpressionTest {
             assertEquals(true, exp1.eval(session));
         }
     }
+
+    @Test
+    public void evaluateBatch() {
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("r_a", int.class, registry);
+        TestUtils.argument("r_b", int.class, registry);
+        TestUtils.argument("r_sum", int.class, "$r_a + $r_b", registry);
+        TestUtils.argument("r_double", double.class, "$r_sum * 1.5", registry);
+        Expression expression = ExpressionFactory.create(
+                registry, new ExpressionConfig("$r_sum * 2", int.class.getName()));
+
+        List<IInputProvider> rows = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            HashMapInputProvider row = new HashMapInputProvider();
+            row.put("r_a", i);
+            row.put("r_b", 1);
+            rows.add(row);
+        }
+
+        BatchEvaluator batch = new BatchEvaluator(registry, 7, new ForkJoinPool(4));
+
+        int[] ints = new int[rows.size()];
+        batch.evalInt(expression, rows, ints);
+        Object[] objects = new Object[rows.size()];
+        batch.eval(expression, rows, objects);
+        Object[][] columns = new Object[2][rows.size()];
+        batch.eval(
+                Arrays.asList(registry.get("r_sum"), registry.get("r_double")),
+                rows,
+                columns);
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals((i + 1) * 2, ints[i]);
+            assertEquals((i + 1) * 2, objects[i]);
+            assertEquals(i + 1, columns[0][i]);
+            assertEquals((i + 1) * 1.5, columns[1][i]);
+        }
+
+        // Failures report the failing row
+        rows.set(42, new HashMapInputProvider());
+        try {
+            batch.evalInt(expression, rows, ints);
+            fail();
+        } catch (EvaluationException e) {
+            assertTrue(e.getMessage().contains("row 42"));
+        }
+    }
+
+    // Set before each evaluation calling blockingLoad()
+    private static volatile CountDownLatch blockingCalls;
+
+    /**
+     * Blocking call that only returns once two calls are in flight
+     */
+    public static int blockingLoad(int value) {
+        blockingCalls.countDown();
+        try {
+            if (!blockingCalls.await(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Calls were not concurrent");
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        return value;
+    }
+
+    @Test
+    public void evaluatePlan() throws ExecutionException, InterruptedException {
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("p_a", int.class, registry);
+        TestUtils.argument("p_b", int.class, registry);
+        TestUtils.argument("p_sum", int.class, "$p_a + $p_b", registry);
+        TestUtils.argument("p_chain", int.class, "$p_sum * 2", registry);
+        TestUtils.argument(
+                "p_nocache", int.class, false, false, "$p_sum + 1", registry);
+        TestUtils.argument("p_top", int.class, "$p_chain + $p_nocache", registry);
+
+        EvalPlan plan = new EvalPlan(registry, Arrays.asList("p_top", "p_sum", "p_a"));
+        assertFalse(plan.isAsync());
+        HashMapInputProvider inputs = new HashMapInputProvider();
+        inputs.put("p_a", 1);
+        inputs.put("p_b", 2);
+        TestCache cache = new TestCache();
+        Object[] values = plan.eval(new EvalSession(inputs, registry, cache));
+        assertArrayEquals(new Object[]{10, 3, 1}, values);
+        assertTrue(cache.contains("p_chain"));
+        assertFalse(cache.contains("p_nocache"));
+
+        // Async leaves are started up front, sync arguments computed meanwhile
+        ArgumentFactory.create(registry, new ArgumentConfig(
+                "p_pow",
+                Integer.class.getName(),
+                "TestUtils.asyncPow($p_a, 2)",
+                true,
+                true,
+                new String[]{TestUtils.class.getName()}));
+        ArgumentFactory.create(registry, new ArgumentConfig(
+                "p_async_top",
+                Integer.class.getName(),
+                "TestUtils.asyncAdd($p_pow, $p_chain)",
+                true,
+                true,
+                new String[]{TestUtils.class.getName()}));
+        EvalPlan asyncPlan = new EvalPlan(
+                registry, Arrays.asList("p_async_top", "p_pow", "p_top"));
+        assertTrue(asyncPlan.isAsync());
+        inputs = new HashMapInputProvider();
+        inputs.put("p_a", 3);
+        inputs.put("p_b", 2);
+        values = asyncPlan.evalAsync(
+                new EvalSession(inputs, registry), Executors.newFixedThreadPool(2))
+                .get();
+        assertArrayEquals(new Object[]{19, 9, 16}, values);
+
+        try {
+            asyncPlan.eval(new EvalSession(inputs, registry));
+            fail();
+        } catch (EvaluationException e) {
+            assertTrue(e.getMessage().contains("evalAsync"));
+        }
+
+        // Failures complete the future exceptionally
+        try {
+            asyncPlan.evalAsync(new EvalSession(new HashMapInputProvider(), registry),
+                    Executors.newFixedThreadPool(2)).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof EvaluationException);
+        }
+
+        // Dependencies only needed on branches not taken may be missing
+        TestUtils.argument("p_flag", boolean.class, registry);
+        TestUtils.argument("p_x", int.class, registry);
+        TestUtils.argument("p_pick", int.class, "$p_flag ? $p_x : 0", registry);
+        inputs = new HashMapInputProvider();
+        inputs.put("p_flag", false);
+        inputs.put("p_a", 3);
+        assertEquals(0, registry.value("p_pick", new EvalSession(inputs, registry)));
+        EvalPlan conditional = new EvalPlan(registry, Arrays.asList("p_pick", "p_pow"));
+        assertArrayEquals(
+                new Object[]{0, 9},
+                conditional.evalAsync(new EvalSession(inputs, registry),
+                        Executors.newFixedThreadPool(2)).get());
+        assertArrayEquals(
+                new Object[]{0},
+                new EvalPlan(registry, Collections.singletonList("p_pick"))
+                        .eval(new EvalSession(inputs, registry)));
+
+        // Targets taking them still fail
+        inputs = new HashMapInputProvider();
+        inputs.put("p_flag", true);
+        try {
+            new EvalPlan(registry, Collections.singletonList("p_pick"))
+                    .eval(new EvalSession(inputs, registry));
+            fail();
+        } catch (EvaluationException e) {
+            assertTrue(e.getMessage().contains("p_x"));
+        }
+    }
+
+    @Test
+    public void batchCompilation() {
+        ExpressionFactory.setBatchSize(2);
+        try {
+            ArgumentRegistry registry = new ArgumentRegistry();
+            TestUtils.argument("bc_in", int.class, registry);
+            List<Argument> arguments = ArgumentFactory.createAll(registry, Arrays.asList(
+                    new ArgumentConfig("bc_a", int.class.getName(), "$bc_in + 1"),
+                    new ArgumentConfig("bc_b", int.class.getName(), "$bc_in * 2"),
+                    new ArgumentConfig("bc_c", int.class.getName(), "$bc_in + 1"),
+                    new ArgumentConfig("bc_d", int.class.getName(), "$bc_b - $bc_a"),
+                    new ArgumentConfig("bc_s", String.class.getName(), "\"s\" + $bc_d"),
+                    new ArgumentConfig("bc_k", long.class.getName(), "3L", true),
+                    new ArgumentConfig("bc_l", long.class.getName(), "$bc_k * 2", true)));
+
+            // Constants are compiled on their own and folded right away, so they
+            // are still inlined into their dependents
+            assertTrue(registry.get("bc_k").isConstant());
+            assertTrue(registry.get("bc_l").isConstant());
+            assertTrue(((NamedExpression) registry.get("bc_l")).getExpression().info()
+                    .getExpression().startsWith("(3L)"));
+
+            HashMapInputProvider provider = new HashMapInputProvider();
+            provider.put("bc_in", 5);
+            EvalSession session = new EvalSession(provider, registry);
+            assertEquals(6, registry.value("bc_a", session));
+            assertEquals(10, registry.value("bc_b", session));
+            assertEquals(6, registry.value("bc_c", session));
+            assertEquals(4, registry.value("bc_d", session));
+            assertEquals("s4", registry.value("bc_s", session));
+            assertEquals(6L, registry.value("bc_l", session));
+            assertEquals(7, arguments.size());
+
+            // Updates recompile the arguments left on batches mostly replaced, so
+            // the class loaders of those can be unloaded
+            ExpressionBatch batch = ((NamedExpression) registry.get("bc_b"))
+                    .getExpression().batch();
+            assertEquals(5, batch.size());
+            List<Argument> updated = ArgumentFactory.update(registry, Arrays.asList(
+                    new ArgumentConfig("bc_a", int.class.getName(), "$bc_in + 3")));
+            assertEquals(5, updated.size());
+            ExpressionBatch compacted = ((NamedExpression) registry.get("bc_b"))
+                    .getExpression().batch();
+            assertNotSame(batch, compacted);
+            for (Argument argument : updated) {
+                assertSame(compacted,
+                        ((NamedExpression) argument).getExpression().batch());
+            }
+            session = new EvalSession(provider, registry);
+            assertEquals(10, registry.value("bc_b", session));
+            assertEquals("s2", registry.value("bc_s", session));
+
+            // The expression at fault is found, and nothing is registered
+            try {
+                ArgumentFactory.createAll(registry, Arrays.asList(
+                        new ArgumentConfig("bc_x", int.class.getName(), "$bc_in + 2"),
+                        new ArgumentConfig("bc_y", int.class.getName(), "\"y\"")));
+                fail();
+            } catch (CompilationException e) {
+                assertTrue(e.getMessage().contains("\"y\""));
+                assertFalse(registry.exists("bc_x"));
+            }
+        } finally {
+            ExpressionFactory.setBatchSize(0);
+        }
+    }
+
+    @Test
+    public void recordMetrics() throws InterruptedException {
+        StripedMetricsSink metrics = new StripedMetricsSink();
+        Metrics.setSink(metrics);
+        try {
+            ArgumentRegistry registry = new ArgumentRegistry();
+            TestUtils.argument("mt_a", int.class, registry);
+            TestUtils.argument("mt_sum", int.class, "$mt_a + 1", registry);
+            TestUtils.argument("mt_fail", int.class, "1 / ($mt_a - 1)", registry);
+            Expression expression = ExpressionFactory.create(registry,
+                    new ExpressionConfig("$mt_sum * $mt_sum", int.class.getName()));
+            assertEquals(3, metrics.compileLatency().count());
+
+            HashMapInputProvider inputs = new HashMapInputProvider();
+            inputs.put("mt_a", 1);
+            assertEquals(4, expression.evalInt(new EvalSession(inputs, registry)));
+
+            // Unboxed reads are measured too
+            ArgumentMetrics sum = metrics.argument("mt_sum");
+            assertEquals(1, sum.cacheHits());
+            assertEquals(1, sum.cacheMisses());
+            assertEquals(0.5, sum.cacheHitRatio(), 0);
+            assertEquals(1, sum.fetchLatency().count());
+            assertTrue(sum.fetchLatency().percentileNanos(0.99)
+                    >= sum.fetchLatency().meanNanos());
+            assertEquals(1, metrics.argument("mt_a").fetchLatency().count());
+
+            try {
+                registry.value("mt_fail", new EvalSession(inputs, registry));
+                fail();
+            } catch (EvaluationException e) {
+                assertEquals(1, metrics.argument("mt_fail").errors());
+                assertEquals(1, metrics.evalErrors());
+            }
+        } finally {
+            Metrics.setSink(null);
+        }
+        assertFalse(Metrics.isEnabled());
+    }
+
+    @Test
+    public void traceSession() throws ExecutionException, InterruptedException {
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("t_a", int.class, registry);
+        TestUtils.argument("t_sum", int.class, "$t_a + 1", registry);
+        TestUtils.argument("t_top", int.class, "$t_sum * $t_sum", registry);
+        ArgumentFactory.create(registry, new ArgumentConfig(
+                "t_async",
+                Integer.class.getName(),
+                "TestUtils.asyncAdd($t_sum, 1)",
+                true,
+                true,
+                new String[]{TestUtils.class.getName()}));
+        HashMapInputProvider inputs = new HashMapInputProvider();
+        inputs.put("t_a", 1);
+
+        // Sampled sessions only
+        assertNull(new EvalSession(inputs, registry).trace());
+        Tracing.setSampleRate(1);
+        try {
+            assertNotNull(new EvalSession(inputs, registry).trace());
+        } finally {
+            Tracing.setSampleRate(0);
+        }
+
+        EvalSession session = new EvalSession(inputs, registry);
+        SessionTrace trace = session.startTrace();
+        assertEquals(4, registry.value("t_top", session));
+        assertEquals(3, registry.valueAsync(
+                "t_async", session, Executors.newFixedThreadPool(2)).get());
+
+        // The tree follows the dependencies, across the unboxed and async reads
+        List<TraceSpan> roots = trace.roots();
+        assertEquals(2, roots.size());
+        TraceSpan top = roots.get(0);
+        assertEquals("t_top", top.getArgument());
+        assertEquals(Thread.currentThread().getName(), top.getThread());
+        assertEquals(2, top.getChildren().size());
+        TraceSpan sum = top.getChildren().get(0);
+        assertFalse(sum.isCacheHit());
+        assertEquals("t_a", sum.getChildren().get(0).getArgument());
+        assertTrue(top.getChildren().get(1).isCacheHit());
+        assertTrue(top.durationNanos() >= sum.durationNanos());
+
+        TraceSpan async = roots.get(1);
+        assertTrue(async.isAsync());
+        assertTrue(async.getEndNanos() >= async.getDispatchedNanos());
+        assertEquals("t_sum", async.getChildren().get(0).getArgument());
+        assertTrue(async.getChildren().get(0).isCacheHit());
+
+        String json = trace.toJson();
+        assertTrue(json.startsWith("{\"durationNanos\":"));
+        assertTrue(json.contains("{\"argument\":\"t_top\""));
+        assertTrue(json.contains("\"async\":true"));
+        String stacks = trace.toCollapsedStacks();
+        assertTrue(stacks.contains("t_top;t_sum;t_a "));
+        assertTrue(stacks.contains("t_async;t_sum "));
+        assertEquals(6, stacks.split("\n").length);
+    }
+
+    @Test
+    public void evaluateBlocking() {
+        String[] imports = {ExpressionTest.class.getName()};
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("v_in", int.class, registry);
+        ArgumentFactory.createAll(registry, Arrays.asList(
+                new ArgumentConfig("v_a", Integer.class.getName(),
+                        "ExpressionTest.blockingLoad($v_in + 1)", true, true, imports),
+                new ArgumentConfig("v_b", Integer.class.getName(),
+                        "ExpressionTest.blockingLoad($v_in + 2)", true, true, imports),
+                new ArgumentConfig("v_future", Integer.class.getName(),
+                        "TestUtils.asyncSub($v_b, $v_a)", true, true,
+                        new String[]{TestUtils.class.getName()})));
+
+        Expression expression = ExpressionFactory.create(
+                registry,
+                new ExpressionConfig(
+                        "$v_a * 100 + $v_b * 10 + $v_future",
+                        Integer.class.getName(),
+                        true));
+
+        HashMapInputProvider provider = new HashMapInputProvider();
+        provider.put("v_in", 1);
+        EvalSession session = new EvalSession(provider, registry);
+
+        // Both blocking loads must run at the same time to complete
+        blockingCalls = new CountDownLatch(2);
+        assertEquals(231, expression.evalBlocking(session));
+        assertEquals(0, blockingCalls.getCount());
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            blockingCalls = new CountDownLatch(2);
+            assertEquals(231, expression.evalBlocking(
+                    new EvalSession(provider, registry), executor));
+            assertEquals(0, blockingCalls.getCount());
+        } finally {
+            executor.shutdown();
+        }
+
+        // Sync expressions work the same way
+        assertEquals(2, ExpressionFactory.create(
+                registry,
+                new ExpressionConfig("$v_in * 2", Integer.class.getName()))
+                .evalBlocking(session));
+    }
+
+    @Test
+    public void evaluateBlockingOnBoundedExecutor() {
+        String[] imports = {TestUtils.class.getName()};
+        ArgumentRegistry registry = new ArgumentRegistry();
+        TestUtils.argument("n_in", int.class, registry);
+        ArgumentFactory.createAll(registry, Arrays.asList(
+                new ArgumentConfig("n_a", Integer.class.getName(),
+                        "TestUtils.asyncAdd($n_in, 1)", true, true, imports),
+                new ArgumentConfig("n_b", Integer.class.getName(),
+                        "TestUtils.asyncAdd($n_in, 2)", true, true, imports),
+                new ArgumentConfig("n_c", Integer.class.getName(),
+                        "TestUtils.asyncAdd($n_in, 3)", true, true, imports),
+                new ArgumentConfig("n_d", Integer.class.getName(),
+                        "TestUtils.asyncAdd($n_in, 4)", true, true, imports),
+                new ArgumentConfig("n_left", Integer.class.getName(),
+                        "$n_a * $n_b", true, true),
+                new ArgumentConfig("n_right", Integer.class.getName(),
+                        "$n_c * $n_d", true, true)));
+
+        Expression expression = ExpressionFactory.create(
+                registry,
+                new ExpressionConfig(
+                        "$n_left + $n_right", Integer.class.getName(), true));
+
+        HashMapInputProvider provider = new HashMapInputProvider();
+        provider.put("n_in", 1);
+
+        // The single thread runs a fork that forks again: the nested forks queued
+        // behind it run on the threads waiting for them instead
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            for (int i = 0; i < 10; ++i) {
+                assertEquals(26, expression.evalBlocking(
+                        new EvalSession(provider, registry), executor));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
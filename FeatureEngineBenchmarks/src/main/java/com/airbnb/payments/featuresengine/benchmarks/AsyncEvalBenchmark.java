@@ -0,0 +1,95 @@
+package com.airbnb.payments.featuresengine.benchmarks;
+
+import com.airbnb.payments.featuresengine.core.EvalSession;
+import com.airbnb.payments.featuresengine.expressions.Expression;
+import com.airbnb.payments.featuresengine.expressions.ExpressionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Async evaluation of a root expression depending on many async arguments, measured
+ * until the result is available.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AsyncEvalBenchmark {
+    /**
+     * Executor the evaluation runs on
+     */
+    public enum ExecutorKind {
+        // Runs every step on the calling thread
+        DIRECT,
+        COMMON_POOL,
+        FIXED_POOL
+    }
+
+    @Param({"1", "10", "50"})
+    private int size;
+
+    @Param({"DIRECT", "COMMON_POOL", "FIXED_POOL"})
+    private ExecutorKind executorKind;
+
+    @Param({"HASH_MAP", "CONCURRENT_ARRAY"})
+    private Caches cache;
+
+    private Graphs graph;
+    private Expression expression;
+    private Executor executor;
+    private ExecutorService pool;
+
+    @Setup
+    public void setup() {
+        this.graph = Graphs.build(Graphs.Shape.ASYNC, this.size);
+        this.expression = ExpressionFactory.create(
+                this.graph.registry(), this.graph.root());
+
+        switch (this.executorKind) {
+            case DIRECT:
+                this.executor = Runnable::run;
+                break;
+            case COMMON_POOL:
+                this.executor = ForkJoinPool.commonPool();
+                break;
+            default:
+                this.pool = Executors.newFixedThreadPool(4);
+                this.executor = this.pool;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (this.pool != null) {
+            this.pool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public Object evalAsync() throws ExecutionException, InterruptedException {
+        EvalSession session = new EvalSession(
+                this.graph.inputs(),
+                this.graph.registry(),
+                this.cache.create(this.graph.registry()));
+        return this.expression.evalAsync(session, this.executor).get();
+    }
+}
@@ -0,0 +1,25 @@
+package com.airbnb.payments.featuresengine.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmarks jar. Takes the regular JMH command line options and
+ * always adds the GC profiler, so every run reports allocation rates.
+ * <p>
+ * Eg.: java -jar target/benchmarks.jar EvalBenchmark -p shape=CHAIN
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args)
+            throws CommandLineOptionException, RunnerException {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,83 @@
+package com.airbnb.payments.featuresengine.benchmarks;
+
+import com.airbnb.payments.featuresengine.arguments.ArgumentFactory;
+import com.airbnb.payments.featuresengine.arguments.ArgumentRegistry;
+import com.airbnb.payments.featuresengine.arguments.HashMapInputProvider;
+import com.airbnb.payments.featuresengine.config.ArgumentConfig;
+import com.airbnb.payments.featuresengine.core.EvalSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads of named expressions through the registry with a given session cache hit
+ * ratio. Hits are cacheable expressions already computed on the session, misses are
+ * non cacheable expressions computed on every read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+    private static final int ARGUMENTS = 100;
+
+    // Percentage of reads served by the cache
+    @Param({"0", "50", "90", "100"})
+    private int hitRatio;
+
+    @Param({"HASH_MAP", "ARRAY", "CONCURRENT_ARRAY"})
+    private Caches cache;
+
+    private ArgumentRegistry registry;
+    private EvalSession session;
+    private int[] slots;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        this.registry = new ArgumentRegistry();
+        ArgumentFactory.create(this.registry, new ArgumentConfig(
+                "in", Integer.class.getName(), false, false));
+
+        this.slots = new int[ARGUMENTS];
+        int hits = ARGUMENTS * this.hitRatio / 100;
+        for (int i = 0; i < ARGUMENTS; ++i) {
+            this.slots[i] = ArgumentFactory.create(this.registry, new ArgumentConfig(
+                    "x_" + Graphs.name(i),
+                    Integer.class.getName(),
+                    "$in + " + i,
+                    i < hits,
+                    false)).getSlot();
+        }
+
+        HashMapInputProvider inputs = new HashMapInputProvider();
+        inputs.put("in", 1);
+        this.session = new EvalSession(
+                inputs, this.registry, this.cache.create(this.registry));
+        for (int slot : this.slots) {
+            this.registry.value(slot, this.session);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ARGUMENTS)
+    public void read(Blackhole blackhole) {
+        for (int slot : this.slots) {
+            blackhole.consume(this.registry.value(slot, this.session));
+        }
+    }
+}
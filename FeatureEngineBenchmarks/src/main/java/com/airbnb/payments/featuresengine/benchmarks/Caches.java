@@ -0,0 +1,27 @@
+package com.airbnb.payments.featuresengine.benchmarks;
+
+import com.airbnb.payments.featuresengine.arguments.ArgumentRegistry;
+import com.airbnb.payments.featuresengine.cache.ArrayCache;
+import com.airbnb.payments.featuresengine.cache.ConcurrentArrayCache;
+import com.airbnb.payments.featuresengine.cache.HashMapCache;
+import com.airbnb.payments.featuresengine.cache.ICache;
+
+/**
+ * Session cache implementations compared by the benchmarks
+ */
+public enum Caches {
+    HASH_MAP,
+    ARRAY,
+    CONCURRENT_ARRAY;
+
+    public ICache create(ArgumentRegistry registry) {
+        switch (this) {
+            case HASH_MAP:
+                return new HashMapCache();
+            case ARRAY:
+                return new ArrayCache(registry);
+            default:
+                return new ConcurrentArrayCache(registry);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.airbnb.payments.featuresengine.benchmarks;
+
+import com.airbnb.payments.featuresengine.arguments.ArgumentFactory;
+import com.airbnb.payments.featuresengine.arguments.ArgumentRegistry;
+import com.airbnb.payments.featuresengine.config.ArgumentConfig;
+import com.airbnb.payments.featuresengine.config.ExpressionConfig;
+import com.airbnb.payments.featuresengine.expressions.Expression;
+import com.airbnb.payments.featuresengine.expressions.ExpressionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compile throughput of ExpressionFactory and ArgumentFactory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompileBenchmark {
+    private static final int BULK_SIZE = 200;
+
+    // Distinct expressions are compiled, identical ones share the compiled evaluator
+    @Param({"true", "false"})
+    private boolean distinct;
+
+    private Graphs graph;
+    private long counter;
+
+    @Setup
+    public void setup() {
+        this.graph = Graphs.build(Graphs.Shape.FANOUT, 10);
+    }
+
+    @Benchmark
+    public Expression create() {
+        long literal = this.distinct ? this.counter++ : 0;
+        return ExpressionFactory.create(
+                this.graph.registry(),
+                new ExpressionConfig(
+                        "$in * " + literal + " + $x_a - $x_b",
+                        Integer.class.getName()));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BULK_SIZE)
+    public ArgumentRegistry createAll() {
+        long literal = this.distinct ? this.counter++ : 0;
+        List<ArgumentConfig> configs = new ArrayList<>();
+        configs.add(new ArgumentConfig("in", Integer.class.getName()));
+        for (int i = 1; i < BULK_SIZE; ++i) {
+            configs.add(new ArgumentConfig(
+                    "x_" + Graphs.name(i),
+                    Integer.class.getName(),
+                    String.format("$in * %d + %d", i, literal)));
+        }
+
+        ArgumentRegistry registry = new ArgumentRegistry();
+        ArgumentFactory.createAll(registry, configs);
+        return registry;
+    }
+}
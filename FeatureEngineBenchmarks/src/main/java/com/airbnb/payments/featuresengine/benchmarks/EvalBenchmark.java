@@ -0,0 +1,63 @@
+package com.airbnb.payments.featuresengine.benchmarks;
+
+import com.airbnb.payments.featuresengine.core.EvalSession;
+import com.airbnb.payments.featuresengine.expressions.Expression;
+import com.airbnb.payments.featuresengine.expressions.ExpressionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sync evaluation of a root expression over the different graph shapes. Each
+ * invocation is a new request: a new session with an empty cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvalBenchmark {
+    @Param({"CHAIN", "FANOUT", "DIAMOND"})
+    private Graphs.Shape shape;
+
+    @Param({"10", "100"})
+    private int size;
+
+    @Param({"HASH_MAP", "ARRAY", "CONCURRENT_ARRAY"})
+    private Caches cache;
+
+    // If the whole graph is compiled in a single class
+    @Param({"false", "true"})
+    private boolean fused;
+
+    private Graphs graph;
+    private Expression expression;
+
+    @Setup
+    public void setup() {
+        this.graph = Graphs.build(this.shape, this.size);
+        this.expression = this.fused
+                ? ExpressionFactory.createFused(this.graph.registry(), this.graph.root())
+                : ExpressionFactory.create(this.graph.registry(), this.graph.root());
+    }
+
+    @Benchmark
+    public Object eval() {
+        EvalSession session = new EvalSession(
+                this.graph.inputs(),
+                this.graph.registry(),
+                this.cache.create(this.graph.registry()));
+        return this.expression.eval(session);
+    }
+}
@@ -0,0 +1,158 @@
+package com.airbnb.payments.featuresengine.benchmarks;
+
+import com.airbnb.payments.featuresengine.arguments.ArgumentFactory;
+import com.airbnb.payments.featuresengine.arguments.ArgumentRegistry;
+import com.airbnb.payments.featuresengine.arguments.HashMapInputProvider;
+import com.airbnb.payments.featuresengine.config.ArgumentConfig;
+import com.airbnb.payments.featuresengine.config.ExpressionConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Argument graphs shared by the benchmarks. Every graph has @size inputs or named
+ * expressions and a root expression config depending on all of them.
+ */
+public class Graphs {
+    private static final String INT = Integer.class.getName();
+    private static final String[] IMPORTS = {Graphs.class.getName()};
+
+    /**
+     * Shape of the argument graph
+     */
+    public enum Shape {
+        // x0 <- x1 <- ... <- root
+        CHAIN,
+        // root depends on @size independent expressions
+        FANOUT,
+        // Layers of two expressions, each depending on both of the previous layer
+        DIAMOND,
+        // root depends on @size async arguments
+        ASYNC
+    }
+
+    private ArgumentRegistry registry;
+    private HashMapInputProvider inputs;
+    private ExpressionConfig root;
+
+    private Graphs(ArgumentRegistry registry,
+                   HashMapInputProvider inputs,
+                   ExpressionConfig root) {
+        this.registry = registry;
+        this.inputs = inputs;
+        this.root = root;
+    }
+
+    public ArgumentRegistry registry() {
+        return this.registry;
+    }
+
+    public HashMapInputProvider inputs() {
+        return this.inputs;
+    }
+
+    public ExpressionConfig root() {
+        return this.root;
+    }
+
+    /**
+     * Builds the graph of the given @shape
+     *
+     * @param shape Shape of the graph
+     * @param size  Number of arguments of the graph, excluding the root
+     * @return The registry, inputs and root expression of the graph
+     */
+    public static Graphs build(Shape shape, int size) {
+        ArgumentRegistry registry = new ArgumentRegistry();
+        HashMapInputProvider inputs = new HashMapInputProvider();
+        List<String> roots = new ArrayList<>();
+
+        switch (shape) {
+            case CHAIN:
+                input(registry, inputs, "in", 1);
+                named(registry, "x_" + name(0), "$in + 1");
+                for (int i = 1; i < size; ++i) {
+                    named(registry, "x_" + name(i), "$x_" + name(i - 1) + " + 1");
+                }
+                roots.add("x_" + name(size - 1));
+                break;
+            case FANOUT:
+                input(registry, inputs, "in", 1);
+                for (int i = 0; i < size; ++i) {
+                    named(registry, "x_" + name(i), "$in * " + i);
+                    roots.add("x_" + name(i));
+                }
+                break;
+            case DIAMOND:
+                input(registry, inputs, "in_a", 1);
+                input(registry, inputs, "in_b", 2);
+                String left = "in_a";
+                String right = "in_b";
+                for (int i = 0; i < size / 2; ++i) {
+                    String layer = "d_" + name(i);
+                    named(registry, layer + "_a", String.format(
+                            "$%s + $%s", left, right));
+                    named(registry, layer + "_b", String.format(
+                            "$%s - $%s", left, right));
+                    left = layer + "_a";
+                    right = layer + "_b";
+                }
+                roots.add(left);
+                roots.add(right);
+                break;
+            case ASYNC:
+                input(registry, inputs, "in", 1);
+                for (int i = 0; i < size; ++i) {
+                    ArgumentFactory.create(registry, new ArgumentConfig(
+                            "x_" + name(i),
+                            INT,
+                            "Graphs.async($in + " + i + ")",
+                            true,
+                            true,
+                            IMPORTS));
+                    roots.add("x_" + name(i));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException(shape.name());
+        }
+
+        String expression = "$" + String.join(" + $", roots);
+        return new Graphs(
+                registry,
+                inputs,
+                new ExpressionConfig(expression, INT, shape == Shape.ASYNC, IMPORTS));
+    }
+
+    /**
+     * Completed future, used by async arguments
+     */
+    public static CompletableFuture<Integer> async(int value) {
+        return CompletableFuture.completedFuture(value);
+    }
+
+    /**
+     * Numbers are spelled in base 26, so names are made of letters only
+     */
+    public static String name(int i) {
+        StringBuilder name = new StringBuilder();
+        do {
+            name.append((char) ('a' + i % 26));
+            i /= 26;
+        } while (i > 0);
+        return name.toString();
+    }
+
+    private static void input(ArgumentRegistry registry,
+                              HashMapInputProvider inputs,
+                              String name,
+                              int value) {
+        ArgumentFactory.create(registry, new ArgumentConfig(name, INT));
+        inputs.put(name, value);
+    }
+
+    private static void named(ArgumentRegistry registry, String name, String expression) {
+        ArgumentFactory.create(registry, new ArgumentConfig(name, INT, expression));
+    }
+}
@@ -0,0 +1,97 @@
+package com.airbnb.payments.featuresengine.benchmarks;
+
+import com.airbnb.payments.featuresengine.expressions.ExpressionLexer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Preprocessing of large expressions: finding their $argument references and
+ * rewriting them into registry accesses, without the Janino compilation.
+ * <p>
+ * The regex benchmarks are the previous implementation, one regex pass to find the
+ * references and one String.replace() pass per distinct argument, kept as baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReferenceBenchmark {
+    private static final Pattern REFERENCE = Pattern.compile("(\\$[A-Za-z_][A-Za-z_]*)");
+
+    // Number of references of the expression
+    @Param({"10", "100", "1000"})
+    private int size;
+
+    private String expression;
+
+    @Setup
+    public void setup() {
+        StringBuilder expression = new StringBuilder();
+        for (int i = 0; i < this.size; ++i) {
+            if (i > 0) {
+                expression.append(i % 2 == 0 ? " + " : " * ");
+            }
+            expression.append("$x_").append(Graphs.name(i % (this.size / 2 + 1)));
+            if (i % 10 == 0) {
+                expression.append(" + \"label_").append(i).append("\".length()");
+            }
+        }
+        this.expression = expression.toString();
+    }
+
+    @Benchmark
+    public List<String> references() {
+        return ExpressionLexer.references(this.expression);
+    }
+
+    @Benchmark
+    public String rewrite() {
+        return ExpressionLexer.rewrite(this.expression, ReferenceBenchmark::accessor);
+    }
+
+    @Benchmark
+    public List<String> regexReferences() {
+        Matcher matcher = REFERENCE.matcher(this.expression);
+        List<String> names = new ArrayList<>();
+        while (matcher.find()) {
+            names.add(matcher.group(0).substring(1));
+        }
+        return names;
+    }
+
+    @Benchmark
+    public String regexRewrite() {
+        Set<String> distinct = new HashSet<>(this.regexReferences());
+        List<String> names = new ArrayList<>(distinct);
+        names.sort((n1, n2) -> n2.length() - n1.length());
+
+        String result = this.expression;
+        for (String name : names) {
+            result = result.replace("$" + name, accessor(name));
+        }
+        return result;
+    }
+
+    private static String accessor(String name) {
+        return "(session.registry().intValue(" + name.length() + ", session))";
+    }
+}
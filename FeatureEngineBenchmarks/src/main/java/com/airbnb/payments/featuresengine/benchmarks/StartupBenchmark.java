@@ -0,0 +1,124 @@
+package com.airbnb.payments.featuresengine.benchmarks;
+
+import com.airbnb.payments.featuresengine.arguments.ArgumentFactory;
+import com.airbnb.payments.featuresengine.arguments.ArgumentRegistry;
+import com.airbnb.payments.featuresengine.config.ArgumentConfig;
+import com.airbnb.payments.featuresengine.expressions.ExpressionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Time to build a registry of 10k arguments with a cold bytecode cache (every
+ * expression is compiled) against a warm one (every expression is loaded from the
+ * cache directory).
+ * <p>
+ * Each measurement is a single shot on a fresh JVM, as a process startup would be.
+ * The warm cache directory is filled by another JVM, so the measured one has nothing
+ * compiled in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(5)
+public class StartupBenchmark {
+    private static final int INPUTS = 100;
+    private static final int ARGUMENTS = 10000;
+
+    @Param({"false", "true"})
+    private boolean warm;
+
+    private Path directory;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        this.directory = Files.createTempDirectory("bytecode-cache");
+        if (!this.warm) {
+            return;
+        }
+
+        Process process = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp",
+                System.getProperty("java.class.path"),
+                StartupBenchmark.class.getName(),
+                this.directory.toString())
+                .inheritIO()
+                .start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("Failed filling the bytecode cache");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        ExpressionFactory.setBytecodeCache(null);
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder())
+                    .map(Path::toFile)
+                    .forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public ArgumentRegistry startup() {
+        return build(this.directory);
+    }
+
+    /**
+     * Fills the bytecode cache directory given as first argument
+     */
+    public static void main(String[] args) {
+        build(Paths.get(args[0]));
+    }
+
+    private static ArgumentRegistry build(Path directory) {
+        ExpressionFactory.setBytecodeCache(directory);
+
+        ArgumentRegistry registry = new ArgumentRegistry();
+        for (int i = 0; i < INPUTS; ++i) {
+            ArgumentFactory.create(
+                    registry,
+                    new ArgumentConfig(input(i), Integer.class.getName()));
+        }
+
+        // Distinct expressions, so each one is a separate class
+        for (int i = INPUTS; i < ARGUMENTS; ++i) {
+            ArgumentFactory.create(
+                    registry,
+                    new ArgumentConfig(
+                            "e_" + Graphs.name(i),
+                            Integer.class.getName(),
+                            String.format(
+                                    "$%s * %d + $%s",
+                                    input(i),
+                                    i,
+                                    input(i * 7 + 1))));
+        }
+        return registry;
+    }
+
+    private static String input(int i) {
+        return "i_" + Graphs.name(i % INPUTS);
+    }
+}